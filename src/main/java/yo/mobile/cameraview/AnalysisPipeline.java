@@ -0,0 +1,331 @@
+package yo.mobile.cameraview;
+
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.os.Build;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import yo.mobile.cameraview.util.YuvScaler;
+
+/**
+ * Fans preview frames out to the {@link FrameAnalyzer}s of a view.
+ * <p>
+ * The delivering thread, i.e. the Camera1 preview callback or the executor of the Camera2
+ * analysis stream, throttles each analyzer to its rate and scales the frame to the analyzer's
+ * resolution with its own {@link YuvScaler}, so the camera buffer is free again as soon as the
+ * fan-out returns. Each analyzer then has one slot: a newer frame replaces a pending one, and at
+ * most one task per analyzer is on the shared analysis threads at a time. A task analyzes one
+ * frame and queues itself again if a newer one arrived, so analyzers take turns on the threads
+ * instead of a slow one keeping a thread for itself.
+ */
+final class AnalysisPipeline implements ImageAnalyzer {
+
+    private static final String TAG = AnalysisPipeline.class.getSimpleName();
+    static final int MAX_ANALYZERS = 16;
+
+    private static ThreadPoolExecutor sExecutor;
+    private static Executor sFanOutExecutor;
+
+    private final CameraView cameraView;
+    // Copy on write, so the delivering thread iterates without a lock or an iterator.
+    private volatile Slot[] slots = new Slot[0];
+
+    AnalysisPipeline(CameraView cameraView) {
+        this.cameraView = cameraView;
+    }
+
+    /**
+     * Analysis threads shared by every view. Each analyzer has at most one task queued or
+     * running, so the unbounded queue holds at most one task per analyzer registered in the
+     * process, however many views there are.
+     */
+    private static synchronized Executor getExecutor() {
+        if (sExecutor == null) {
+            int threads = Math.max(2, Runtime.getRuntime().availableProcessors() - 1);
+            sExecutor = new ThreadPoolExecutor(threads, threads, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), newThreadFactory("FrameAnalyzer"));
+            sExecutor.allowCoreThreadTimeOut(true);
+        }
+        return sExecutor;
+    }
+
+    /**
+     * Thread that runs the Camera2 fan-out. Each analysis stream has at most one drain task on it,
+     * so the queue is bounded by the number of open streams.
+     */
+    static synchronized Executor getFanOutExecutor() {
+        if (sFanOutExecutor == null) {
+            ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 1, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<Runnable>(), newThreadFactory("FrameAnalyzerFanOut"));
+            executor.allowCoreThreadTimeOut(true);
+            sFanOutExecutor = executor;
+        }
+        return sFanOutExecutor;
+    }
+
+    private static ThreadFactory newThreadFactory(final String name) {
+        return new ThreadFactory() {
+            private int count;
+
+            @Override
+            public synchronized Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, name + "-" + count++);
+                thread.setDaemon(true);
+                return thread;
+            }
+        };
+    }
+
+    synchronized FrameAnalyzerStats add(FrameAnalyzer analyzer, int width, int height, float maxFps) {
+        Slot[] current = slots;
+        for (Slot slot : current) {
+            if (slot.analyzer == analyzer) {
+                throw new IllegalArgumentException("Analyzer is already registered.");
+            }
+        }
+        if (current.length == MAX_ANALYZERS) {
+            throw new IllegalArgumentException("At most " + MAX_ANALYZERS + " analyzers can be registered.");
+        }
+        Slot slot = new Slot(analyzer, width, height, maxFps);
+        Slot[] next = new Slot[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = slot;
+        slots = next;
+        return slot.stats;
+    }
+
+    synchronized boolean remove(FrameAnalyzer analyzer) {
+        Slot[] current = slots;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i].analyzer == analyzer) {
+                current[i].removed = true;
+                Slot[] next = new Slot[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                slots = next;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    FrameAnalyzerStats getStats(FrameAnalyzer analyzer) {
+        for (Slot slot : slots) {
+            if (slot.analyzer == analyzer) {
+                return slot.stats;
+            }
+        }
+        return null;
+    }
+
+    boolean isEmpty() {
+        return slots.length == 0;
+    }
+
+    /**
+     * Fans out an NV21 frame. The frame can be reused once this returns.
+     */
+    void onNv21Frame(byte[] nv21, int width, int height, long timestampNanos) {
+        long arrival = System.nanoTime();
+        int rotation = cameraView.getSensorOrientation();
+        for (Slot slot : slots) {
+            if (slot.accept(timestampNanos, width, height, rotation)) {
+                slot.offer(slot.scaler.scaleNv21(nv21, width, height), timestampNanos, arrival);
+            }
+        }
+    }
+
+    /**
+     * Fans out a YUV_420_888 image of the Camera2 analysis stream.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    @Override
+    public void analyze(Image image) {
+        long arrival = System.nanoTime();
+        int rotation = cameraView.getSensorOrientation();
+        int width = image.getWidth();
+        int height = image.getHeight();
+        long timestampNanos = image.getTimestamp();
+        Image.Plane[] planes = image.getPlanes();
+        ByteBuffer y = planes[0].getBuffer();
+        ByteBuffer u = planes[1].getBuffer();
+        ByteBuffer v = planes[2].getBuffer();
+        for (Slot slot : slots) {
+            if (slot.accept(timestampNanos, width, height, rotation)) {
+                slot.offer(slot.scaler.scale(y, planes[0].getRowStride(), u, v, planes[1].getRowStride(),
+                        planes[1].getPixelStride(), width, height), timestampNanos, arrival);
+            }
+        }
+    }
+
+    static final class Slot implements Runnable {
+        final FrameAnalyzer analyzer;
+        final FrameAnalyzerStats stats = new FrameAnalyzerStats();
+        final int width;
+        final int height;
+        final long minIntervalNanos;
+        volatile boolean removed;
+
+        // Written by the delivering thread only.
+        volatile YuvScaler scaler;
+        private int sourceWidth;
+        private int sourceHeight;
+        private int sourceRotation = -1;
+        private long lastAcceptedNanos;
+        private long nextDueNanos;
+        private boolean accepted;
+
+        // Guarded by this.
+        private byte[] pending;
+        private long pendingTimestamp;
+        private long pendingArrival;
+        private boolean scheduled;
+
+        Slot(FrameAnalyzer analyzer, int width, int height, float maxFps) {
+            this.analyzer = analyzer;
+            this.width = width;
+            this.height = height;
+            minIntervalNanos = maxFps > 0 ? (long) (1000000000L / maxFps) : 0;
+        }
+
+        /**
+         * Throttles to the target rate and sets the scaler up for the source.
+         *
+         * @return True, if the frame should be scaled and offered
+         */
+        boolean accept(long timestampNanos, int sourceWidth, int sourceHeight, int rotation) {
+            if (removed) {
+                return false;
+            }
+            // Frames due in less than an eighth of the interval count as due, or a rate that
+            // doesn't divide the camera's rate would come out a frame interval too slow. The
+            // schedule advances by whole intervals to keep the average rate, and restarts after
+            // a gap or when the timestamps go back, e.g. after a camera switch.
+            if (accepted && timestampNanos >= lastAcceptedNanos
+                    && timestampNanos < nextDueNanos - minIntervalNanos / 8) {
+                stats.onThrottled();
+                return false;
+            }
+            boolean onSchedule = accepted && timestampNanos >= lastAcceptedNanos
+                    && timestampNanos - nextDueNanos < minIntervalNanos;
+            nextDueNanos = (onSchedule ? nextDueNanos : timestampNanos) + minIntervalNanos;
+            accepted = true;
+            lastAcceptedNanos = timestampNanos;
+            if (scaler == null || sourceWidth != this.sourceWidth || sourceHeight != this.sourceHeight
+                    || rotation != sourceRotation) {
+                setUpScaler(sourceWidth, sourceHeight, rotation);
+            }
+            return true;
+        }
+
+        /**
+         * Scales to the registered size after rotation, center-cropping the source to its aspect
+         * ratio. Frames still held by the analyzer go back to the new scaler's pool, they have the
+         * same size.
+         */
+        private void setUpScaler(int sourceWidth, int sourceHeight, int rotation) {
+            boolean transposed = rotation % 180 != 0;
+            int outputWidth = transposed ? height : width;
+            int outputHeight = transposed ? width : height;
+            if (scaler == null || sourceRotation % 180 != rotation % 180) {
+                scaler = new YuvScaler(outputWidth, outputHeight, YuvScaler.Filter.BILINEAR);
+            }
+            int cropWidth = sourceWidth;
+            int cropHeight = sourceHeight;
+            if ((long) sourceWidth * outputHeight > (long) sourceHeight * outputWidth) {
+                cropWidth = (int) ((long) sourceHeight * outputWidth / outputHeight);
+            } else {
+                cropHeight = (int) ((long) sourceWidth * outputHeight / outputWidth);
+            }
+            scaler.setCrop((sourceWidth - cropWidth) / 2, (sourceHeight - cropHeight) / 2, cropWidth, cropHeight);
+            scaler.setRotation(rotation);
+            this.sourceWidth = sourceWidth;
+            this.sourceHeight = sourceHeight;
+            sourceRotation = rotation;
+        }
+
+        void offer(byte[] frame, long timestampNanos, long arrival) {
+            byte[] dropped;
+            boolean schedule;
+            synchronized (this) {
+                dropped = pending;
+                pending = frame;
+                pendingTimestamp = timestampNanos;
+                pendingArrival = arrival;
+                schedule = !scheduled;
+                scheduled = true;
+            }
+            if (dropped != null) {
+                scaler.release(dropped);
+                stats.onSkipped();
+            }
+            if (schedule) {
+                try {
+                    getExecutor().execute(this);
+                } catch (RejectedExecutionException e) {
+                    synchronized (this) {
+                        dropped = pending;
+                        pending = null;
+                        scheduled = false;
+                    }
+                    scaler.release(dropped);
+                    stats.onSkipped();
+                }
+            }
+        }
+
+        @Override
+        public void run() {
+            byte[] frame;
+            long timestampNanos;
+            long arrival;
+            YuvScaler frameScaler;
+            synchronized (this) {
+                frame = pending;
+                pending = null;
+                timestampNanos = pendingTimestamp;
+                arrival = pendingArrival;
+                if (frame == null || removed) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            // The delivering thread may replace the scaler; either one takes the frame back.
+            frameScaler = scaler;
+            long start = System.nanoTime();
+            try {
+                analyzer.analyze(frame, width, height, timestampNanos);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Frame analyzer failed", e);
+            }
+            long end = System.nanoTime();
+            stats.onAnalyzed(end - arrival, end - start);
+            if (frameScaler != null) {
+                frameScaler.release(frame);
+            }
+            synchronized (this) {
+                if (pending == null || removed) {
+                    scheduled = false;
+                    return;
+                }
+            }
+            // Back in line behind the other analyzers.
+            try {
+                getExecutor().execute(this);
+            } catch (RejectedExecutionException e) {
+                synchronized (this) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+}
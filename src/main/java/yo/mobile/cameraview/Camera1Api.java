@@ -5,34 +5,97 @@ import android.content.Context;
 import android.graphics.SurfaceTexture;
 import android.hardware.Camera;
 import android.media.CamcorderProfile;
+import android.os.Handler;
 import android.util.Log;
 import android.view.WindowManager;
 
+import java.io.File;
 import java.io.IOException;
-import java.util.List;
+import java.util.ArrayDeque;
 
 import yo.mobile.cameraview.util.Camera1Helper;
+import yo.mobile.cameraview.util.CameraCapabilities;
+import yo.mobile.cameraview.util.CapabilityCache;
+import yo.mobile.cameraview.util.MediaWriter;
+import yo.mobile.cameraview.util.SizeList;
+import yo.mobile.cameraview.util.SizeSelector;
 
 import static android.content.ContentValues.TAG;
 
-public class Camera1Api implements CameraViewImpl {
+public class Camera1Api implements CameraViewImpl, CameraArbiter.Client {
 
     private CameraView cameraView;
     private Context context;
     private Camera camera;
+    private CameraHandle cameraHandle;
     private WindowManager windowManager;
+    private Camera1FramePool framePool;
+    // The camera is only touched on the arbiter's camera thread.
+    private final CameraArbiter arbiter = CameraArbiter.get();
+    private final Handler backgroundHandler = arbiter.getHandler();
+    private SurfaceTexture surface;
+    private int height;
+    // The configuration negotiated on the last open, reapplied as is when the camera is reopened
+    // for the same view height and display rotation, e.g. on resume.
+    private int negotiatedCameraId = -1;
+    private int negotiatedHeight;
+    private int negotiatedRotation;
+    private int negotiatedDisplayOrientation;
+    private String negotiatedConfigKey;
+    private Camera.Parameters negotiatedParameters;
+    private int negotiatedSensorOrientation;
+    // Pictures requested but not taken yet, camera thread only.
+    private final ArrayDeque<PendingPicture> pendingPictures = new ArrayDeque<>();
+    private final PictureSaveQueue saveQueue = PictureSaveQueue.get();
+    private boolean takingPicture;
+    private static final long SAVE_QUEUE_RETRY_MS = 50;
+
+    private final Runnable takeNextPictureTask = new Runnable() {
+        @Override
+        public void run() {
+            takeNextPicture();
+        }
+    };
+
+    private static final class PendingPicture {
+        final File file;
+        final MediaWriter.FsyncPolicy fsyncPolicy;
+        final CameraView.OnPictureTakenListener listener;
+
+        PendingPicture(File file, MediaWriter.FsyncPolicy fsyncPolicy, CameraView.OnPictureTakenListener listener) {
+            this.file = file;
+            this.fsyncPolicy = fsyncPolicy;
+            this.listener = listener;
+        }
+    }
+
+    /**
+     * Open camera as handed between views by the {@link CameraArbiter}. The config key is the
+     * preview size.
+     */
+    private static final class CameraHandle extends CameraArbiter.Handle {
+        final Camera camera;
+
+        CameraHandle(String cameraKey, Camera camera) {
+            super(cameraKey);
+            this.camera = camera;
+        }
+
+        @Override
+        void onClose() {
+            // release the camera for other applications
+            camera.release();
+        }
+    }
 
     @Override
     public void initialize(CameraView cameraView, Context context) {
+        // Nothing touches the camera until the surface texture is available.
         this.cameraView = cameraView;
         this.context = context;
-        camera = Camera1Helper.getDefaultCameraInstance();
         windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
-        try {
-            camera.setPreviewTexture(cameraView.getSurfaceTexture());
-        } catch (IOException e) {
-            Log.e(TAG, "Surface texture is unavailable or unsuitable" + e.getMessage());
-        }
+        cameraView.setFrontCameraId(Camera1Helper.getFrontCameraID());
+        cameraView.setBackCameraId(Camera1Helper.getDefaultCameraID());
     }
 
     @Override
@@ -40,42 +103,358 @@ public class Camera1Api implements CameraViewImpl {
         return false;
     }
 
+    /**
+     * Requests the camera from the {@link CameraArbiter}, which opens it on its camera thread, so
+     * the UI thread doesn't block on the hardware. If another view holds the camera, it is
+     * opened once that view releases it.
+     */
+    @Override
+    public void openCamera(final SurfaceTexture surface, final int width, final int height) {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                Camera1Api.this.surface = surface;
+                Camera1Api.this.height = height;
+                if (!cameraView.isFrontCameraExist() && !cameraView.isBackCameraExist()) {
+                    postNoCamerasAvailable();
+                    return;
+                }
+                arbiter.acquire(Camera1Api.this, "camera1:" + cameraView.getCurrentCameraId());
+            }
+        });
+    }
+
     @Override
-    public void openCamera(SurfaceTexture surface, int width, int height) {
+    public void onCameraGranted(CameraArbiter.Handle handle) {
         try {
-            releaseCamera();
-            camera = Camera.open();
-            // We need to make sure that our preview and recording video size are supported by the
-            // camera. Query camera to find all the sizes and choose the optimal size given the
-            // dimensions of our preview surface.
-            Camera.Parameters parameters = camera.getParameters();
-            List<Camera.Size> mSupportedPreviewSizes = parameters.getSupportedPreviewSizes();
-            List<Camera.Size> mSupportedVideoSizes = parameters.getSupportedVideoSizes();
-            Camera.Size optimalSize = Camera1Helper.getOptimalPreviewSize(mSupportedVideoSizes, height);
-
-            // Use the same size for recording profile.
-            CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
-            profile.videoFrameWidth = optimalSize.width;
-            profile.videoFrameHeight = optimalSize.height;
-
-            // likewise for the camera object itself.
-            parameters.setPreviewSize(profile.videoFrameWidth, profile.videoFrameHeight);
-            camera.setParameters(parameters);
-            Camera1Helper.setCameraDisplayOrientation(windowManager, Camera1Helper.getDefaultCameraID(), camera);
-            camera.startPreview();
+            int cameraId = cameraView.getCurrentCameraId();
+            if (handle != null) {
+                // Handed over by another view, only the preview has to be restarted.
+                cameraHandle = (CameraHandle) handle;
+                camera = cameraHandle.camera;
+            } else {
+                camera = Camera.open(cameraId);
+                cameraHandle = new CameraHandle("camera1:" + cameraId, camera);
+            }
+            cameraView.markStartupPhase(StartupMetrics.PHASE_DEVICE_OPENED);
+            int rotation = windowManager.getDefaultDisplay().getRotation();
+            if (negotiatedParameters == null || negotiatedCameraId != cameraId
+                    || negotiatedHeight != height || negotiatedRotation != rotation) {
+                negotiateConfig(cameraId, rotation);
+            } else {
+                camera.setDisplayOrientation(negotiatedDisplayOrientation);
+            }
+            // Parameters are only flattened into a string by setParameters, so the instance
+            // read from an earlier open of the camera can be applied to this one.
+            if (!negotiatedConfigKey.equals(cameraHandle.configKey)) {
+                camera.setParameters(negotiatedParameters);
+                cameraHandle.configKey = negotiatedConfigKey;
+            }
+            cameraView.setSensorOrientation(negotiatedSensorOrientation);
+            setUpPreviewCallback(negotiatedParameters);
             camera.setPreviewTexture(surface);
-        } catch (Exception e) {
-            cameraView.getOnCameraErrorListener().onCameraOpenFailed(e);
+            camera.startPreview();
+            cameraView.markStartupPhase(StartupMetrics.PHASE_SESSION_CONFIGURED);
+            int[] fpsRange = new int[2];
+            negotiatedParameters.getPreviewFpsRange(fpsRange);
+            // In frames per 1000 seconds.
+            cameraView.setPreviewFrameRate(fpsRange[Camera.Parameters.PREVIEW_FPS_MAX_INDEX] / 1000f);
+            // Pictures requested before the open or during a switch.
+            takeNextPicture();
+        } catch (final Exception e) {
+            // Negotiate again next time, the cached parameters may be what failed.
+            negotiatedParameters = null;
+            closeCamera(false);
+            cameraView.post(new Runnable() {
+                @Override
+                public void run() {
+                    cameraView.getOnCameraErrorListener().onCameraOpenFailed(e);
+                }
+            });
+        }
+    }
+
+    /**
+     * Picks the preview size for the view height and reads the camera's parameters with it.
+     */
+    private void negotiateConfig(int cameraId, int rotation) {
+        // We need to make sure that our preview and recording video size are supported by the
+        // camera. Query camera to find all the sizes and choose the optimal size given the
+        // dimensions of our preview surface.
+        // The supported sizes come from the capability cache and the selection is memoized.
+        CameraCapabilities capabilities = CapabilityCache.get(context).getCamera1(cameraId, camera);
+        negotiatedSensorOrientation = capabilities.getOrientation();
+        SizeSelector sizeSelector = SizeSelector.forCamera(capabilities.getKey());
+        if (sizeSelector.getSizes(SizeSelector.SIZES_VIDEO) == null) {
+            sizeSelector.setSizes(SizeSelector.SIZES_PREVIEW, capabilities.getPreviewSizes());
+            // No separate video sizes means the preview sizes are used for recording.
+            sizeSelector.setSizes(SizeSelector.SIZES_VIDEO, capabilities.getVideoSizes() != null
+                    ? capabilities.getVideoSizes() : capabilities.getPreviewSizes());
+        }
+        SizeList videoSizes = sizeSelector.getSizes(SizeSelector.SIZES_VIDEO);
+        int optimalSize = sizeSelector.selectPreviewSize(SizeSelector.SIZES_VIDEO, height);
+
+        // Use the same size for recording profile.
+        CamcorderProfile profile = CamcorderProfile.get(CamcorderProfile.QUALITY_HIGH);
+        profile.videoFrameWidth = videoSizes.getWidth(optimalSize);
+        profile.videoFrameHeight = videoSizes.getHeight(optimalSize);
+
+        // likewise for the camera object itself.
+        Camera.Parameters parameters = camera.getParameters();
+        parameters.setPreviewSize(profile.videoFrameWidth, profile.videoFrameHeight);
+
+        negotiatedParameters = parameters;
+        negotiatedConfigKey = profile.videoFrameWidth + "x" + profile.videoFrameHeight;
+        negotiatedDisplayOrientation = Camera1Helper.setCameraDisplayOrientation(windowManager, cameraId, camera);
+        negotiatedCameraId = cameraId;
+        negotiatedHeight = height;
+        negotiatedRotation = rotation;
+    }
+
+    private void postNoCamerasAvailable() {
+        cameraView.post(new Runnable() {
+            @Override
+            public void run() {
+                cameraView.getOnCameraErrorListener().onNoCamerasAvailable();
+            }
+        });
+    }
+
+    /**
+     * Routes preview frames to the {@link CameraView.OnPreviewFrameListener}, the frame listeners
+     * and analyzers through a fixed pool of callback buffers. The pool is kept across opens as
+     * long as the preview size matches.
+     */
+    private void setUpPreviewCallback(Camera.Parameters parameters) {
+        CameraView.OnPreviewFrameListener listener = cameraView.getOnPreviewFrameListener();
+        AnalysisPipeline pipeline = cameraView.getAnalysisPipeline();
+        if (pipeline.isEmpty()) {
+            pipeline = null;
         }
+        CameraView.OnDirectFrameListener directListener = cameraView.getOnDirectFrameListener();
+        if (!hasFrameConsumers()) {
+            framePool = null;
+            return;
+        }
+        Camera.Size previewSize = parameters.getPreviewSize();
+        int format = parameters.getPreviewFormat();
+        if (framePool == null || !framePool.matches(previewSize.width, previewSize.height, format,
+                listener, pipeline, directListener)) {
+            framePool = new Camera1FramePool(previewSize.width, previewSize.height, format,
+                    Camera1FramePool.DEFAULT_BUFFER_COUNT, listener, pipeline, directListener,
+                    cameraView.getFrameDispatcher());
+        }
+        framePool.attach(camera);
+    }
+
+    private boolean hasFrameConsumers() {
+        return cameraView.getOnPreviewFrameListener() != null || !cameraView.getAnalysisPipeline().isEmpty()
+                || cameraView.getOnDirectFrameListener() != null || !cameraView.getFrameDispatcher().isEmpty();
     }
 
+    /**
+     * Starts or stops the preview callback of the open camera. A pool that is already attached
+     * reads the frame listeners per frame, so it only has to be created or dropped.
+     */
+    @Override
+    public void onFrameListenersChanged() {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (camera == null || negotiatedParameters == null) {
+                    return;
+                }
+                if (framePool == null) {
+                    setUpPreviewCallback(negotiatedParameters);
+                } else if (!hasFrameConsumers()) {
+                    framePool.detach();
+                    framePool = null;
+                }
+            }
+        });
+    }
+
+    /**
+     * Stops the preview and gives the camera back to the {@link CameraArbiter}, which keeps it
+     * open for the next view for a moment. Returns right away; the surface texture is released
+     * by {@link #releaseSurface(SurfaceTexture)} once the camera is detached from it.
+     */
     @Override
     public void releaseCamera() {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                closeCamera(true);
+            }
+        });
+    }
+
+    /**
+     * Releases the texture on the camera thread, after the pending release of the camera has
+     * detached the preview from it.
+     */
+    @Override
+    public void releaseSurface(final SurfaceTexture surface) {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                surface.release();
+            }
+        });
+    }
+
+    /**
+     * Stops the preview and closes the current camera, then opens the other one on the same
+     * surface texture. {@code Camera.release} is synchronous, so the switch can't overlap the
+     * close with the open; it saves the rest of a full reopen: the surface texture stays, the
+     * camera keeps its place with the {@link CameraArbiter}, and the sizes come from the
+     * capability cache and the memoized selection.
+     */
+    @Override
+    public void switchCamera() {
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (surface == null) {
+                    return;
+                }
+                if (framePool != null) {
+                    framePool.detach();
+                }
+                // Stopping the preview cancels a picture in progress, its JPEG never arrives.
+                failPictureInProgress();
+                CameraHandle handle = cameraHandle;
+                if (camera != null) {
+                    camera.stopPreview();
+                    camera = null;
+                    cameraHandle = null;
+                }
+                arbiter.switchCamera(Camera1Api.this, handle, "camera1:" + cameraView.getCurrentCameraId());
+            }
+        });
+    }
+
+    /**
+     * @param handOver True to give the camera to the arbiter for reuse, false to close it
+     */
+    private void closeCamera(boolean handOver) {
+        surface = null;
+        failPendingPictures();
+        if (framePool != null) {
+            framePool.detach();
+        }
+        CameraHandle handle = cameraHandle;
         if (camera != null) {
-            // release the camera for other applications
             camera.stopPreview();
-            camera.release();
+            try {
+                // Detach from our surface texture, which is about to be destroyed.
+                camera.setPreviewTexture(null);
+            } catch (IOException e) {
+                handOver = false;
+            }
             camera = null;
+            cameraHandle = null;
+        }
+        if (handle != null && !handOver) {
+            handle.close();
+            handle = null;
+        }
+        arbiter.release(this, handle);
+    }
+
+    /**
+     * Queues the pictures and returns. They are taken one after another on the camera thread;
+     * each JPEG goes to the {@link PictureSaveQueue} and the preview restarts right away, before
+     * the file is written.
+     */
+    @Override
+    public void takePicture(final File[] files, final CameraView.OnPictureTakenListener listener) {
+        final MediaWriter.FsyncPolicy fsyncPolicy = cameraView.getFsyncPolicy();
+        backgroundHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (File file : files) {
+                    pendingPictures.add(new PendingPicture(file, fsyncPolicy, listener));
+                }
+                takeNextPicture();
+            }
+        });
+    }
+
+    private void takeNextPicture() {
+        if (takingPicture || camera == null || pendingPictures.isEmpty()) {
+            return;
+        }
+        if (!saveQueue.hasRoom()) {
+            // Keep the JPEGs on disk rather than in memory; try again once the writer caught up.
+            backgroundHandler.removeCallbacks(takeNextPictureTask);
+            backgroundHandler.postDelayed(takeNextPictureTask, SAVE_QUEUE_RETRY_MS);
+            return;
+        }
+        try {
+            camera.takePicture(null, null, pictureCallback);
+            takingPicture = true;
+        } catch (RuntimeException e) {
+            PendingPicture picture = pendingPictures.poll();
+            postPictureFailed(picture, e);
+            takeNextPicture();
+        }
+    }
+
+    private final Camera.PictureCallback pictureCallback = new Camera.PictureCallback() {
+        @Override
+        public void onPictureTaken(byte[] data, Camera camera) {
+            if (camera != Camera1Api.this.camera || !takingPicture) {
+                // From a camera switched away from; its picture has been failed already.
+                return;
+            }
+            takingPicture = false;
+            PendingPicture picture = pendingPictures.poll();
+            try {
+                camera.startPreview();
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Preview not restarted after the picture", e);
+            }
+            if (picture != null && !saveQueue.offer(data, picture.file, picture.fsyncPolicy, picture.listener)) {
+                postPictureFailed(picture, new IllegalStateException("Too many pictures pending."));
+            }
+            takeNextPicture();
+        }
+    };
+
+    private void postPictureFailed(final PendingPicture picture, final Exception e) {
+        cameraView.post(new Runnable() {
+            @Override
+            public void run() {
+                picture.listener.onPictureFailed(picture.file, e);
+            }
+        });
+    }
+
+    /**
+     * Fails the picture being taken, if any. The pictures queued after it are taken by the next
+     * camera.
+     */
+    private void failPictureInProgress() {
+        if (!takingPicture) {
+            return;
+        }
+        takingPicture = false;
+        PendingPicture picture = pendingPictures.poll();
+        if (picture != null) {
+            postPictureFailed(picture, new IllegalStateException("Camera was switched."));
+        }
+    }
+
+    /**
+     * Fails the pictures that weren't taken before the camera closed.
+     */
+    private void failPendingPictures() {
+        backgroundHandler.removeCallbacks(takeNextPictureTask);
+        takingPicture = false;
+        PendingPicture picture;
+        while ((picture = pendingPictures.poll()) != null) {
+            postPictureFailed(picture, new IllegalStateException("Camera is closed."));
         }
     }
 
@@ -0,0 +1,111 @@
+package yo.mobile.cameraview;
+
+
+import android.graphics.ImageFormat;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Pool of direct buffers that Camera1 NV21 preview frames are copied into for
+ * {@link CameraView.OnDirectFrameListener}.
+ * <p>
+ * Camera1 only delivers into Java arrays, so each frame is copied once, row by row, into a
+ * buffer allocated when the pool is created. Rows start at multiples of {@link #ROW_ALIGNMENT}
+ * bytes from the start of the buffer, for SIMD loads in native code. The Y plane is followed by
+ * the interleaved VU plane as in NV21, so U and V are views with a pixel stride of 2. When every
+ * frame is still held by consumers, new frames are dropped.
+ */
+class Camera1DirectFramePool implements Frame.Owner {
+
+    static final int DEFAULT_FRAME_COUNT = 3;
+    static final int ROW_ALIGNMENT = 64;
+
+    private final int width;
+    private final int height;
+    private final int rowStride;
+    private final CameraView.OnDirectFrameListener listener;
+    // Camera thread only; copies go through these so the frames' planes keep their position.
+    private final ByteBuffer[] writeBuffers;
+    private final DirectFrame[] frames;
+    // Guarded by itself.
+    private final ArrayDeque<DirectFrame> free;
+    private volatile long droppedFrames;
+
+    Camera1DirectFramePool(int width, int height, int frameCount, CameraView.OnDirectFrameListener listener) {
+        this.width = width;
+        this.height = height;
+        this.listener = listener;
+        rowStride = (width + ROW_ALIGNMENT - 1) / ROW_ALIGNMENT * ROW_ALIGNMENT;
+        int lumaSize = rowStride * height;
+        int chromaSize = rowStride * (height / 2);
+        writeBuffers = new ByteBuffer[frameCount];
+        frames = new DirectFrame[frameCount];
+        free = new ArrayDeque<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            ByteBuffer buffer = ByteBuffer.allocateDirect(lumaSize + chromaSize);
+            DirectFrame frame = new DirectFrame(this);
+            frame.set(width, height, ImageFormat.YUV_420_888);
+            frame.setPlane(0, slice(buffer, 0, lumaSize), rowStride, 1);
+            frame.setPlane(1, slice(buffer, lumaSize + 1, chromaSize - 1), rowStride, 2);
+            frame.setPlane(2, slice(buffer, lumaSize, chromaSize), rowStride, 2);
+            frame.setSource(i);
+            writeBuffers[i] = buffer;
+            frames[i] = frame;
+            free.add(frame);
+        }
+    }
+
+    private static ByteBuffer slice(ByteBuffer buffer, int offset, int length) {
+        ByteBuffer view = buffer.duplicate();
+        view.position(offset);
+        view.limit(offset + length);
+        return view.slice();
+    }
+
+    boolean matches(int width, int height, CameraView.OnDirectFrameListener listener) {
+        return this.width == width && this.height == height && this.listener == listener;
+    }
+
+    /**
+     * @return number of frames dropped because every frame was held.
+     */
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * Copies an NV21 frame into a free buffer and hands it to the listener. Called on the camera
+     * thread; the array can be reused once this returns.
+     */
+    void onPreviewFrame(byte[] nv21, long timestampNanos, int rotation) {
+        DirectFrame frame;
+        synchronized (free) {
+            frame = free.poll();
+        }
+        if (frame == null) {
+            droppedFrames++;
+            return;
+        }
+        ByteBuffer out = writeBuffers[(Integer) frame.getSource()];
+        out.clear();
+        int rows = height + height / 2;
+        if (rowStride == width) {
+            out.put(nv21, 0, width * rows);
+        } else {
+            for (int row = 0; row < rows; row++) {
+                out.position(row * rowStride);
+                out.put(nv21, row * width, width);
+            }
+        }
+        frame.open(timestampNanos, rotation);
+        listener.onDirectFrame(frame);
+    }
+
+    @Override
+    public void recycle(Frame frame) {
+        synchronized (free) {
+            free.add((DirectFrame) frame);
+        }
+    }
+}
@@ -0,0 +1,206 @@
+package yo.mobile.cameraview;
+
+
+import android.graphics.ImageFormat;
+import android.hardware.Camera;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Fixed pool of preview callback buffers for {@link Camera#setPreviewCallbackWithBuffer}.
+ * <p>
+ * All buffers are allocated once, sized from the negotiated preview size, and queued to the
+ * camera. Each buffer has a preallocated {@link Frame} whose planes are views of it, and a
+ * {@link PreviewFrame} for the preview listener, which holds a reference to the frame until it
+ * is released. The buffer is queued back to the camera with the frame's last reference, so no
+ * memory is allocated per frame.
+ * <p>
+ * NV21 frames are first fanned out to the view's {@link AnalysisPipeline} and copied into the
+ * {@link Camera1DirectFramePool}, which both take what they need, then shared with the frame
+ * listeners and the preview listener.
+ */
+@SuppressWarnings("deprecation")
+class Camera1FramePool implements Camera.PreviewCallback, PreviewFrame.FramePool, Frame.Owner {
+
+    static final int DEFAULT_BUFFER_COUNT = 3;
+
+    private final byte[][] buffers;
+    private final Frame[] frames;
+    private final PreviewFrame[] previewFrames;
+    // Buffers not queued to the camera, guarded by this.
+    private final boolean[] held;
+    private final int width;
+    private final int height;
+    private final int format;
+    private final CameraView.OnPreviewFrameListener listener;
+    private final AnalysisPipeline pipeline;
+    private final Camera1DirectFramePool directPool;
+    private final FrameDispatcher dispatcher;
+    private Camera camera;
+
+    /**
+     * @param listener       The listener, or null
+     * @param pipeline       The analysis pipeline, or null
+     * @param directListener The direct frame listener, or null
+     * @param dispatcher     The view's frame listeners, whichever are registered when a frame
+     *                       arrives get it
+     */
+    Camera1FramePool(int width, int height, int format, int bufferCount,
+                     CameraView.OnPreviewFrameListener listener, AnalysisPipeline pipeline,
+                     CameraView.OnDirectFrameListener directListener, FrameDispatcher dispatcher) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+        this.listener = listener;
+        boolean nv21 = format == ImageFormat.NV21;
+        this.pipeline = nv21 ? pipeline : null;
+        directPool = nv21 && directListener != null
+                ? new Camera1DirectFramePool(width, height, Camera1DirectFramePool.DEFAULT_FRAME_COUNT, directListener)
+                : null;
+        // Frames describe NV21 planes only.
+        this.dispatcher = nv21 ? dispatcher : null;
+        int bufferSize = width * height * ImageFormat.getBitsPerPixel(format) / 8;
+        buffers = new byte[bufferCount][];
+        frames = new Frame[bufferCount];
+        previewFrames = new PreviewFrame[bufferCount];
+        held = new boolean[bufferCount];
+        for (int i = 0; i < bufferCount; i++) {
+            buffers[i] = new byte[bufferSize];
+            frames[i] = new Frame(this);
+            frames[i].setSource(i);
+            if (nv21) {
+                setNv21Planes(frames[i], buffers[i], width, height);
+            }
+            previewFrames[i] = new PreviewFrame(this, buffers[i]);
+            previewFrames[i].set(width, height, format);
+        }
+    }
+
+    /**
+     * NV21 is the Y plane followed by interleaved VU rows of the same stride, so U and V are views
+     * with a pixel stride of 2.
+     */
+    private static void setNv21Planes(Frame frame, byte[] buffer, int width, int height) {
+        int lumaSize = width * height;
+        int chromaSize = width * (height / 2);
+        frame.set(width, height, ImageFormat.YUV_420_888);
+        frame.setPlane(0, ByteBuffer.wrap(buffer, 0, lumaSize).slice(), width, 1);
+        frame.setPlane(1, ByteBuffer.wrap(buffer, lumaSize + 1, chromaSize - 1).slice(), width, 2);
+        frame.setPlane(2, ByteBuffer.wrap(buffer, lumaSize, chromaSize).slice(), width, 2);
+    }
+
+    /**
+     * Queues every free buffer to the camera and starts receiving frames. Buffers still held by
+     * consumers are queued when they are released. Can be called while the preview runs.
+     */
+    synchronized void attach(Camera camera) {
+        this.camera = camera;
+        for (int i = 0; i < buffers.length; i++) {
+            if (!held[i]) {
+                camera.addCallbackBuffer(buffers[i]);
+            }
+        }
+        camera.setPreviewCallbackWithBuffer(this);
+    }
+
+    /**
+     * Stops delivering frames. Frames released after this call are simply dropped, so it is
+     * safe to release the camera while consumers still hold frames.
+     */
+    synchronized void detach() {
+        if (camera != null) {
+            camera.setPreviewCallbackWithBuffer(null);
+            camera = null;
+        }
+    }
+
+    boolean matches(int width, int height, int format, CameraView.OnPreviewFrameListener listener,
+                    AnalysisPipeline pipeline, CameraView.OnDirectFrameListener directListener) {
+        boolean nv21 = format == ImageFormat.NV21;
+        return this.width == width && this.height == height && this.format == format
+                && this.listener == listener
+                && this.pipeline == (nv21 ? pipeline : null)
+                && (directPool != null ? directPool.matches(width, height, directListener)
+                : !nv21 || directListener == null);
+    }
+
+    @Override
+    public void onPreviewFrame(byte[] data, Camera camera) {
+        int index = -1;
+        synchronized (this) {
+            if (this.camera != camera) {
+                return;
+            }
+            for (int i = 0; i < buffers.length; i++) {
+                if (buffers[i] == data) {
+                    index = i;
+                    break;
+                }
+            }
+            if (index < 0) {
+                return;
+            }
+            held[index] = true;
+        }
+        Frame frame = frames[index];
+        long timestampNanos = System.nanoTime();
+        int rotation = dispatcher != null ? dispatcher.getRotation() : 0;
+        // The reference of this call, dropped once every consumer has taken its own.
+        frame.open(timestampNanos, rotation);
+        if (pipeline != null) {
+            pipeline.onNv21Frame(data, width, height, timestampNanos);
+        }
+        if (directPool != null) {
+            directPool.onPreviewFrame(data, timestampNanos, rotation);
+        }
+        if (dispatcher != null) {
+            dispatcher.dispatch(frame);
+        }
+        if (listener != null) {
+            PreviewFrame previewFrame = previewFrames[index];
+            synchronized (this) {
+                previewFrame.setInUse(true);
+            }
+            frame.acquire();
+            listener.onPreviewFrame(previewFrame);
+        }
+        frame.release();
+    }
+
+    /**
+     * Drops the preview listener's reference to the frame.
+     */
+    @Override
+    public void recycle(PreviewFrame previewFrame) {
+        int index;
+        synchronized (this) {
+            if (!previewFrame.isInUse()) {
+                return;
+            }
+            previewFrame.setInUse(false);
+            index = indexOf(previewFrame.getBuffer());
+        }
+        frames[index].release();
+    }
+
+    /**
+     * Queues the buffer back to the camera once nobody holds the frame.
+     */
+    @Override
+    public synchronized void recycle(Frame frame) {
+        int index = (Integer) frame.getSource();
+        held[index] = false;
+        if (camera != null) {
+            camera.addCallbackBuffer(buffers[index]);
+        }
+    }
+
+    private int indexOf(byte[] buffer) {
+        for (int i = 0; i < buffers.length; i++) {
+            if (buffers[i] == buffer) {
+                return i;
+            }
+        }
+        throw new IllegalArgumentException("Buffer is not from this pool.");
+    }
+}
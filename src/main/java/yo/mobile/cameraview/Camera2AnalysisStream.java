@@ -0,0 +1,246 @@
+package yo.mobile.cameraview;
+
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * YUV_420_888 {@link ImageReader} output that hands images to an {@link ImageAnalyzer} on a
+ * consumer {@link Executor}.
+ * <p>
+ * The reader callback only acquires images and applies the {@link ImageAnalyzer.Backpressure}
+ * policy; it never waits for the analyzer. The number of images held by this class never exceeds
+ * {@code maxImages - 1}, so the reader always has room to acquire the next one.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2AnalysisStream implements ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = Camera2AnalysisStream.class.getSimpleName();
+
+    static final int DEFAULT_QUEUE_DEPTH = 2;
+
+    private final ImageReader reader;
+    private final ImageAnalyzer analyzer;
+    private final ImageAnalyzer.Backpressure backpressure;
+    private final Executor executor;
+    private final Handler handler;
+    // Images acquired from the reader but not yet handed to the analyzer.
+    private final ArrayBlockingQueue<Image> pending;
+    private final AtomicBoolean draining = new AtomicBoolean();
+    private boolean analyzing;
+    private boolean closed;
+    private volatile long droppedFrames;
+
+    private final Runnable drainTask = new Runnable() {
+        @Override
+        public void run() {
+            drain();
+        }
+    };
+
+    private final Runnable pollTask = new Runnable() {
+        @Override
+        public void run() {
+            onImageAvailable(reader);
+        }
+    };
+
+    /**
+     * @param handler Handler of the camera thread; reader callbacks are delivered there.
+     */
+    Camera2AnalysisStream(int width, int height, ImageAnalyzer analyzer,
+                          ImageAnalyzer.Backpressure backpressure, Executor executor, Handler handler) {
+        this.analyzer = analyzer;
+        this.backpressure = backpressure;
+        this.executor = executor;
+        this.handler = handler;
+        int queueDepth;
+        switch (backpressure) {
+            case BOUNDED_QUEUE:
+                queueDepth = DEFAULT_QUEUE_DEPTH;
+                break;
+            case KEEP_LATEST:
+                queueDepth = 1;
+                break;
+            default:
+                queueDepth = 0;
+                break;
+        }
+        pending = new ArrayBlockingQueue<>(Math.max(queueDepth, 1));
+        // One pending slot per queued frame, one for the frame being analyzed and one spare so
+        // acquireLatestImage / acquireNextImage always succeed.
+        reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, queueDepth + 2);
+        reader.setOnImageAvailableListener(this, handler);
+    }
+
+    Surface getSurface() {
+        return reader.getSurface();
+    }
+
+    /**
+     * @return number of frames dropped by the backpressure policy since this stream was created.
+     */
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        switch (backpressure) {
+            case KEEP_LATEST:
+                offerLatest(reader);
+                break;
+            case BOUNDED_QUEUE:
+                offerQueued(reader);
+                break;
+            case BLOCK:
+                offerBlocking(reader);
+                break;
+        }
+    }
+
+    private void offerLatest(ImageReader reader) {
+        // Drop the stale frame first: acquireLatestImage briefly holds two images while it skips
+        // ahead, and the one being analyzed still counts against maxImages.
+        Image stale = pending.poll();
+        if (stale != null) {
+            stale.close();
+            droppedFrames++;
+        }
+        Image image = acquire(reader, true);
+        if (image == null) {
+            return;
+        }
+        pending.offer(image);
+        scheduleDrain();
+    }
+
+    private void offerQueued(ImageReader reader) {
+        Image image = acquire(reader, false);
+        if (image == null) {
+            return;
+        }
+        if (!pending.offer(image)) {
+            image.close();
+            droppedFrames++;
+            return;
+        }
+        scheduleDrain();
+    }
+
+    private void offerBlocking(ImageReader reader) {
+        synchronized (this) {
+            // Leave the image in the reader; the camera stalls on this output until we catch up.
+            if (closed || analyzing) {
+                return;
+            }
+            analyzing = true;
+        }
+        Image image = acquire(reader, false);
+        if (image == null) {
+            synchronized (this) {
+                analyzing = false;
+            }
+            return;
+        }
+        pending.offer(image);
+        scheduleDrain();
+    }
+
+    private Image acquire(ImageReader reader, boolean latest) {
+        synchronized (this) {
+            if (closed) {
+                return null;
+            }
+        }
+        try {
+            return latest ? reader.acquireLatestImage() : reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Analysis image dropped: " + e.getMessage());
+            droppedFrames++;
+            return null;
+        }
+    }
+
+    private void scheduleDrain() {
+        if (draining.compareAndSet(false, true)) {
+            executor.execute(drainTask);
+        }
+    }
+
+    private void drain() {
+        while (true) {
+            Image image;
+            synchronized (this) {
+                image = closed ? null : pending.poll();
+                if (image != null) {
+                    analyzing = true;
+                }
+            }
+            if (image == null) {
+                draining.set(false);
+                // An image may have been offered after the poll but before draining was cleared.
+                if (pending.isEmpty() || !draining.compareAndSet(false, true)) {
+                    break;
+                }
+                continue;
+            }
+            try {
+                analyzer.analyze(image);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Image analyzer failed", e);
+            } finally {
+                image.close();
+                finishImage();
+            }
+        }
+    }
+
+    private void finishImage() {
+        boolean closeReader;
+        synchronized (this) {
+            analyzing = false;
+            closeReader = closed;
+        }
+        if (closeReader) {
+            reader.close();
+        } else if (backpressure == ImageAnalyzer.Backpressure.BLOCK) {
+            // Pick up whatever the camera produced while we were busy.
+            handler.post(pollTask);
+        }
+    }
+
+    /**
+     * Stops the stream. Pending images are dropped; an image that is being analyzed is allowed to
+     * finish before the reader is closed.
+     */
+    void close() {
+        boolean closeReader;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeReader = !analyzing;
+            Image image;
+            while ((image = pending.poll()) != null) {
+                image.close();
+            }
+        }
+        reader.setOnImageAvailableListener(null, null);
+        handler.removeCallbacks(pollTask);
+        if (closeReader) {
+            reader.close();
+        }
+    }
+}
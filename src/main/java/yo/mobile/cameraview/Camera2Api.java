@@ -4,38 +4,41 @@ package yo.mobile.cameraview;
 import android.annotation.TargetApi;
 import android.content.Context;
 import android.content.res.Configuration;
-import android.graphics.ImageFormat;
 import android.graphics.Matrix;
 import android.graphics.Point;
 import android.graphics.RectF;
 import android.graphics.SurfaceTexture;
 import android.hardware.camera2.CameraAccessException;
 import android.hardware.camera2.CameraCaptureSession;
-import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraConstrainedHighSpeedCaptureSession;
 import android.hardware.camera2.CameraDevice;
 import android.hardware.camera2.CameraManager;
 import android.hardware.camera2.CaptureRequest;
-import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.Image;
 import android.os.Build;
 import android.os.Handler;
 import android.os.HandlerThread;
 import android.support.annotation.NonNull;
 import android.util.Log;
+import android.util.Range;
 import android.util.Size;
 import android.view.Surface;
 import android.view.WindowManager;
 
-import java.util.Arrays;
-import java.util.Collections;
-import java.util.concurrent.Semaphore;
-import java.util.concurrent.TimeUnit;
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
 
-import yo.mobile.cameraview.util.Camera2Helper;
+import yo.mobile.cameraview.util.CameraCapabilities;
+import yo.mobile.cameraview.util.CapabilityCache;
+import yo.mobile.cameraview.util.SizeList;
+import yo.mobile.cameraview.util.SizeSelector;
 
 import static android.content.ContentValues.TAG;
 
 @TargetApi(Build.VERSION_CODES.LOLLIPOP)
-public class Camera2Api implements CameraViewImpl {
+public class Camera2Api implements CameraViewImpl, CameraArbiter.Client {
 
     private CameraView cameraView;
     private Context context;
@@ -44,50 +47,220 @@ public class Camera2Api implements CameraViewImpl {
     private CameraView mTextureView;
     private String mCameraId;
     /**
-     * A {@link Semaphore} to prevent the app from exiting before closing the camera.
+     * Opening and closing the camera is serialized on the {@link CameraArbiter}'s camera thread,
+     * which also receives the device and session callbacks.
      */
-    private Semaphore mCameraOpenCloseLock = new Semaphore(1);
+    private final CameraArbiter mArbiter = CameraArbiter.get();
+    private DeviceHandle mDeviceHandle;
 
     private CameraDevice mCameraDevice;
 
     /**
      * {@link CameraDevice.StateCallback} is called when {@link CameraDevice} changes its state.
+     * Called through the {@link DeviceHandle} while this backend owns it.
      */
     private final CameraDevice.StateCallback mStateCallback = new CameraDevice.StateCallback() {
 
         @Override
         public void onOpened(@NonNull CameraDevice cameraDevice) {
             // This method is called when the camera is opened.  We start camera preview here.
-            mCameraOpenCloseLock.release();
             mCameraDevice = cameraDevice;
+            cameraView.markStartupPhase(StartupMetrics.PHASE_DEVICE_OPENED);
             createCameraPreviewSession();
         }
 
         @Override
         public void onDisconnected(@NonNull CameraDevice cameraDevice) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
+            // The handle has closed the device already.
             mCameraDevice = null;
+            mDeviceHandle = null;
+            mArbiter.release(Camera2Api.this, null);
         }
 
         @Override
         public void onError(@NonNull CameraDevice cameraDevice, int error) {
-            mCameraOpenCloseLock.release();
-            cameraDevice.close();
             mCameraDevice = null;
+            mDeviceHandle = null;
+            mArbiter.release(Camera2Api.this, null);
         }
 
     };
+
+    /**
+     * Open {@link CameraDevice} as handed between views by the {@link CameraArbiter}. Forwards the
+     * device callbacks to the backend that currently owns it.
+     */
+    private static final class DeviceHandle extends CameraArbiter.Handle {
+        CameraDevice device;
+        CameraDevice.StateCallback owner;
+
+        final CameraDevice.StateCallback callback = new CameraDevice.StateCallback() {
+
+            @Override
+            public void onOpened(@NonNull CameraDevice cameraDevice) {
+                if (isClosed()) {
+                    cameraDevice.close();
+                    return;
+                }
+                device = cameraDevice;
+                if (owner != null) {
+                    owner.onOpened(cameraDevice);
+                }
+            }
+
+            @Override
+            public void onDisconnected(@NonNull CameraDevice cameraDevice) {
+                CameraDevice.StateCallback currentOwner = owner;
+                close();
+                cameraDevice.close();
+                if (currentOwner != null) {
+                    currentOwner.onDisconnected(cameraDevice);
+                }
+            }
+
+            @Override
+            public void onError(@NonNull CameraDevice cameraDevice, int error) {
+                CameraDevice.StateCallback currentOwner = owner;
+                close();
+                cameraDevice.close();
+                if (currentOwner != null) {
+                    currentOwner.onError(cameraDevice, error);
+                }
+            }
+        };
+
+        DeviceHandle(String cameraKey) {
+            super(cameraKey);
+        }
+
+        @Override
+        void onClose() {
+            owner = null;
+            if (device != null) {
+                device.close();
+                device = null;
+            }
+        }
+    }
+
+    /**
+     * What a session is created with. Negotiated on the UI thread and handed to the camera thread
+     * in the runnable that opens, rebuilds or switches the camera, so a session never mixes the
+     * outputs of two configurations.
+     */
+    private static final class SessionConfig {
+        final String cameraId;
+        final Size previewSize;
+        final Camera2HighSpeedConfig highSpeedConfig;
+        final Camera2AnalysisStream analysisStream;
+        final Camera2FrameStream frameStream;
+        final Camera2StillCapture stillCapture;
+        final Handler backgroundHandler;
+
+        SessionConfig(String cameraId, Size previewSize, Camera2HighSpeedConfig highSpeedConfig,
+                      Camera2AnalysisStream analysisStream, Camera2FrameStream frameStream,
+                      Camera2StillCapture stillCapture, Handler backgroundHandler) {
+            this.cameraId = cameraId;
+            this.previewSize = previewSize;
+            this.highSpeedConfig = highSpeedConfig;
+            this.analysisStream = analysisStream;
+            this.frameStream = frameStream;
+            this.stillCapture = stillCapture;
+            this.backgroundHandler = backgroundHandler;
+        }
+
+        /**
+         * Closes the outputs that {@code next} doesn't use anymore, all of them if it is null. The
+         * still capture is closed on the background thread, which owns its state.
+         */
+        void closeOutputsNotIn(SessionConfig next) {
+            if (analysisStream != null && (next == null || next.analysisStream != analysisStream)) {
+                analysisStream.close();
+            }
+            if (frameStream != null && (next == null || next.frameStream != frameStream)) {
+                frameStream.close();
+            }
+            final Camera2StillCapture capture = stillCapture;
+            if (capture != null && (next == null || next.stillCapture != capture)) {
+                backgroundHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        capture.close();
+                    }
+                });
+            }
+        }
+    }
+
     private HandlerThread mBackgroundThread;
     private Handler mBackgroundHandler;
     private CaptureRequest.Builder mPreviewRequestBuilder;
+    private CaptureRequest mPreviewRequest;
+    private CameraCaptureSession mCaptureSession;
+    // Callback of the latest session requested, camera thread only. Older sessions are stale.
+    private CameraCaptureSession.StateCallback mSessionCallback;
+    private Camera2AnalysisStream mAnalysisStream;
+    private Camera2FrameStream mFrameStream;
+    // Configuration of the latest session requested, camera thread only. The fields it is built
+    // from belong to the UI thread.
+    private SessionConfig mSessionConfig;
+    private Camera2StillCapture mStillCapture;
+    // Largest JPEG size of the camera, used for still captures.
+    private Size mStillSize;
+    private boolean mFrontFacing;
+    // Set while a constrained high-speed session is requested and supported.
+    private Camera2HighSpeedConfig mHighSpeedConfig;
     private WindowManager windowManager;
+    // Reused by configureTransform, which runs on every layout change.
+    private final Matrix mTransformMatrix = new Matrix();
+    private final RectF mViewRect = new RectF();
+    private final RectF mBufferRect = new RectF();
+    // Size of the view when the camera was opened, the preview size of a switched camera is
+    // chosen for it.
+    private int mViewWidth;
+    private int mViewHeight;
+    // What the camera, preview size, high-speed mode and transform were negotiated for. They are
+    // kept while the camera is closed and reused as long as these match, e.g. on resume.
+    private boolean mNegotiated;
+    private int mNegotiatedWidth;
+    private int mNegotiatedHeight;
+    private int mNegotiatedRotation;
+    private boolean mNegotiatedFrontCamera;
+    private int mNegotiatedHighSpeedFps;
 
     @Override
     public void initialize(CameraView cameraView, Context context) {
         this.cameraView = cameraView;
         this.context = context;
+        mTextureView = cameraView;
         windowManager = (WindowManager) context.getSystemService(Context.WINDOW_SERVICE);
+        setUpCameraIds();
+    }
+
+    /**
+     * Tells the view which cameras exist. The ids are indices into the camera id list; the camera
+     * itself is picked by facing in {@link #setUpCameraOutputs(int, int)}.
+     */
+    private void setUpCameraIds() {
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            CapabilityCache cache = CapabilityCache.get(context);
+            String[] cameraIds = cache.getCamera2Ids(manager);
+            int frontCameraId = -1;
+            int backCameraId = -1;
+            for (int i = 0; i < cameraIds.length; i++) {
+                int facing = cache.getCamera2(manager, cameraIds[i]).getFacing();
+                if (facing == CameraCapabilities.FACING_FRONT && frontCameraId < 0) {
+                    frontCameraId = i;
+                } else if (facing == CameraCapabilities.FACING_BACK && backCameraId < 0) {
+                    backCameraId = i;
+                }
+            }
+            cameraView.setFrontCameraId(frontCameraId);
+            cameraView.setBackCameraId(backCameraId);
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
     }
 
     @Override
@@ -97,19 +270,83 @@ public class Camera2Api implements CameraViewImpl {
 
     @Override
     public void openCamera(SurfaceTexture surface, int width, int height) {
+        mViewWidth = width;
+        mViewHeight = height;
         startBackgroundThread();
-        setUpCameraOutputs(width, height);
-        configureTransform(surface, width, height);
+        if (!isNegotiatedFor(width, height)) {
+            setUpCameraOutputs(width, height);
+            if (mCameraId == null) {
+                cameraView.getOnCameraErrorListener().onNoCamerasAvailable();
+                stopBackgroundThread();
+                return;
+            }
+            setUpHighSpeed();
+            configureTransform(surface, width, height);
+            setNegotiated(width, height);
+        }
+        setUpAnalysisStream();
+        setUpFrameStream();
+        setUpStillCapture();
+        final SessionConfig config = newSessionConfig();
+        mArbiter.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                mSessionConfig = config;
+                mArbiter.acquire(Camera2Api.this, "camera2:" + config.cameraId);
+            }
+        });
+    }
+
+    private SessionConfig newSessionConfig() {
+        return new SessionConfig(mCameraId, mPreviewSize, mHighSpeedConfig, mAnalysisStream,
+                mFrameStream, mStillCapture, mBackgroundHandler);
+    }
+
+    /**
+     * @return True, if the camera, sizes and transform from the last open still fit. The view
+     * keeps its aspect ratio and transform while the camera is closed.
+     */
+    private boolean isNegotiatedFor(int width, int height) {
+        return mNegotiated && mCameraId != null
+                && mNegotiatedWidth == width && mNegotiatedHeight == height
+                && mNegotiatedRotation == windowManager.getDefaultDisplay().getRotation()
+                && mNegotiatedFrontCamera == cameraView.isUseFrontCamera()
+                && mNegotiatedHighSpeedFps == cameraView.getHighSpeedFps();
+    }
+
+    private void setNegotiated(int width, int height) {
+        mNegotiated = true;
+        mNegotiatedWidth = width;
+        mNegotiatedHeight = height;
+        mNegotiatedRotation = windowManager.getDefaultDisplay().getRotation();
+        mNegotiatedFrontCamera = cameraView.isUseFrontCamera();
+        mNegotiatedHighSpeedFps = cameraView.getHighSpeedFps();
+    }
+
+    /**
+     * Opens the camera, or takes over the device another view has left open.
+     */
+    @Override
+    public void onCameraGranted(CameraArbiter.Handle handle) {
+        if (handle != null) {
+            mDeviceHandle = (DeviceHandle) handle;
+            mDeviceHandle.owner = mStateCallback;
+            if (mDeviceHandle.device != null) {
+                mStateCallback.onOpened(mDeviceHandle.device);
+            }
+            // Else it is still opening and onOpened is forwarded to us.
+            return;
+        }
+        String cameraId = mSessionConfig.cameraId;
+        mDeviceHandle = new DeviceHandle("camera2:" + cameraId);
+        mDeviceHandle.owner = mStateCallback;
         CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         try {
-            if (!mCameraOpenCloseLock.tryAcquire(2500, TimeUnit.MILLISECONDS)) {
-                throw new RuntimeException("Time out waiting to lock camera opening.");
-            }
-            manager.openCamera(mCameraId, mStateCallback, mBackgroundHandler);
+            manager.openCamera(cameraId, mDeviceHandle.callback, mArbiter.getHandler());
         } catch (CameraAccessException e) {
             e.printStackTrace();
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera opening.", e);
+            mDeviceHandle = null;
+            mArbiter.release(this, null);
         }
     }
 
@@ -127,13 +364,8 @@ public class Camera2Api implements CameraViewImpl {
      */
     private void stopBackgroundThread() {
         mBackgroundThread.quitSafely();
-        try {
-            mBackgroundThread.join();
-            mBackgroundThread = null;
-            mBackgroundHandler = null;
-        } catch (InterruptedException e) {
-            e.printStackTrace();
-        }
+        mBackgroundThread = null;
+        mBackgroundHandler = null;
     }
 
     /**
@@ -143,83 +375,97 @@ public class Camera2Api implements CameraViewImpl {
      * @param height The height of available size for camera preview
      */
     private void setUpCameraOutputs(int width, int height) {
+        mCameraId = null;
         CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
         try {
-            for (String cameraId : manager.getCameraIdList()) {
-                CameraCharacteristics characteristics = manager.getCameraCharacteristics(cameraId);
-
-                // We don't use a front facing camera in this sample.
-                Integer facing = characteristics.get(CameraCharacteristics.LENS_FACING);
-                if (facing != null && facing == CameraCharacteristics.LENS_FACING_FRONT) {
+            CapabilityCache cache = CapabilityCache.get(context);
+            // Prefer a camera facing the way the view asks for, else take any.
+            int wantedFacing = cameraView.isUseFrontCamera()
+                    ? CameraCapabilities.FACING_FRONT : CameraCapabilities.FACING_BACK;
+            String chosenId = null;
+            CameraCapabilities capabilities = null;
+            for (String cameraId : cache.getCamera2Ids(manager)) {
+                CameraCapabilities candidate = cache.getCamera2(manager, cameraId);
+
+                // No stream configuration map.
+                if (candidate.getPreviewSizes() == null || candidate.getJpegSizes() == null) {
                     continue;
                 }
-
-                StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
-                if (map == null) {
-                    continue;
-                }
-
-                // For still image captures, we use the largest available size.
-                Size largest = Collections.max(
-                        Arrays.asList(map.getOutputSizes(ImageFormat.JPEG)),
-                        new Camera2Helper.CompareSizesByArea());
-
-                // Find out if we need to swap dimension to get the preview size relative to sensor
-                // coordinate.
-                int displayRotation = windowManager.getDefaultDisplay().getRotation();
-                //noinspection ConstantConditions
-                mSensorOrientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
-                boolean swappedDimensions = false;
-                switch (displayRotation) {
-                    case Surface.ROTATION_0:
-                    case Surface.ROTATION_180:
-                        if (mSensorOrientation == 90 || mSensorOrientation == 270) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    case Surface.ROTATION_90:
-                    case Surface.ROTATION_270:
-                        if (mSensorOrientation == 0 || mSensorOrientation == 180) {
-                            swappedDimensions = true;
-                        }
-                        break;
-                    default:
-                        Log.e(TAG, "Display rotation is invalid: " + displayRotation);
-                }
-                Point displaySize = new Point();
-                windowManager.getDefaultDisplay().getSize(displaySize);
-                int rotatedPreviewWidth = width;
-                int rotatedPreviewHeight = height;
-                int maxPreviewWidth = displaySize.x;
-                int maxPreviewHeight = displaySize.y;
-
-                if (swappedDimensions) {
-                    rotatedPreviewWidth = height;
-                    rotatedPreviewHeight = width;
-                    maxPreviewWidth = displaySize.y;
-                    maxPreviewHeight = displaySize.x;
+                if (capabilities == null
+                        || (candidate.getFacing() == wantedFacing && capabilities.getFacing() != wantedFacing)) {
+                    chosenId = cameraId;
+                    capabilities = candidate;
                 }
+            }
+            if (capabilities == null) {
+                return;
+            }
 
-                // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
-                // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
-                // garbage capture data.
-                mPreviewSize = Camera2Helper.chooseOptimalSize(map.getOutputSizes(SurfaceTexture.class),
-                        rotatedPreviewWidth, rotatedPreviewHeight, maxPreviewWidth,
-                        maxPreviewHeight, largest);
-
-                // We fit the aspect ratio of TextureView to the size of preview we picked.
-                int orientation = context.getResources().getConfiguration().orientation;
-                if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getWidth(), mPreviewSize.getHeight());
-                } else {
-                    mTextureView.setAspectRatio(
-                            mPreviewSize.getHeight(), mPreviewSize.getWidth());
-                }
+            // The selections below are memoized across opens.
+            SizeSelector sizeSelector = SizeSelector.forCamera(capabilities.getKey());
+            if (sizeSelector.getSizes(SizeSelector.SIZES_PREVIEW) == null) {
+                sizeSelector.setSizes(SizeSelector.SIZES_JPEG, capabilities.getJpegSizes());
+                sizeSelector.setSizes(SizeSelector.SIZES_PREVIEW, capabilities.getPreviewSizes());
+            }
+            SizeList jpegSizes = sizeSelector.getSizes(SizeSelector.SIZES_JPEG);
+            SizeList previewSizes = sizeSelector.getSizes(SizeSelector.SIZES_PREVIEW);
+
+            // For still image captures, we use the largest available size.
+            int largest = sizeSelector.selectLargest(SizeSelector.SIZES_JPEG);
+            mStillSize = new Size(jpegSizes.getWidth(largest), jpegSizes.getHeight(largest));
+            mFrontFacing = capabilities.getFacing() == CameraCapabilities.FACING_FRONT;
+
+            // Find out if we need to swap dimension to get the preview size relative to sensor
+            // coordinate.
+            int displayRotation = windowManager.getDefaultDisplay().getRotation();
+            mSensorOrientation = capabilities.getOrientation();
+            cameraView.setSensorOrientation(mSensorOrientation);
+            boolean swappedDimensions = false;
+            switch (displayRotation) {
+                case Surface.ROTATION_0:
+                case Surface.ROTATION_180:
+                    if (mSensorOrientation == 90 || mSensorOrientation == 270) {
+                        swappedDimensions = true;
+                    }
+                    break;
+                case Surface.ROTATION_90:
+                case Surface.ROTATION_270:
+                    if (mSensorOrientation == 0 || mSensorOrientation == 180) {
+                        swappedDimensions = true;
+                    }
+                    break;
+                default:
+                    Log.e(TAG, "Display rotation is invalid: " + displayRotation);
+            }
+            Point displaySize = new Point();
+            windowManager.getDefaultDisplay().getSize(displaySize);
+            int rotatedPreviewWidth = width;
+            int rotatedPreviewHeight = height;
+            int maxPreviewWidth = displaySize.x;
+            int maxPreviewHeight = displaySize.y;
+
+            if (swappedDimensions) {
+                rotatedPreviewWidth = height;
+                rotatedPreviewHeight = width;
+                maxPreviewWidth = displaySize.y;
+                maxPreviewHeight = displaySize.x;
+            }
 
-                mCameraId = cameraId;
-                return;
+            // Danger, W.R.! Attempting to use too large a preview size could  exceed the camera
+            // bus' bandwidth limitation, resulting in gorgeous previews but the storage of
+            // garbage capture data.
+            int optimal = sizeSelector.selectOptimalSize(rotatedPreviewWidth, rotatedPreviewHeight,
+                    maxPreviewWidth, maxPreviewHeight,
+                    jpegSizes.getWidth(largest), jpegSizes.getHeight(largest));
+            if (optimal < 0) {
+                Log.e(TAG, "Couldn't find any suitable preview size");
+                optimal = 0;
             }
+            mPreviewSize = new Size(previewSizes.getWidth(optimal), previewSizes.getHeight(optimal));
+
+            updateAspectRatio();
+
+            mCameraId = chosenId;
         } catch (CameraAccessException e) {
             e.printStackTrace();
         } catch (NullPointerException e) {
@@ -228,94 +474,501 @@ public class Camera2Api implements CameraViewImpl {
         }
     }
 
+    /**
+     * We fit the aspect ratio of TextureView to the size of preview we picked.
+     */
+    private void updateAspectRatio() {
+        int orientation = context.getResources().getConfiguration().orientation;
+        if (orientation == Configuration.ORIENTATION_LANDSCAPE) {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } else {
+            mTextureView.setAspectRatio(
+                    mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        }
+    }
+
+    /**
+     * Selects the high-speed configuration if {@link CameraView#getHighSpeedFps()} is set and
+     * replaces the preview size with its size. Falls back to the normal preview when the device
+     * or camera can't run at that frame rate.
+     */
+    private void setUpHighSpeed() {
+        mHighSpeedConfig = null;
+        int fps = cameraView.getHighSpeedFps();
+        if (fps <= 0) {
+            return;
+        }
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.M) {
+            Log.w(TAG, "High-speed capture needs API 23, using the normal preview");
+            return;
+        }
+        CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
+        try {
+            mHighSpeedConfig = Camera2HighSpeedConfig.select(manager.getCameraCharacteristics(mCameraId),
+                    fps, mPreviewSize.getWidth(), mPreviewSize.getHeight());
+        } catch (CameraAccessException e) {
+            e.printStackTrace();
+        }
+        if (mHighSpeedConfig == null) {
+            Log.w(TAG, "Camera " + mCameraId + " doesn't support " + fps + " fps, using the normal preview");
+            return;
+        }
+        mPreviewSize = mHighSpeedConfig.size;
+        updateAspectRatio();
+    }
+
+    /**
+     * Creates the analysis {@link android.media.ImageReader} output if an {@link ImageAnalyzer}
+     * is set. Frames are delivered at the preview size.
+     */
+    private void setUpAnalysisStream() {
+        final ImageAnalyzer imageAnalyzer = cameraView.getImageAnalyzer();
+        final AnalysisPipeline pipeline = cameraView.getAnalysisPipeline();
+        if ((imageAnalyzer == null && pipeline.isEmpty()) || mPreviewSize == null) {
+            return;
+        }
+        if (mHighSpeedConfig != null) {
+            // High-speed sessions only accept preview and video encoder outputs.
+            Log.w(TAG, "The analysis stream is not available in high-speed mode");
+            return;
+        }
+        ImageAnalyzer analyzer;
+        ImageAnalyzer.Backpressure backpressure;
+        Executor executor;
+        if (imageAnalyzer == null) {
+            analyzer = pipeline;
+            backpressure = ImageAnalyzer.Backpressure.KEEP_LATEST;
+            executor = AnalysisPipeline.getFanOutExecutor();
+        } else if (pipeline.isEmpty()) {
+            analyzer = imageAnalyzer;
+            backpressure = cameraView.getImageAnalyzerBackpressure();
+            executor = cameraView.getImageAnalyzerExecutor();
+        } else {
+            // The fan-out only copies, so it doesn't add much to the image analyzer's time.
+            analyzer = new ImageAnalyzer() {
+                @Override
+                public void analyze(Image image) {
+                    pipeline.analyze(image);
+                    imageAnalyzer.analyze(image);
+                }
+            };
+            backpressure = cameraView.getImageAnalyzerBackpressure();
+            executor = cameraView.getImageAnalyzerExecutor();
+        }
+        mAnalysisStream = new Camera2AnalysisStream(mPreviewSize.getWidth(), mPreviewSize.getHeight(),
+                analyzer, backpressure, executor, mBackgroundHandler);
+    }
+
+    /**
+     * Creates the YUV output for frame listeners, if there are any. The stream stays until the
+     * camera is closed, listeners added or removed meanwhile get frames from it or not.
+     */
+    private void setUpFrameStream() {
+        CameraView.OnDirectFrameListener directListener = cameraView.getOnDirectFrameListener();
+        FrameDispatcher dispatcher = cameraView.getFrameDispatcher();
+        if ((directListener == null && dispatcher.isEmpty()) || mPreviewSize == null) {
+            return;
+        }
+        if (mHighSpeedConfig != null) {
+            Log.w(TAG, "Frame listeners are not available in high-speed mode");
+            return;
+        }
+        mFrameStream = new Camera2FrameStream(mPreviewSize.getWidth(), mPreviewSize.getHeight(),
+                Camera2FrameStream.DEFAULT_FRAME_COUNT, directListener, dispatcher, mBackgroundHandler);
+    }
+
+    /**
+     * An open stream picks up the listeners per frame. If the first listener is added while the
+     * camera is open without a frame stream, the stream is created and the session rebuilt with
+     * it, as a session can't gain outputs. The still capture output is dropped if there is no
+     * room for it next to the stream.
+     */
+    @Override
+    public void onFrameListenersChanged() {
+        if (mBackgroundThread == null || mFrameStream != null) {
+            return;
+        }
+        setUpFrameStream();
+        if (mFrameStream == null) {
+            return;
+        }
+        if (mStillCapture != null && !hasRoomForStillCapture()) {
+            mStillCapture = null;
+        }
+        final SessionConfig config = newSessionConfig();
+        mArbiter.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mCaptureSession) {
+                    mCaptureSession.close();
+                    mCaptureSession = null;
+                }
+                if (null != mSessionConfig) {
+                    mSessionConfig.closeOutputsNotIn(config);
+                }
+                mSessionConfig = config;
+                // If the camera is still opening, its first session is created with the stream.
+                if (mCameraDevice != null) {
+                    createCameraPreviewSession();
+                }
+            }
+        });
+    }
+
+    /**
+     * Creates the JPEG output for still captures at the largest size, unless the session can't
+     * take another output.
+     */
+    private void setUpStillCapture() {
+        if (mStillSize == null) {
+            return;
+        }
+        if (mHighSpeedConfig != null) {
+            Log.w(TAG, "Still capture is not available in high-speed mode");
+            return;
+        }
+        if (!hasRoomForStillCapture()) {
+            return;
+        }
+        mStillCapture = new Camera2StillCapture(mStillSize.getWidth(), mStillSize.getHeight(),
+                Camera2StillCapture.DEFAULT_MAX_IMAGES, mBackgroundHandler);
+    }
+
+    private boolean hasRoomForStillCapture() {
+        int outputs = (mAnalysisStream != null ? 1 : 0) + (mFrameStream != null ? 1 : 0)
+                + (cameraView.getRecordingSurface() != null ? 1 : 0);
+        if (outputs >= 2) {
+            // Preview and two more outputs already use up the guaranteed stream combinations.
+            Log.w(TAG, "Still capture is not available with more than one of an analyzer, frame "
+                    + "listeners and a recording surface");
+            return false;
+        }
+        return true;
+    }
+
+    @Override
+    public void takePicture(final File[] files, final CameraView.OnPictureTakenListener listener) {
+        Camera2StillCapture stillCapture = mStillCapture;
+        if (stillCapture == null) {
+            mTextureView.post(new Runnable() {
+                @Override
+                public void run() {
+                    for (File file : files) {
+                        listener.onPictureFailed(file, new IllegalStateException("Still capture is not available."));
+                    }
+                }
+            });
+            return;
+        }
+        stillCapture.capture(files, getJpegOrientation(), cameraView.getFsyncPolicy(), listener);
+    }
+
+    /**
+     * @return Rotation of the JPEG so it is upright for the current display rotation
+     */
+    private int getJpegOrientation() {
+        int degrees = 90 * windowManager.getDefaultDisplay().getRotation();
+        int sensorOrientation = mSensorOrientation != null ? mSensorOrientation : 0;
+        if (mFrontFacing) {
+            return (sensorOrientation + degrees) % 360;
+        }
+        return (sensorOrientation - degrees + 360) % 360;
+    }
+
+    /**
+     * Closes the session and gives the device back to the {@link CameraArbiter}, which keeps it
+     * open for the next view for a moment. Nothing is waited for: the outputs are closed and the
+     * background thread quits on the camera thread, after the session.
+     */
     @Override
     public void releaseCamera() {
-        try {
-            mCameraOpenCloseLock.acquire();
-//            if (null != mCaptureSession) {
-//                mCaptureSession.close();
-//                mCaptureSession = null;
-//            }
-            if (null != mCameraDevice) {
-                mCameraDevice.close();
+        mAnalysisStream = null;
+        mFrameStream = null;
+        mStillCapture = null;
+        final HandlerThread backgroundThread = mBackgroundThread;
+        mBackgroundThread = null;
+        mBackgroundHandler = null;
+        mArbiter.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mCaptureSession) {
+                    mCaptureSession.close();
+                    mCaptureSession = null;
+                }
                 mCameraDevice = null;
+                DeviceHandle handle = mDeviceHandle;
+                mDeviceHandle = null;
+                if (handle != null) {
+                    handle.owner = null;
+                }
+                mArbiter.release(Camera2Api.this, handle);
+                if (null != mSessionConfig) {
+                    mSessionConfig.closeOutputsNotIn(null);
+                    mSessionConfig = null;
+                }
+                if (null != backgroundThread) {
+                    // Runs the still capture close, and whatever readers have posted, first.
+                    backgroundThread.quitSafely();
+                }
             }
-//            if (null != mImageReader) {
-//                mImageReader.close();
-//                mImageReader = null;
-//            }
-        } catch (InterruptedException e) {
-            throw new RuntimeException("Interrupted while trying to lock camera closing.", e);
-        } finally {
-            mCameraOpenCloseLock.release();
+        });
+    }
+
+    /**
+     * Releases the texture on the camera thread, after the session using it has been closed.
+     */
+    @Override
+    public void releaseSurface(final SurfaceTexture surface) {
+        mArbiter.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                surface.release();
+            }
+        });
+    }
+
+    /**
+     * Picks the camera for the new facing on the UI thread, from the capability cache, then
+     * closes the old device and opens the new one on the camera thread. {@link CameraDevice#close()}
+     * returns before the device is actually closed, so the open of the new camera overlaps it.
+     * The surface texture is kept and only gets a new buffer size in the new session. The old
+     * outputs are closed on the camera thread, with the session that uses them.
+     */
+    @Override
+    public void switchCamera() {
+        if (mBackgroundThread == null) {
+            return;
+        }
+        mAnalysisStream = null;
+        mFrameStream = null;
+        mStillCapture = null;
+        setUpCameraOutputs(mViewWidth, mViewHeight);
+        if (mCameraId == null) {
+            releaseCamera();
+            cameraView.getOnCameraErrorListener().onNoCamerasAvailable();
+            return;
         }
+        setUpHighSpeed();
+        setUpAnalysisStream();
+        setUpFrameStream();
+        setUpStillCapture();
+        configureTransform(mViewWidth, mViewHeight);
+        setNegotiated(mViewWidth, mViewHeight);
+        final SessionConfig config = newSessionConfig();
+        mArbiter.getHandler().post(new Runnable() {
+            @Override
+            public void run() {
+                if (null != mCaptureSession) {
+                    mCaptureSession.close();
+                    mCaptureSession = null;
+                }
+                if (null != mSessionConfig) {
+                    mSessionConfig.closeOutputsNotIn(config);
+                }
+                mSessionConfig = config;
+                mCameraDevice = null;
+                DeviceHandle handle = mDeviceHandle;
+                mDeviceHandle = null;
+                if (handle != null) {
+                    handle.owner = null;
+                }
+                mArbiter.switchCamera(Camera2Api.this, handle, "camera2:" + config.cameraId);
+            }
+        });
     }
 
+    /**
+     * Only updates the transform of the texture view. The camera device and the capture session
+     * are kept, the preview buffers keep their size and are scaled into the new view bounds.
+     */
     @Override
     public void configureTransform(SurfaceTexture surface, int width, int height) {
-
+        if (mPreviewSize == null) {
+            return;
+        }
+        configureTransform(width, height);
     }
 
     /**
-     * Creates a new {@link CameraCaptureSession} for camera preview.
+     * Creates a new {@link CameraCaptureSession} for camera preview. Called on the camera thread.
      */
     private void createCameraPreviewSession() {
+        final SessionConfig config = mSessionConfig;
         try {
             SurfaceTexture texture = mTextureView.getSurfaceTexture();
             assert texture != null;
 
             // We configure the size of default buffer to be the size of camera preview we want.
-            texture.setDefaultBufferSize(mPreviewSize.getWidth(), mPreviewSize.getHeight());
+            Size previewSize = config.previewSize;
+            texture.setDefaultBufferSize(previewSize.getWidth(), previewSize.getHeight());
 
             // This is the output Surface we need to start preview.
             Surface surface = new Surface(texture);
+            if (config.highSpeedConfig != null) {
+                createHighSpeedSession(surface, config);
+                return;
+            }
 
             // We set up a CaptureRequest.Builder with the output Surface.
             mPreviewRequestBuilder
                     = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_PREVIEW);
             mPreviewRequestBuilder.addTarget(surface);
+            List<Surface> outputs = new ArrayList<>(4);
+            outputs.add(surface);
+            if (config.analysisStream != null) {
+                mPreviewRequestBuilder.addTarget(config.analysisStream.getSurface());
+                outputs.add(config.analysisStream.getSurface());
+            }
+            if (config.frameStream != null) {
+                mPreviewRequestBuilder.addTarget(config.frameStream.getSurface());
+                outputs.add(config.frameStream.getSurface());
+            }
+            // Still captures target the JPEG output only when requested, the preview never does.
+            final Camera2StillCapture stillCapture = config.stillCapture;
+            if (stillCapture != null) {
+                outputs.add(stillCapture.getSurface());
+            }
+            // The camera renders straight into the encoder, no frame goes through the Java heap.
+            Surface recordingSurface = cameraView.getRecordingSurface();
+            if (recordingSurface != null) {
+                mPreviewRequestBuilder.addTarget(recordingSurface);
+                outputs.add(recordingSurface);
+            }
 
             // Here, we create a CameraCaptureSession for camera preview.
-//            mCameraDevice.createCaptureSession(Arrays.asList(surface, mImageReader.getSurface()),
-//                    new CameraCaptureSession.StateCallback() {
-//
-//                        @Override
-//                        public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
-//                            // The camera is already closed
-//                            if (null == mCameraDevice) {
-//                                return;
-//                            }
-//
-//                            // When the session is ready, we start displaying the preview.
-//                            mCaptureSession = cameraCaptureSession;
-//                            try {
-//                                // Auto focus should be continuous for camera preview.
-//                                mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
-//                                        CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
-//                                // Flash is automatically enabled when necessary.
-//                                setAutoFlash(mPreviewRequestBuilder);
-//
-//                                // Finally, we start displaying the camera preview.
-//                                mPreviewRequest = mPreviewRequestBuilder.build();
-//                                mCaptureSession.setRepeatingRequest(mPreviewRequest,
-//                                        mCaptureCallback, mBackgroundHandler);
-//                            } catch (CameraAccessException e) {
-//                                e.printStackTrace();
-//                            }
-//                        }
-//
-//                        @Override
-//                        public void onConfigureFailed(
-//                                @NonNull CameraCaptureSession cameraCaptureSession) {
-//                            showToast("Failed");
-//                        }
-//                    }, null
-//            );
+            mSessionCallback = new CameraCaptureSession.StateCallback() {
+
+                @Override
+                public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                    if (isStaleSession(cameraCaptureSession, this)) {
+                        return;
+                    }
+
+                    // When the session is ready, we start displaying the preview.
+                    mCaptureSession = cameraCaptureSession;
+                    cameraView.markStartupPhase(StartupMetrics.PHASE_SESSION_CONFIGURED);
+                    // The preview template's default range, auto exposure keeps to it.
+                    Range<Integer> fpsRange = mPreviewRequestBuilder.get(
+                            CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE);
+                    cameraView.setPreviewFrameRate(fpsRange != null ? fpsRange.getUpper() : 0);
+                    try {
+                        // Auto focus should be continuous for camera preview.
+                        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                                CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+
+                        // Finally, we start displaying the camera preview.
+                        mPreviewRequest = mPreviewRequestBuilder.build();
+                        mCaptureSession.setRepeatingRequest(mPreviewRequest,
+                                null, config.backgroundHandler);
+
+                        if (stillCapture != null) {
+                            CaptureRequest.Builder stillRequestBuilder = mCameraDevice
+                                    .createCaptureRequest(CameraDevice.TEMPLATE_STILL_CAPTURE);
+                            stillRequestBuilder.addTarget(stillCapture.getSurface());
+                            stillRequestBuilder.set(CaptureRequest.CONTROL_AF_MODE,
+                                    CaptureRequest.CONTROL_AF_MODE_CONTINUOUS_PICTURE);
+                            stillCapture.setSession(cameraCaptureSession, stillRequestBuilder);
+                        }
+                    } catch (CameraAccessException e) {
+                        e.printStackTrace();
+                    }
+                }
+
+                @Override
+                public void onConfigureFailed(
+                        @NonNull CameraCaptureSession cameraCaptureSession) {
+                    if (!isStaleSession(cameraCaptureSession, this)) {
+                        onSessionConfigureFailed();
+                    }
+                }
+            };
+            mCameraDevice.createCaptureSession(outputs, mSessionCallback, mArbiter.getHandler());
         } catch (CameraAccessException e) {
             e.printStackTrace();
         }
     }
 
+    /**
+     * Creates a {@link CameraConstrainedHighSpeedCaptureSession} that streams to the preview and
+     * the recording surface, if set, at the frame rate of the high-speed configuration.
+     */
+    @TargetApi(Build.VERSION_CODES.M)
+    private void createHighSpeedSession(Surface surface, final SessionConfig config)
+            throws CameraAccessException {
+        mPreviewRequestBuilder = mCameraDevice.createCaptureRequest(CameraDevice.TEMPLATE_RECORD);
+        mPreviewRequestBuilder.addTarget(surface);
+        mPreviewRequestBuilder.set(CaptureRequest.CONTROL_AE_TARGET_FPS_RANGE,
+                config.highSpeedConfig.fpsRange);
+        List<Surface> outputs = new ArrayList<>(2);
+        outputs.add(surface);
+        Surface recordingSurface = cameraView.getRecordingSurface();
+        if (recordingSurface != null) {
+            mPreviewRequestBuilder.addTarget(recordingSurface);
+            outputs.add(recordingSurface);
+        }
+
+        mSessionCallback = new CameraCaptureSession.StateCallback() {
+
+            @Override
+            public void onConfigured(@NonNull CameraCaptureSession cameraCaptureSession) {
+                if (isStaleSession(cameraCaptureSession, this)) {
+                    return;
+                }
+
+                mCaptureSession = cameraCaptureSession;
+                cameraView.markStartupPhase(StartupMetrics.PHASE_SESSION_CONFIGURED);
+                cameraView.setPreviewFrameRate(config.highSpeedConfig.fpsRange.getUpper());
+                try {
+                    // High-speed requests have to be submitted as bursts, one request
+                    // per preview frame.
+                    mPreviewRequest = mPreviewRequestBuilder.build();
+                    List<CaptureRequest> burst = ((CameraConstrainedHighSpeedCaptureSession) cameraCaptureSession)
+                            .createHighSpeedRequestList(mPreviewRequest);
+                    mCaptureSession.setRepeatingBurst(burst, null, config.backgroundHandler);
+                } catch (CameraAccessException e) {
+                    e.printStackTrace();
+                }
+            }
+
+            @Override
+            public void onConfigureFailed(
+                    @NonNull CameraCaptureSession cameraCaptureSession) {
+                if (!isStaleSession(cameraCaptureSession, this)) {
+                    onSessionConfigureFailed();
+                }
+            }
+        };
+        mCameraDevice.createConstrainedHighSpeedCaptureSession(outputs, mSessionCallback,
+                mArbiter.getHandler());
+    }
+
+    /**
+     * Session callbacks are delivered on the camera thread, like the device callbacks and the
+     * code that closes the device, so a session that was configured after its device was
+     * released or switched away from, or after a newer session was requested, is seen here and
+     * closed instead of started.
+     */
+    private boolean isStaleSession(CameraCaptureSession session,
+                                   CameraCaptureSession.StateCallback callback) {
+        if (callback == mSessionCallback && mCameraDevice != null
+                && session.getDevice() == mCameraDevice) {
+            return false;
+        }
+        session.close();
+        return true;
+    }
+
+    private void onSessionConfigureFailed() {
+        mTextureView.post(new Runnable() {
+            @Override
+            public void run() {
+                cameraView.getOnCameraErrorListener().onCameraOpenFailed(
+                        new IllegalStateException("Failed to configure the preview session."));
+            }
+        });
+    }
+
     /**
      * Configures the necessary {@link android.graphics.Matrix} transformation to `mTextureView`.
      * This method should be called after the camera preview size is determined in
@@ -327,9 +980,12 @@ public class Camera2Api implements CameraViewImpl {
     private void configureTransform(int viewWidth, int viewHeight) {
 
         int rotation = windowManager.getDefaultDisplay().getRotation();
-        Matrix matrix = new Matrix();
-        RectF viewRect = new RectF(0, 0, viewWidth, viewHeight);
-        RectF bufferRect = new RectF(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
+        Matrix matrix = mTransformMatrix;
+        matrix.reset();
+        RectF viewRect = mViewRect;
+        viewRect.set(0, 0, viewWidth, viewHeight);
+        RectF bufferRect = mBufferRect;
+        bufferRect.set(0, 0, mPreviewSize.getHeight(), mPreviewSize.getWidth());
         float centerX = viewRect.centerX();
         float centerY = viewRect.centerY();
         if (Surface.ROTATION_90 == rotation || Surface.ROTATION_270 == rotation) {
@@ -0,0 +1,145 @@
+package yo.mobile.cameraview;
+
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.util.Log;
+import android.view.Surface;
+
+import java.util.ArrayDeque;
+
+/**
+ * YUV_420_888 {@link ImageReader} output for the view's {@link CameraView.OnFrameListener}s and
+ * {@link CameraView.OnDirectFrameListener}. Each {@link DirectFrame} wraps the plane buffers of an
+ * {@link Image}, which are direct already, so every listener reads the same image, native code
+ * included, without a copy; the image is closed with the frame's last reference.
+ * <p>
+ * The reader has one image more than there are frames, so it can always acquire the next image,
+ * and drops it when every frame is still held by consumers.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2FrameStream implements ImageReader.OnImageAvailableListener, Frame.Owner {
+
+    private static final String TAG = Camera2FrameStream.class.getSimpleName();
+
+    static final int DEFAULT_FRAME_COUNT = 3;
+
+    private final ImageReader reader;
+    private final CameraView.OnDirectFrameListener directListener;
+    private final FrameDispatcher dispatcher;
+    private final int frameCount;
+    // Guarded by this.
+    private final ArrayDeque<DirectFrame> free;
+    private boolean closed;
+    private volatile long droppedFrames;
+
+    /**
+     * @param directListener The direct frame listener, or null
+     * @param dispatcher     The view's frame listeners, whichever are registered when a frame
+     *                       arrives get it
+     * @param handler        Handler of the camera thread; the listeners are called there.
+     */
+    Camera2FrameStream(int width, int height, int frameCount, CameraView.OnDirectFrameListener directListener,
+                       FrameDispatcher dispatcher, Handler handler) {
+        this.directListener = directListener;
+        this.dispatcher = dispatcher;
+        this.frameCount = frameCount;
+        free = new ArrayDeque<>(frameCount);
+        for (int i = 0; i < frameCount; i++) {
+            free.add(new DirectFrame(this));
+        }
+        reader = ImageReader.newInstance(width, height, ImageFormat.YUV_420_888, frameCount + 1);
+        reader.setOnImageAvailableListener(this, handler);
+    }
+
+    Surface getSurface() {
+        return reader.getSurface();
+    }
+
+    /**
+     * @return number of frames dropped because every frame was held.
+     */
+    long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image;
+        DirectFrame frame;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            try {
+                image = reader.acquireNextImage();
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Frame dropped: " + e.getMessage());
+                droppedFrames++;
+                return;
+            }
+            if (image == null) {
+                return;
+            }
+            frame = free.poll();
+            if (frame == null) {
+                image.close();
+                droppedFrames++;
+                return;
+            }
+        }
+        Image.Plane[] planes = image.getPlanes();
+        for (int i = 0; i < planes.length; i++) {
+            frame.setPlane(i, planes[i].getBuffer(), planes[i].getRowStride(), planes[i].getPixelStride());
+        }
+        frame.set(image.getWidth(), image.getHeight(), image.getFormat());
+        frame.setSource(image);
+        // The reference of this call, dropped once every listener has taken its own.
+        frame.open(image.getTimestamp(), dispatcher.getRotation());
+        if (directListener != null) {
+            directListener.onDirectFrame(frame.retain());
+        }
+        dispatcher.dispatch(frame);
+        frame.release();
+    }
+
+    @Override
+    public void recycle(Frame frame) {
+        Image image = (Image) frame.getSource();
+        frame.setSource(null);
+        for (int i = 0; i < frame.getPlaneCount(); i++) {
+            frame.setPlane(i, null, 0, 0);
+        }
+        boolean closeReader;
+        synchronized (this) {
+            image.close();
+            free.add((DirectFrame) frame);
+            closeReader = closed && free.size() == frameCount;
+        }
+        if (closeReader) {
+            reader.close();
+        }
+    }
+
+    /**
+     * Stops the stream. Frames still held stay valid; the reader is closed with the last of them.
+     */
+    void close() {
+        boolean closeReader;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeReader = free.size() == frameCount;
+        }
+        reader.setOnImageAvailableListener(null, null);
+        if (closeReader) {
+            reader.close();
+        }
+    }
+}
@@ -0,0 +1,88 @@
+package yo.mobile.cameraview;
+
+import android.annotation.TargetApi;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.os.Build;
+import android.util.Range;
+import android.util.Size;
+
+/**
+ * Size and frame rate range of a constrained high-speed capture session.
+ */
+@TargetApi(Build.VERSION_CODES.M)
+final class Camera2HighSpeedConfig {
+
+    final Size size;
+    final Range<Integer> fpsRange;
+
+    private Camera2HighSpeedConfig(Size size, Range<Integer> fpsRange) {
+        this.size = size;
+        this.fpsRange = fpsRange;
+    }
+
+    /**
+     * Picks the high-speed video size closest in area to the preferred size that supports
+     * {@code fps}. A fixed range of {@code [fps, fps]} is preferred, so every frame is delivered
+     * at the full rate.
+     *
+     * @return The configuration, or null if the camera has no constrained high-speed capability
+     * or can't run at {@code fps}
+     */
+    static Camera2HighSpeedConfig select(CameraCharacteristics characteristics, int fps,
+                                         int preferredWidth, int preferredHeight) {
+        if (!hasCapability(characteristics)) {
+            return null;
+        }
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map == null) {
+            return null;
+        }
+        long preferredArea = (long) preferredWidth * preferredHeight;
+        Size bestSize = null;
+        Range<Integer> bestRange = null;
+        long bestDiff = Long.MAX_VALUE;
+        for (Size size : map.getHighSpeedVideoSizes()) {
+            Range<Integer> range = selectFpsRange(map.getHighSpeedVideoFpsRangesFor(size), fps);
+            if (range == null) {
+                continue;
+            }
+            long diff = Math.abs((long) size.getWidth() * size.getHeight() - preferredArea);
+            if (diff < bestDiff) {
+                bestSize = size;
+                bestRange = range;
+                bestDiff = diff;
+            }
+        }
+        return bestSize != null ? new Camera2HighSpeedConfig(bestSize, bestRange) : null;
+    }
+
+    private static boolean hasCapability(CameraCharacteristics characteristics) {
+        int[] capabilities = characteristics.get(CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES);
+        if (capabilities == null) {
+            return false;
+        }
+        for (int capability : capabilities) {
+            if (capability == CameraCharacteristics.REQUEST_AVAILABLE_CAPABILITIES_CONSTRAINED_HIGH_SPEED_VIDEO) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static Range<Integer> selectFpsRange(Range<Integer>[] ranges, int fps) {
+        Range<Integer> variable = null;
+        for (Range<Integer> range : ranges) {
+            if (range.getUpper() != fps) {
+                continue;
+            }
+            if (range.getLower() == fps) {
+                return range;
+            }
+            if (variable == null) {
+                variable = range;
+            }
+        }
+        return variable;
+    }
+}
@@ -0,0 +1,407 @@
+package yo.mobile.cameraview;
+
+
+import android.annotation.TargetApi;
+import android.graphics.ImageFormat;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCaptureSession;
+import android.hardware.camera2.CaptureFailure;
+import android.hardware.camera2.CaptureRequest;
+import android.media.Image;
+import android.media.ImageReader;
+import android.os.Build;
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import yo.mobile.cameraview.util.Camera1Helper;
+import yo.mobile.cameraview.util.MediaWriter;
+
+/**
+ * JPEG {@link ImageReader} output for single shots and bursts.
+ * <p>
+ * Every JPEG is written to its file on a writer thread by a {@link MediaWriter}, straight from the
+ * image plane's direct buffer, so it is never copied into the Java heap. Captures are
+ * only submitted while a reader image is free for them: a capture holds an image from submission
+ * until its file is written, and at most {@code maxImages} are in flight. The rest of a longer
+ * burst waits and is submitted as images are written, so the reader never runs out and the
+ * camera thread never blocks on the disk.
+ * <p>
+ * Images are paired with their captures by sensor timestamp, from {@code onCaptureStarted}, as
+ * a failed capture or a reordered image would shift an order based pairing onto the wrong files.
+ * All capture bookkeeping is confined to the camera thread passed in; the writer only posts back
+ * to it.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class Camera2StillCapture implements ImageReader.OnImageAvailableListener {
+
+    private static final String TAG = Camera2StillCapture.class.getSimpleName();
+
+    static final int DEFAULT_MAX_IMAGES = 4;
+    // Frames waiting for a free image; more are rejected.
+    static final int MAX_QUEUED_FRAMES = 32;
+
+    // One writer for all streams, its batch is flushed whenever it runs out of work.
+    private static ThreadPoolExecutor sWriterExecutor;
+    private static MediaWriter sWriter;
+
+    private static final class PendingCapture {
+        final File file;
+        final int jpegOrientation;
+        final MediaWriter.FsyncPolicy fsyncPolicy;
+        final CameraView.OnPictureTakenListener listener;
+        // Sensor timestamp of the capture, -1 until it has started.
+        long timestamp = -1;
+
+        PendingCapture(File file, int jpegOrientation, MediaWriter.FsyncPolicy fsyncPolicy,
+              CameraView.OnPictureTakenListener listener) {
+            this.file = file;
+            this.jpegOrientation = jpegOrientation;
+            this.fsyncPolicy = fsyncPolicy;
+            this.listener = listener;
+        }
+    }
+
+    private final ImageReader reader;
+    private final int maxImages;
+    private final Handler handler;
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    private final Executor writerExecutor;
+    // Camera thread only.
+    private final ArrayDeque<PendingCapture> waiting = new ArrayDeque<>();
+    private final ArrayDeque<PendingCapture> submitted = new ArrayDeque<>();
+    // Images that arrived before the start of their capture was reported.
+    private final ArrayDeque<Image> early = new ArrayDeque<>();
+    private int inFlight;
+    private CameraCaptureSession session;
+    private CaptureRequest.Builder requestBuilder;
+    // Images written since the camera thread last looked.
+    private final AtomicInteger written = new AtomicInteger();
+    // Guarded by this, the reader is closed once no writer holds an image.
+    private int writing;
+    private boolean closed;
+
+    private final Runnable writtenTask = new Runnable() {
+        @Override
+        public void run() {
+            inFlight -= written.getAndSet(0);
+            submit();
+        }
+    };
+
+    private final CameraCaptureSession.CaptureCallback captureCallback = new CameraCaptureSession.CaptureCallback() {
+        @Override
+        public void onCaptureStarted(CameraCaptureSession session, CaptureRequest request,
+                                     long timestamp, long frameNumber) {
+            PendingCapture pending = (PendingCapture) request.getTag();
+            if (submitted.contains(pending)) {
+                pending.timestamp = timestamp;
+                pairEarlyImages();
+            }
+        }
+
+        @Override
+        public void onCaptureFailed(CameraCaptureSession session, CaptureRequest request, CaptureFailure failure) {
+            // The capture is taken out, so an image the failed capture may still produce is dropped.
+            PendingCapture pending = (PendingCapture) request.getTag();
+            if (submitted.remove(pending)) {
+                inFlight--;
+                postFailed(pending, new IllegalStateException("Still capture failed."));
+                pairEarlyImages();
+                submit();
+            }
+        }
+    };
+
+    /**
+     * @param handler Handler of the camera thread; reader and capture callbacks are delivered there.
+     */
+    Camera2StillCapture(int width, int height, int maxImages, Handler handler) {
+        this.maxImages = maxImages;
+        this.handler = handler;
+        this.writerExecutor = getWriterExecutor();
+        reader = ImageReader.newInstance(width, height, ImageFormat.JPEG, maxImages);
+        reader.setOnImageAvailableListener(this, handler);
+    }
+
+    private static synchronized Executor getWriterExecutor() {
+        if (sWriterExecutor == null) {
+            sWriter = new MediaWriter(MediaWriter.FsyncPolicy.NEVER, MediaWriter.DEFAULT_BATCH_SIZE);
+            // Unbounded, but every stream has at most maxImages pictures in it.
+            sWriterExecutor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>());
+        }
+        return sWriterExecutor;
+    }
+
+    Surface getSurface() {
+        return reader.getSurface();
+    }
+
+    /**
+     * Sets the session captures are submitted to. Can be called from any thread.
+     *
+     * @param requestBuilder Still capture request targeting {@link #getSurface()}
+     */
+    void setSession(final CameraCaptureSession session, final CaptureRequest.Builder requestBuilder) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (closed) {
+                    return;
+                }
+                Camera2StillCapture.this.session = session;
+                Camera2StillCapture.this.requestBuilder = requestBuilder;
+                submit();
+            }
+        });
+    }
+
+    /**
+     * Captures one JPEG per file, as a single burst as far as free images allow. Can be called
+     * from any thread; the listener is called on the UI thread for every file.
+     */
+    void capture(final File[] files, final int jpegOrientation, final MediaWriter.FsyncPolicy fsyncPolicy,
+                 final CameraView.OnPictureTakenListener listener) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                for (File file : files) {
+                    PendingCapture pending = new PendingCapture(file, jpegOrientation, fsyncPolicy, listener);
+                    if (closed) {
+                        postFailed(pending, new IllegalStateException("Camera is closed."));
+                    } else if (waiting.size() >= MAX_QUEUED_FRAMES) {
+                        postFailed(pending, new IllegalStateException("Too many pictures pending."));
+                    } else {
+                        waiting.add(pending);
+                    }
+                }
+                submit();
+            }
+        });
+    }
+
+    private void submit() {
+        if (closed || session == null || waiting.isEmpty() || inFlight >= maxImages) {
+            return;
+        }
+        int count = Math.min(maxImages - inFlight, waiting.size());
+        List<CaptureRequest> burst = new ArrayList<>(count);
+        for (int i = 0; i < count; i++) {
+            PendingCapture pending = waiting.poll();
+            requestBuilder.setTag(pending);
+            requestBuilder.set(CaptureRequest.JPEG_ORIENTATION, pending.jpegOrientation);
+            burst.add(requestBuilder.build());
+            submitted.add(pending);
+        }
+        inFlight += count;
+        try {
+            if (count == 1) {
+                session.capture(burst.get(0), captureCallback, handler);
+            } else {
+                session.captureBurst(burst, captureCallback, handler);
+            }
+        } catch (CameraAccessException | IllegalStateException e) {
+            Log.e(TAG, "Still capture not submitted", e);
+            for (CaptureRequest request : burst) {
+                PendingCapture pending = (PendingCapture) request.getTag();
+                submitted.remove(pending);
+                inFlight--;
+                postFailed(pending, e);
+            }
+        }
+    }
+
+    @Override
+    public void onImageAvailable(ImageReader reader) {
+        Image image;
+        try {
+            image = reader.acquireNextImage();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Still image not acquired: " + e.getMessage());
+            return;
+        }
+        if (image == null) {
+            return;
+        }
+        PendingCapture pending = takeSubmitted(image.getTimestamp());
+        if (pending != null) {
+            write(pending, image);
+        } else if (hasUnstartedFrame()) {
+            early.add(image);
+        } else {
+            // From a capture that failed or belongs to a closed stream.
+            image.close();
+        }
+    }
+
+    /**
+     * Writes the early images whose captures have started since, and drops those that can't
+     * belong to a capture any more.
+     */
+    private void pairEarlyImages() {
+        boolean unstarted = hasUnstartedFrame();
+        for (Iterator<Image> it = early.iterator(); it.hasNext(); ) {
+            Image image = it.next();
+            PendingCapture pending = takeSubmitted(image.getTimestamp());
+            if (pending != null) {
+                it.remove();
+                write(pending, image);
+            } else if (!unstarted) {
+                it.remove();
+                image.close();
+            }
+        }
+    }
+
+    private PendingCapture takeSubmitted(long timestamp) {
+        for (Iterator<PendingCapture> it = submitted.iterator(); it.hasNext(); ) {
+            PendingCapture pending = it.next();
+            if (pending.timestamp >= 0 && pending.timestamp == timestamp) {
+                it.remove();
+                return pending;
+            }
+        }
+        return null;
+    }
+
+    private boolean hasUnstartedFrame() {
+        for (PendingCapture pending : submitted) {
+            if (pending.timestamp < 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private void write(PendingCapture pending, Image image) {
+        synchronized (this) {
+            writing++;
+        }
+        writerExecutor.execute(new WriteTask(pending, image));
+    }
+
+    private final class WriteTask implements Runnable {
+        private final PendingCapture pending;
+        private final Image image;
+
+        WriteTask(PendingCapture pending, Image image) {
+            this.pending = pending;
+            this.image = image;
+        }
+
+        @Override
+        public void run() {
+            File file = pending.file != null
+                    ? pending.file : Camera1Helper.getOutputMediaFile(Camera1Helper.MEDIA_TYPE_IMAGE);
+            IOException error = null;
+            try {
+                if (file == null) {
+                    throw new IOException("Media storage is not available.");
+                }
+                sWriter.setFsyncPolicy(pending.fsyncPolicy);
+                sWriter.write(file, image.getPlanes()[0].getBuffer());
+            } catch (IOException e) {
+                error = e;
+            } finally {
+                image.close();
+                finishWrite();
+            }
+            if (sWriterExecutor.getQueue().isEmpty()) {
+                try {
+                    sWriter.flush();
+                } catch (IOException e) {
+                    Log.e(TAG, "Pictures not synced", e);
+                }
+            }
+            if (error != null) {
+                postFailed(pending, file, error);
+            } else {
+                postTaken(pending, file);
+            }
+        }
+    }
+
+    private void finishWrite() {
+        boolean closeReader;
+        synchronized (this) {
+            writing--;
+            closeReader = closed && writing == 0;
+        }
+        if (closeReader) {
+            reader.close();
+            return;
+        }
+        written.incrementAndGet();
+        handler.post(writtenTask);
+    }
+
+    private void postTaken(final PendingCapture pending, final File file) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pending.listener.onPictureTaken(file);
+            }
+        });
+    }
+
+    private void postFailed(PendingCapture pending, Exception e) {
+        postFailed(pending, pending.file, e);
+    }
+
+    private void postFailed(final PendingCapture pending, final File file, final Exception e) {
+        mainHandler.post(new Runnable() {
+            @Override
+            public void run() {
+                pending.listener.onPictureFailed(file, e);
+            }
+        });
+    }
+
+    /**
+     * Stops the stream. Pictures not captured yet fail; pictures being written are allowed to
+     * finish before the reader is closed. Must be called on the camera thread.
+     */
+    void close() {
+        boolean closeReader;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            closeReader = writing == 0;
+        }
+        session = null;
+        requestBuilder = null;
+        Exception error = new IllegalStateException("Camera is closed.");
+        PendingCapture pending;
+        while ((pending = submitted.poll()) != null) {
+            postFailed(pending, error);
+        }
+        while ((pending = waiting.poll()) != null) {
+            postFailed(pending, error);
+        }
+        Image image;
+        while ((image = early.poll()) != null) {
+            image.close();
+        }
+        reader.setOnImageAvailableListener(null, null);
+        handler.removeCallbacks(writtenTask);
+        if (closeReader) {
+            reader.close();
+        }
+    }
+}
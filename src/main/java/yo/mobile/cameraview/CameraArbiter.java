@@ -0,0 +1,196 @@
+package yo.mobile.cameraview;
+
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.util.Log;
+
+import java.util.ArrayDeque;
+import java.util.Iterator;
+
+/**
+ * Process-wide owner of the open camera hardware, shared by all {@link CameraView}s.
+ * <p>
+ * One view at a time owns the camera; requests from other views are queued and granted in order
+ * when the owner releases it. A handle released by its owner is handed to the next client if
+ * that one wants the same camera, so it only has to reconfigure the preview instead of closing
+ * and reopening the device. Without a waiting client the handle is kept open for
+ * {@link #LINGER_MS}, which covers a view being re-created, and closed after that.
+ * <p>
+ * All state is confined to the arbiter's camera thread: {@link #acquire} and {@link #release}
+ * must be called on it, and clients are granted the camera on it. The backends also use this
+ * thread for their camera calls, so the callbacks of a handed over camera keep working.
+ */
+final class CameraArbiter {
+
+    private static final String TAG = CameraArbiter.class.getSimpleName();
+    static final long LINGER_MS = 1000;
+
+    /**
+     * A backend that wants to use a camera.
+     */
+    interface Client {
+        /**
+         * Called on the camera thread when the client owns the camera.
+         *
+         * @param handle The open camera handed over by the previous owner, or null if the client
+         *               has to open it
+         */
+        void onCameraGranted(Handle handle);
+    }
+
+    /**
+     * An open camera, owned by the arbiter while no client holds it.
+     */
+    static abstract class Handle {
+        final String cameraKey;
+        // Describes the current configuration, set by the owner, so the next one can skip
+        // reconfiguring if it wants the same.
+        String configKey;
+        private boolean closed;
+
+        Handle(String cameraKey) {
+            this.cameraKey = cameraKey;
+        }
+
+        final void close() {
+            if (!closed) {
+                closed = true;
+                onClose();
+            }
+        }
+
+        final boolean isClosed() {
+            return closed;
+        }
+
+        abstract void onClose();
+    }
+
+    private static final class Request {
+        final Client client;
+        final String cameraKey;
+
+        Request(Client client, String cameraKey) {
+            this.client = client;
+            this.cameraKey = cameraKey;
+        }
+    }
+
+    private static CameraArbiter sInstance;
+
+    private final Handler handler;
+    private final ArrayDeque<Request> waiting = new ArrayDeque<>();
+    private Client owner;
+    private Handle retained;
+
+    private final Runnable closeRetained = new Runnable() {
+        @Override
+        public void run() {
+            if (retained != null) {
+                retained.close();
+                retained = null;
+            }
+        }
+    };
+
+    private CameraArbiter() {
+        HandlerThread thread = new HandlerThread("CameraArbiter");
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    static synchronized CameraArbiter get() {
+        if (sInstance == null) {
+            sInstance = new CameraArbiter();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return Handler of the camera thread
+     */
+    Handler getHandler() {
+        return handler;
+    }
+
+    /**
+     * Requests the camera for {@code client}. It is granted right away if no other client owns
+     * a camera, else once the clients before it have released it.
+     *
+     * @param cameraKey The API and id of the camera, e.g. "camera1:0"
+     */
+    void acquire(Client client, String cameraKey) {
+        if (owner == client) {
+            return;
+        }
+        if (owner != null) {
+            for (Request request : waiting) {
+                if (request.client == client) {
+                    return;
+                }
+            }
+            Log.d(TAG, "Camera busy, queueing request for " + cameraKey);
+            waiting.add(new Request(client, cameraKey));
+            return;
+        }
+        owner = client;
+        handler.removeCallbacks(closeRetained);
+        Handle handle = retained;
+        retained = null;
+        grant(client, cameraKey, handle);
+    }
+
+    /**
+     * Gives the camera back, or withdraws a queued request.
+     *
+     * @param handle The camera the client still has open, or null if it closed it
+     */
+    void release(Client client, Handle handle) {
+        if (owner != client) {
+            for (Iterator<Request> it = waiting.iterator(); it.hasNext(); ) {
+                if (it.next().client == client) {
+                    it.remove();
+                }
+            }
+            if (handle != null) {
+                handle.close();
+            }
+            return;
+        }
+        owner = null;
+        Request next = waiting.poll();
+        if (next != null) {
+            owner = next.client;
+            grant(next.client, next.cameraKey, handle);
+        } else if (handle != null && !handle.isClosed()) {
+            retained = handle;
+            handler.postDelayed(closeRetained, LINGER_MS);
+        }
+    }
+
+    /**
+     * Moves the owner to another camera without giving up ownership, so no queued client gets in
+     * between. The old camera is closed first, as many devices can't open two at once; the
+     * client is then granted the new one.
+     *
+     * @param handle The camera the client has open, or null
+     */
+    void switchCamera(Client client, Handle handle, String cameraKey) {
+        if (handle != null) {
+            handle.close();
+        }
+        if (owner != client) {
+            acquire(client, cameraKey);
+            return;
+        }
+        grant(client, cameraKey, null);
+    }
+
+    private void grant(Client client, String cameraKey, Handle handle) {
+        if (handle != null && (handle.isClosed() || !handle.cameraKey.equals(cameraKey))) {
+            handle.close();
+            handle = null;
+        }
+        client.onCameraGranted(handle);
+    }
+}
@@ -8,18 +8,45 @@ import android.os.Build;
 import android.support.v4.content.ContextCompat;
 import android.util.AttributeSet;
 import android.util.Log;
+import android.view.Surface;
 import android.view.TextureView;
 
+import java.io.File;
+import java.util.concurrent.Executor;
+
+import yo.mobile.cameraview.util.Camera2Helper;
+import yo.mobile.cameraview.util.FrameTimingTracker;
+import yo.mobile.cameraview.util.MediaWriter;
+
 @SuppressWarnings("deprecation")
 public class CameraView extends TextureView implements TextureView.SurfaceTextureListener {
 
-    private static CameraViewImpl IMPL;
     private final static String TAG = CameraView.class.getSimpleName();
-    //    private CameraViewImpl cameraViewImpl;
-    private boolean useFrontCamera = true;
+    // Each view has its own backend; the camera itself is shared through CameraArbiter.
+    private CameraViewImpl cameraViewImpl;
+    // Read by the backends on the camera thread.
+    private volatile boolean useFrontCamera;
     private OnCameraErrorListener onCameraErrorListener;
-    private int frontCameraId;
-    private int backCameraId;
+    private OnPreviewFrameListener onPreviewFrameListener;
+    private OnDirectFrameListener onDirectFrameListener;
+    private final FrameDispatcher frameDispatcher = new FrameDispatcher(this);
+    private ImageAnalyzer imageAnalyzer;
+    private ImageAnalyzer.Backpressure imageAnalyzerBackpressure;
+    private Executor imageAnalyzerExecutor;
+    private final AnalysisPipeline analysisPipeline = new AnalysisPipeline(this);
+    private Surface recordingSurface;
+    private int highSpeedFps;
+    private final StartupMetrics startupMetrics = new StartupMetrics();
+    private OnStartupMetricsListener onStartupMetricsListener;
+    private final FrameTimingTracker frameTimingTracker = new FrameTimingTracker();
+    private OnCameraSwitchListener onCameraSwitchListener;
+    private boolean switching;
+    private boolean paused;
+    private MediaWriter.FsyncPolicy fsyncPolicy = MediaWriter.FsyncPolicy.NEVER;
+    // Set by the backends on the camera thread.
+    private volatile int sensorOrientation;
+    private int frontCameraId = -1;
+    private int backCameraId = -1;
     private boolean cameraExist;
     private int preferredHeight = 720;
     private float preferredAspect = 4f / 3f;
@@ -32,6 +59,60 @@ public class CameraView extends TextureView implements TextureView.SurfaceTextur
         void onCameraOpenFailed(Exception e);
     }
 
+    /**
+     * Receives preview frames from the camera. Frames come from a small fixed pool, so every
+     * {@link PreviewFrame} must be released once processed, or the camera stops delivering.
+     */
+    public interface OnPreviewFrameListener {
+        void onPreviewFrame(PreviewFrame frame);
+    }
+
+    /**
+     * Receives preview frames from either backend. Called on the camera thread with a reference
+     * to the frame for this listener, which must be released, see {@link Frame}.
+     */
+    public interface OnFrameListener {
+        void onFrame(Frame frame);
+    }
+
+    /**
+     * Receives preview frames in direct buffers, for native consumers. Called on the camera
+     * thread with one reference to the frame, which must be released, see {@link DirectFrame}.
+     */
+    public interface OnDirectFrameListener {
+        void onDirectFrame(DirectFrame frame);
+    }
+
+    /**
+     * Receives the phase timestamps of every camera open cycle, see {@link StartupMetrics}.
+     * {@link StartupMetricsAggregator} collects them for percentiles.
+     */
+    public interface OnStartupMetricsListener {
+        /**
+         * Called on the UI thread when the first frame of an open cycle arrived. The metrics
+         * object is reused for the next cycle.
+         */
+        void onStartupMetrics(StartupMetrics metrics);
+    }
+
+    public interface OnCameraSwitchListener {
+        /**
+         * Called on the UI thread when the first frame from the new camera arrived.
+         *
+         * @param latencyNanos Time from {@link #switchCamera()} to that frame
+         */
+        void onCameraSwitched(boolean useFrontCamera, long latencyNanos);
+    }
+
+    /**
+     * Receives the result of {@link #takePicture(File, OnPictureTakenListener)}, on the UI thread.
+     */
+    public interface OnPictureTakenListener {
+        void onPictureTaken(File file);
+
+        void onPictureFailed(File file, Exception e);
+    }
+
     public CameraView(Context context) {
         super(context);
         init(null, 0);
@@ -48,16 +129,18 @@ public class CameraView extends TextureView implements TextureView.SurfaceTextur
     }
 
     private void init(AttributeSet attrs, int defStyle) {
+        startupMetrics.mark(StartupMetrics.PHASE_CONSTRUCTED);
         if (Build.VERSION.SDK_INT >= 23 && ContextCompat.checkSelfPermission(getContext(), Manifest.permission.CAMERA)
                 != PackageManager.PERMISSION_GRANTED) {
             throw new RuntimeException("No camera permission - Use FragmentCompat.requestPermissions(this, new String[]{Manifest.permission.CAMERA}, REQUEST_CAMERA_PERMISSION);");
         }
-//        if (Build.VERSION.SDK_INT >= 21 && Camera2Helper.hasCamera2(getContext())) {
-//            IMPL = new Camera1Api();
-//        } else {
-        IMPL = new Camera1Api();
-//        }
-        IMPL.initialize(this, getContext());
+        // Devices that only have legacy Camera2 support run better on the Camera1 API.
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.LOLLIPOP && Camera2Helper.hasCamera2(getContext())) {
+            cameraViewImpl = new Camera2Api();
+        } else {
+            cameraViewImpl = new Camera1Api();
+        }
+        cameraViewImpl.initialize(this, getContext());
     }
 
     @Override
@@ -69,28 +152,118 @@ public class CameraView extends TextureView implements TextureView.SurfaceTextur
     @Override
     protected void onDetachedFromWindow() {
         super.onDetachedFromWindow();
-        IMPL.releaseCamera();
+        if (!paused) {
+            cameraViewImpl.releaseCamera();
+        }
     }
 
     @Override
     public void onSurfaceTextureAvailable(SurfaceTexture surface, int width, int height) {
-        IMPL.openCamera(surface, width, height);
+        startupMetrics.startCycle();
+        startupMetrics.mark(StartupMetrics.PHASE_SURFACE_AVAILABLE);
+        if (!paused) {
+            openCamera(surface, width, height);
+        }
+    }
+
+    private void openCamera(SurfaceTexture surface, int width, int height) {
+        startupMetrics.mark(StartupMetrics.PHASE_OPEN_REQUESTED);
+        frameTimingTracker.reset();
+        cameraViewImpl.openCamera(surface, width, height);
+    }
+
+    /**
+     * Closes the camera but keeps the surface texture and the configuration negotiated for it:
+     * the camera, preview size, parameters and transform. {@link #resume()} then only reopens the
+     * device and reapplies them, skipping the size searches. Call it from
+     * {@code Activity.onPause()}, e.g. when the user goes to the gallery and back.
+     */
+    public void pause() {
+        if (paused) {
+            return;
+        }
+        paused = true;
+        if (isAvailable()) {
+            cameraViewImpl.releaseCamera();
+        }
+    }
+
+    /**
+     * Reopens the camera closed by {@link #pause()}. If the surface texture was destroyed in
+     * between, the camera is opened once it is available again.
+     */
+    public void resume() {
+        if (!paused) {
+            return;
+        }
+        paused = false;
+        if (isAvailable()) {
+            startupMetrics.startCycle();
+            openCamera(getSurfaceTexture(), getWidth(), getHeight());
+        }
+    }
+
+    public boolean isPaused() {
+        return paused;
     }
 
     @Override
     public void onSurfaceTextureSizeChanged(SurfaceTexture surface, int width, int height) {
-        IMPL.configureTransform(surface, width, height);
+        cameraViewImpl.configureTransform(surface, width, height);
     }
 
     @Override
     public boolean onSurfaceTextureDestroyed(SurfaceTexture surface) {
-        IMPL.releaseCamera();
-        return true;
+        if (!paused) {
+            cameraViewImpl.releaseCamera();
+        }
+        // The camera may still render into the texture until it is released, so the backend
+        // releases the texture after it instead of the view.
+        cameraViewImpl.releaseSurface(surface);
+        return false;
     }
 
     @Override
     public void onSurfaceTextureUpdated(SurfaceTexture surface) {
         // Invoked every time there's a new Camera preview frame
+        frameTimingTracker.onFrame(surface.getTimestamp());
+        // During a switch the old camera may still deliver a frame before the new session is up.
+        if (startupMetrics.getTimestampNanos(StartupMetrics.PHASE_SESSION_CONFIGURED) < 0
+                || !startupMetrics.markOnce(StartupMetrics.PHASE_FIRST_FRAME)) {
+            return;
+        }
+        if (onStartupMetricsListener != null) {
+            onStartupMetricsListener.onStartupMetrics(startupMetrics);
+        }
+        if (switching) {
+            switching = false;
+            if (onCameraSwitchListener != null) {
+                onCameraSwitchListener.onCameraSwitched(useFrontCamera, startupMetrics.getDurationNanos(
+                        StartupMetrics.PHASE_OPEN_REQUESTED, StartupMetrics.PHASE_FIRST_FRAME));
+            }
+        }
+    }
+
+    /**
+     * Switches between the front and back camera. The preview surface texture is kept, and the
+     * new camera's sizes come from the capability cache, so only the device itself is reopened.
+     * Reported to the {@link OnCameraSwitchListener} once the new camera delivers a frame. Does
+     * nothing if the other camera doesn't exist.
+     */
+    public void switchCamera() {
+        if (useFrontCamera ? !isBackCameraExist() : !isFrontCameraExist()) {
+            return;
+        }
+        useFrontCamera = !useFrontCamera;
+        if (paused || !isAvailable()) {
+            // Opened with the new facing once the surface texture is available.
+            return;
+        }
+        switching = true;
+        startupMetrics.startCycle();
+        startupMetrics.mark(StartupMetrics.PHASE_OPEN_REQUESTED);
+        frameTimingTracker.reset();
+        cameraViewImpl.switchCamera();
     }
 
 
@@ -140,11 +313,11 @@ public class CameraView extends TextureView implements TextureView.SurfaceTextur
     }
 
     public boolean isFrontCameraExist() {
-        return backCameraId >= 0;
+        return frontCameraId >= 0;
     }
 
     public boolean isBackCameraExist() {
-        return frontCameraId >= 0;
+        return backCameraId >= 0;
     }
 
     public OnCameraErrorListener getOnCameraErrorListener() {
@@ -166,6 +339,264 @@ public class CameraView extends TextureView implements TextureView.SurfaceTextur
         this.onCameraErrorListener = onCameraErrorListener;
     }
 
+    public OnPreviewFrameListener getOnPreviewFrameListener() {
+        return onPreviewFrameListener;
+    }
+
+    /**
+     * Sets the listener for preview frames. Takes effect the next time the camera is opened.
+     */
+    public void setOnPreviewFrameListener(OnPreviewFrameListener onPreviewFrameListener) {
+        this.onPreviewFrameListener = onPreviewFrameListener;
+    }
+
+    public OnDirectFrameListener getOnDirectFrameListener() {
+        return onDirectFrameListener;
+    }
+
+    /**
+     * Sets the listener for preview frames in direct buffers. On the Camera2 backend the frames
+     * wrap the camera's buffers; on Camera1 each frame is copied once into a pooled direct
+     * buffer. Not available in Camera2 high-speed mode. Takes effect the next time the camera is
+     * opened.
+     */
+    public void setOnDirectFrameListener(OnDirectFrameListener onDirectFrameListener) {
+        this.onDirectFrameListener = onDirectFrameListener;
+    }
+
+    /**
+     * Adds a listener for preview frames. Listeners share each frame without copies, see
+     * {@link Frame}. On Camera1 listeners can be added while the camera is open; on Camera2 the
+     * frame output is part of the capture session, so the first listener takes effect the next
+     * time the camera is opened. Not available in Camera2 high-speed mode.
+     */
+    public void addOnFrameListener(OnFrameListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener is required.");
+        }
+        boolean first = frameDispatcher.isEmpty();
+        frameDispatcher.add(listener);
+        if (first) {
+            cameraViewImpl.onFrameListenersChanged();
+        }
+    }
+
+    /**
+     * Removes a listener. It gets no frame after a call in progress returns.
+     */
+    public void removeOnFrameListener(OnFrameListener listener) {
+        if (frameDispatcher.remove(listener) && frameDispatcher.isEmpty()) {
+            cameraViewImpl.onFrameListenersChanged();
+        }
+    }
+
+    FrameDispatcher getFrameDispatcher() {
+        return frameDispatcher;
+    }
+
+    public ImageAnalyzer getImageAnalyzer() {
+        return imageAnalyzer;
+    }
+
+    /**
+     * Sets the analyzer for the YUV_420_888 analysis stream of the Camera2 backend. Takes effect
+     * the next time the camera is opened.
+     *
+     * @param imageAnalyzer The analyzer, or null to disable the analysis stream
+     * @param backpressure  What to do with frames while the analyzer is busy
+     * @param executor      Executor that runs the analyzer, must not be the camera thread
+     */
+    public void setImageAnalyzer(ImageAnalyzer imageAnalyzer, ImageAnalyzer.Backpressure backpressure,
+                                 Executor executor) {
+        if (imageAnalyzer != null && (backpressure == null || executor == null)) {
+            throw new IllegalArgumentException("Backpressure and executor are required.");
+        }
+        this.imageAnalyzer = imageAnalyzer;
+        this.imageAnalyzerBackpressure = backpressure;
+        this.imageAnalyzerExecutor = executor;
+    }
+
+    ImageAnalyzer.Backpressure getImageAnalyzerBackpressure() {
+        return imageAnalyzerBackpressure;
+    }
+
+    Executor getImageAnalyzerExecutor() {
+        return imageAnalyzerExecutor;
+    }
+
+    /**
+     * Registers an analyzer for preview frames. Frames are center-cropped to the analyzer's
+     * aspect ratio, scaled to its size and turned upright, see {@link FrameAnalyzer}. On the
+     * Camera2 backend the frames come from the analysis stream, which isn't available in
+     * high-speed mode. The first analyzer takes effect the next time the camera is opened.
+     *
+     * @param width  Width of the frames the analyzer gets, even
+     * @param height Height of the frames the analyzer gets, even
+     * @param maxFps Target rate, or 0 for every frame
+     * @return The analyzer's counters
+     */
+    public FrameAnalyzerStats addFrameAnalyzer(FrameAnalyzer analyzer, int width, int height, float maxFps) {
+        if (analyzer == null) {
+            throw new IllegalArgumentException("Analyzer is required.");
+        }
+        if (width <= 0 || height <= 0 || width % 2 != 0 || height % 2 != 0) {
+            throw new IllegalArgumentException("Analyzer size must be positive and even.");
+        }
+        if (maxFps < 0) {
+            throw new IllegalArgumentException("Target rate cannot be negative.");
+        }
+        return analysisPipeline.add(analyzer, width, height, maxFps);
+    }
+
+    /**
+     * Unregisters an analyzer. It gets no frame after a call in progress returns.
+     *
+     * @return False, if the analyzer wasn't registered
+     */
+    public boolean removeFrameAnalyzer(FrameAnalyzer analyzer) {
+        return analysisPipeline.remove(analyzer);
+    }
+
+    /**
+     * @return The counters of a registered analyzer, or null
+     */
+    public FrameAnalyzerStats getFrameAnalyzerStats(FrameAnalyzer analyzer) {
+        return analysisPipeline.getStats(analyzer);
+    }
+
+    AnalysisPipeline getAnalysisPipeline() {
+        return analysisPipeline;
+    }
+
+    public Surface getRecordingSurface() {
+        return recordingSurface;
+    }
+
+    /**
+     * Sets a surface the camera renders into in addition to the preview, typically the input
+     * surface of a {@link yo.mobile.cameraview.util.MediaCodecWrapper#fromVideoEncoderFormat
+     * hardware encoder}. Only supported by the Camera2 backend. Takes effect the next time the
+     * camera is opened.
+     */
+    public void setRecordingSurface(Surface recordingSurface) {
+        this.recordingSurface = recordingSurface;
+    }
+
+    /**
+     * Captures a JPEG into {@code file}; returns right away and the file is written on a
+     * background thread. The Camera2 backend captures at the camera's largest size.
+     *
+     * @param file The file to write, or null for a new file in the pictures directory, see
+     *             {@link yo.mobile.cameraview.util.Camera1Helper#getOutputMediaFile(int)}
+     */
+    public void takePicture(File file, OnPictureTakenListener listener) {
+        takeBurst(new File[]{file}, listener);
+    }
+
+    /**
+     * Captures a burst of JPEGs, one per file, as fast as the camera and storage allow. The
+     * listener is called once for every file. Files may be null like in
+     * {@link #takePicture(File, OnPictureTakenListener)}.
+     */
+    public void takeBurst(File[] files, OnPictureTakenListener listener) {
+        if (listener == null) {
+            throw new IllegalArgumentException("Listener is required.");
+        }
+        cameraViewImpl.takePicture(files, listener);
+    }
+
+    public MediaWriter.FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Sets when pictures are synced to storage: each before it is reported, each burst once it
+     * ends, or never, which leaves them to the kernel. Applies to pictures taken afterwards.
+     * Defaults to {@link MediaWriter.FsyncPolicy#NEVER}.
+     */
+    public void setFsyncPolicy(MediaWriter.FsyncPolicy fsyncPolicy) {
+        if (fsyncPolicy == null) {
+            throw new IllegalArgumentException("Fsync policy is required.");
+        }
+        this.fsyncPolicy = fsyncPolicy;
+    }
+
+    public OnCameraSwitchListener getOnCameraSwitchListener() {
+        return onCameraSwitchListener;
+    }
+
+    public void setOnCameraSwitchListener(OnCameraSwitchListener onCameraSwitchListener) {
+        this.onCameraSwitchListener = onCameraSwitchListener;
+    }
+
+    public OnStartupMetricsListener getOnStartupMetricsListener() {
+        return onStartupMetricsListener;
+    }
+
+    public void setOnStartupMetricsListener(OnStartupMetricsListener onStartupMetricsListener) {
+        this.onStartupMetricsListener = onStartupMetricsListener;
+    }
+
+    /**
+     * @return Timing of the preview frames since the camera was last opened. Readable from any
+     * thread. Its frame duration is set from the frame rate the preview is configured for.
+     */
+    public FrameTimingTracker getFrameTimingTracker() {
+        return frameTimingTracker;
+    }
+
+    /**
+     * Called by the backends, from any thread, when a startup phase is reached.
+     */
+    void markStartupPhase(int phase) {
+        startupMetrics.mark(phase);
+    }
+
+    /**
+     * Sets the frame duration of the {@link FrameTimingTracker} to the frame rate the preview was
+     * configured for, so gaps are counted as dropped frames against it. Called by the backends on
+     * the camera thread.
+     *
+     * @param fps Maximum frame rate of the preview, or 0 if unknown, for 30 fps
+     */
+    void setPreviewFrameRate(float fps) {
+        frameTimingTracker.setFrameDurationNanos(fps > 0 ? (long) (1000000000L / fps)
+                : FrameTimingTracker.DEFAULT_FRAME_DURATION_NANOS);
+    }
+
+    public int getHighSpeedFps() {
+        return highSpeedFps;
+    }
+
+    /**
+     * Requests a constrained high-speed session, e.g. at 120 or 240 fps, for slow motion. Only
+     * supported by the Camera2 backend on API 23+ and cameras with the constrained high-speed
+     * video capability; otherwise the normal preview is used. The preview size is then one of the
+     * camera's high-speed video sizes, a recording surface must use the same size, and the
+     * analysis stream is not available. Takes effect the next time the camera is opened.
+     *
+     * @param highSpeedFps The frame rate, or 0 for the normal preview
+     */
+    public void setHighSpeedFps(int highSpeedFps) {
+        if (highSpeedFps < 0) {
+            throw new IllegalArgumentException("Frame rate cannot be negative.");
+        }
+        this.highSpeedFps = highSpeedFps;
+    }
+
+    /**
+     * @return Clockwise rotation of the open camera's frames relative to the device's natural
+     * orientation, e.g. for {@link yo.mobile.cameraview.util.YuvScaler#setRotation(int)}. 0
+     * before a camera was opened
+     */
+    public int getSensorOrientation() {
+        return sensorOrientation;
+    }
+
+    void setSensorOrientation(int sensorOrientation) {
+        this.sensorOrientation = sensorOrientation;
+    }
+
     void setFrontCameraId(int frontCameraId) {
         this.frontCameraId = frontCameraId;
     }
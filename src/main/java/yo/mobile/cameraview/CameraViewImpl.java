@@ -4,6 +4,8 @@ package yo.mobile.cameraview;
 import android.content.Context;
 import android.graphics.SurfaceTexture;
 
+import java.io.File;
+
 public interface CameraViewImpl {
 
     void initialize(CameraView cameraView, Context context);
@@ -14,5 +16,29 @@ public interface CameraViewImpl {
 
     void releaseCamera();
 
+    /**
+     * Releases a surface texture that has been destroyed, once the camera no longer renders into
+     * it. Called after {@link #releaseCamera()}.
+     */
+    void releaseSurface(SurfaceTexture surface);
+
     void configureTransform(SurfaceTexture surface, int width, int height);
+
+    /**
+     * Closes the current camera and opens the one {@link CameraView#getCurrentCameraId()} now
+     * points to, on the same surface texture. Does nothing if the camera isn't open.
+     */
+    void switchCamera();
+
+    /**
+     * Captures one still picture per file, as a burst if there are several.
+     */
+    void takePicture(File[] files, CameraView.OnPictureTakenListener listener);
+
+    /**
+     * Called when the first {@link CameraView.OnFrameListener} was added or the last removed.
+     * Backends hand every {@link Frame} they produce to {@link CameraView#getFrameDispatcher()};
+     * one that can start or stop producing frames while the camera is open does so here.
+     */
+    void onFrameListenersChanged();
 }
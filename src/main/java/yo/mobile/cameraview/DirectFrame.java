@@ -0,0 +1,27 @@
+package yo.mobile.cameraview;
+
+
+/**
+ * A {@link Frame} whose planes are direct {@link java.nio.ByteBuffer}s, delivered to
+ * {@link CameraView.OnDirectFrameListener}, so native code can read it through
+ * {@code GetDirectBufferAddress} without a copy.
+ * <p>
+ * On Camera2 these are the frames every frame listener gets. On Camera1 the callback arrays are
+ * on the Java heap, so each frame is copied once into a pooled direct buffer.
+ */
+public final class DirectFrame extends Frame {
+
+    DirectFrame(Owner owner) {
+        super(owner);
+    }
+
+    /**
+     * Adds a reference for another consumer, see {@link #acquire()}.
+     *
+     * @return This frame
+     */
+    public DirectFrame retain() {
+        acquire();
+        return this;
+    }
+}
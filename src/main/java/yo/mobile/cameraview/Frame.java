@@ -0,0 +1,161 @@
+package yo.mobile.cameraview;
+
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A YUV_420_888 preview frame from either backend, delivered to
+ * {@link CameraView.OnFrameListener}.
+ * <p>
+ * The planes are views of the camera's own buffers: on Camera1 the NV21 callback array, on
+ * Camera2 the planes of the {@link android.media.Image}. Frames are reference counted, so several
+ * consumers can read the same frame without copying it. Each listener gets the frame with a
+ * reference of its own, which it must {@link #release()}; every consumer it hands the frame to
+ * calls {@link #acquire()} first and {@link #release()} when done. With the last reference the
+ * buffer goes back to the camera right away, never through the garbage collector. Pools are
+ * small, so frames held too long make new frames be dropped.
+ * <p>
+ * The plane buffers are shared by all consumers: read them with absolute gets, from native code,
+ * or through a {@link ByteBuffer#duplicate()}, never by moving their position.
+ */
+public class Frame {
+
+    interface Owner {
+        /**
+         * Called with the last reference; the frame can be reused from here on.
+         */
+        void recycle(Frame frame);
+    }
+
+    private final Owner owner;
+    private final AtomicInteger refCount = new AtomicInteger();
+    private final ByteBuffer[] planes = new ByteBuffer[3];
+    private final int[] rowStrides = new int[3];
+    private final int[] pixelStrides = new int[3];
+    private int width;
+    private int height;
+    private int format;
+    private long timestampNanos;
+    private int rotation;
+    // Whatever the owner keeps with the frame, e.g. its Image.
+    private Object source;
+
+    Frame(Owner owner) {
+        this.owner = owner;
+    }
+
+    void set(int width, int height, int format) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+
+    void setPlane(int index, ByteBuffer buffer, int rowStride, int pixelStride) {
+        planes[index] = buffer;
+        rowStrides[index] = rowStride;
+        pixelStrides[index] = pixelStride;
+    }
+
+    Object getSource() {
+        return source;
+    }
+
+    void setSource(Object source) {
+        this.source = source;
+    }
+
+    /**
+     * Hands the frame out with one reference, the producer's.
+     */
+    void open(long timestampNanos, int rotation) {
+        this.timestampNanos = timestampNanos;
+        this.rotation = rotation;
+        refCount.set(1);
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the {@link android.graphics.ImageFormat}, YUV_420_888.
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * @return Capture time of the frame; only differences are meaningful
+     */
+    public long getTimestampNanos() {
+        return timestampNanos;
+    }
+
+    /**
+     * @return Clockwise rotation in degrees that turns the frame upright in the device's natural
+     * orientation, i.e. the sensor orientation
+     */
+    public int getRotation() {
+        return rotation;
+    }
+
+    /**
+     * @return 3, the Y, U and V planes
+     */
+    public int getPlaneCount() {
+        return planes.length;
+    }
+
+    /**
+     * @param index 0 for Y, 1 for U, 2 for V
+     * @return The buffer of the plane, starting at its first sample. U and V may be interleaved
+     * views of the same memory, see {@link #getPixelStride(int)}. Direct on Camera2; on Camera1
+     * it wraps the callback array, see {@link ByteBuffer#array()}
+     */
+    public ByteBuffer getPlane(int index) {
+        return planes[index];
+    }
+
+    public int getRowStride(int index) {
+        return rowStrides[index];
+    }
+
+    public int getPixelStride(int index) {
+        return pixelStrides[index];
+    }
+
+    /**
+     * Adds a reference for another consumer.
+     *
+     * @return This frame
+     */
+    public Frame acquire() {
+        while (true) {
+            int count = refCount.get();
+            if (count <= 0) {
+                throw new IllegalStateException("Frame is already released.");
+            }
+            if (refCount.compareAndSet(count, count + 1)) {
+                return this;
+            }
+        }
+    }
+
+    /**
+     * Drops a reference. The frame must not be used by the caller after this call.
+     */
+    public void release() {
+        int count = refCount.decrementAndGet();
+        if (count == 0) {
+            owner.recycle(this);
+        } else if (count < 0) {
+            refCount.incrementAndGet();
+            throw new IllegalStateException("Frame is already released.");
+        }
+    }
+}
@@ -0,0 +1,23 @@
+package yo.mobile.cameraview;
+
+
+/**
+ * Consumer of downscaled preview frames, registered with
+ * {@link CameraView#addFrameAnalyzer(FrameAnalyzer, int, int, float)}.
+ * <p>
+ * Each analyzer gets frames at its own resolution and rate, and runs on a shared pool of analysis
+ * threads, never on the camera thread. While it is busy only the most recent frame is kept for
+ * it, so a slow analyzer skips frames instead of holding up the preview or the other analyzers.
+ * Calls to one analyzer never overlap.
+ */
+public interface FrameAnalyzer {
+
+    /**
+     * @param nv21            The frame in NV21, upright in the device's natural orientation. It
+     *                        is reused once the call returns, so it must not be kept
+     * @param width           Width of the frame, as registered
+     * @param height          Height of the frame, as registered
+     * @param timestampNanos  Capture time of the frame; only differences are meaningful
+     */
+    void analyze(byte[] nv21, int width, int height, long timestampNanos);
+}
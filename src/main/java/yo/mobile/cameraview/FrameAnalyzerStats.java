@@ -0,0 +1,83 @@
+package yo.mobile.cameraview;
+
+
+import yo.mobile.cameraview.util.LatencyHistogram;
+
+/**
+ * Counters of one registered {@link FrameAnalyzer}. Can be read from any thread while the
+ * analyzer runs.
+ */
+public final class FrameAnalyzerStats {
+
+    private volatile long analyzedFrames;
+    private volatile long throttledFrames;
+    private volatile long skippedFrames;
+    // Frame arrival to the end of analyze(), i.e. including the wait for an analysis thread.
+    private final LatencyHistogram latency = new LatencyHistogram();
+    private final LatencyHistogram analyzeTime = new LatencyHistogram();
+
+    FrameAnalyzerStats() {
+    }
+
+    /**
+     * @return Frames the analyzer has finished
+     */
+    public long getAnalyzedFrames() {
+        return analyzedFrames;
+    }
+
+    /**
+     * @return Frames left out to keep to the analyzer's target rate
+     */
+    public long getThrottledFrames() {
+        return throttledFrames;
+    }
+
+    /**
+     * @return Frames replaced by a newer one while the analyzer was busy
+     */
+    public long getSkippedFrames() {
+        return skippedFrames;
+    }
+
+    /**
+     * @param percentile E.g. 50 or 99
+     * @return Time from the arrival of a frame to the end of its analysis
+     */
+    public synchronized long getLatencyPercentileNanos(double percentile) {
+        return latency.getPercentileNanos(percentile);
+    }
+
+    /**
+     * @param percentile E.g. 50 or 99
+     * @return Time spent in {@link FrameAnalyzer#analyze}
+     */
+    public synchronized long getAnalyzeTimePercentileNanos(double percentile) {
+        return analyzeTime.getPercentileNanos(percentile);
+    }
+
+    public synchronized void reset() {
+        analyzedFrames = 0;
+        throttledFrames = 0;
+        skippedFrames = 0;
+        latency.reset();
+        analyzeTime.reset();
+    }
+
+    // Delivering thread only.
+    void onThrottled() {
+        throttledFrames++;
+    }
+
+    // Delivering thread only.
+    void onSkipped() {
+        skippedFrames++;
+    }
+
+    // Called by one analysis thread at a time.
+    synchronized void onAnalyzed(long latencyNanos, long analyzeNanos) {
+        analyzedFrames++;
+        latency.record(latencyNanos);
+        analyzeTime.record(analyzeNanos);
+    }
+}
@@ -0,0 +1,76 @@
+package yo.mobile.cameraview;
+
+import android.util.Log;
+
+/**
+ * The {@link CameraView.OnFrameListener}s of a view. Backends hand every {@link Frame} they
+ * produce to {@link #dispatch(Frame)}, which gives each listener a reference of its own, so they
+ * all read the same buffers.
+ */
+final class FrameDispatcher {
+
+    private static final String TAG = FrameDispatcher.class.getSimpleName();
+
+    private final CameraView cameraView;
+    // Copy on write, so the camera thread iterates without a lock or an iterator.
+    private volatile CameraView.OnFrameListener[] listeners = new CameraView.OnFrameListener[0];
+
+    FrameDispatcher(CameraView cameraView) {
+        this.cameraView = cameraView;
+    }
+
+    synchronized void add(CameraView.OnFrameListener listener) {
+        CameraView.OnFrameListener[] current = listeners;
+        for (CameraView.OnFrameListener l : current) {
+            if (l == listener) {
+                return;
+            }
+        }
+        CameraView.OnFrameListener[] next = new CameraView.OnFrameListener[current.length + 1];
+        System.arraycopy(current, 0, next, 0, current.length);
+        next[current.length] = listener;
+        listeners = next;
+    }
+
+    synchronized boolean remove(CameraView.OnFrameListener listener) {
+        CameraView.OnFrameListener[] current = listeners;
+        for (int i = 0; i < current.length; i++) {
+            if (current[i] == listener) {
+                CameraView.OnFrameListener[] next = new CameraView.OnFrameListener[current.length - 1];
+                System.arraycopy(current, 0, next, 0, i);
+                System.arraycopy(current, i + 1, next, i, current.length - i - 1);
+                listeners = next;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    boolean isEmpty() {
+        return listeners.length == 0;
+    }
+
+    /**
+     * @return Rotation of the frames produced now, see {@link Frame#getRotation()}
+     */
+    int getRotation() {
+        return cameraView.getSensorOrientation();
+    }
+
+    /**
+     * Hands the frame to every listener with one reference each. The caller keeps its own. A
+     * listener that throws gets its reference released, so the buffer goes back to the pool, and
+     * the next listeners still get the frame.
+     */
+    void dispatch(Frame frame) {
+        for (CameraView.OnFrameListener listener : listeners) {
+            frame.acquire();
+            try {
+                listener.onFrame(frame);
+            } catch (RuntimeException e) {
+                Log.e(TAG, "Frame listener failed", e);
+                frame.release();
+            }
+        }
+    }
+}
@@ -0,0 +1,36 @@
+package yo.mobile.cameraview;
+
+
+import android.media.Image;
+
+/**
+ * Consumer of the YUV_420_888 analysis stream produced by the Camera2 backend.
+ * <p>
+ * {@link #analyze(Image)} runs on the executor passed to
+ * {@link CameraView#setImageAnalyzer(ImageAnalyzer, Backpressure, java.util.concurrent.Executor)},
+ * never on the camera thread. The image is closed as soon as the call returns, so it must not
+ * be kept.
+ */
+public interface ImageAnalyzer {
+
+    /**
+     * How the analysis stream behaves when the analyzer is slower than the camera.
+     */
+    enum Backpressure {
+        /**
+         * Only the most recent frame is kept pending; older ones are dropped.
+         */
+        KEEP_LATEST,
+        /**
+         * Frames are queued up to a fixed depth; new frames are dropped while the queue is full.
+         */
+        BOUNDED_QUEUE,
+        /**
+         * No frame is dropped by the stream. While the analyzer is busy the camera runs out of
+         * analysis buffers, which slows the whole capture session down to the analyzer's pace.
+         */
+        BLOCK
+    }
+
+    void analyze(Image image);
+}
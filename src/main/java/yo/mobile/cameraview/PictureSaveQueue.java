@@ -0,0 +1,154 @@
+package yo.mobile.cameraview;
+
+
+import android.os.Handler;
+import android.os.Looper;
+import android.util.Log;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import yo.mobile.cameraview.util.Camera1Helper;
+import yo.mobile.cameraview.util.MediaWriter;
+
+/**
+ * Bounded queue that writes JPEG byte arrays to files on a single writer thread, so the camera
+ * thread hands a picture over and goes on with the next one. At most {@link #CAPACITY} pictures
+ * wait for the writer; callers check {@link #hasRoom()} before taking another picture instead of
+ * piling up JPEGs in memory.
+ * <p>
+ * The files are written by a {@link MediaWriter}, whose batch is flushed whenever the queue runs
+ * empty, i.e. at the end of a burst, or when it is full. Pictures synced per batch are reported
+ * once the flush that covers them has returned, as failed if it failed.
+ */
+final class PictureSaveQueue {
+
+    private static final String TAG = PictureSaveQueue.class.getSimpleName();
+    static final int CAPACITY = 4;
+    private static final int BATCH_SIZE = MediaWriter.DEFAULT_BATCH_SIZE;
+
+    private static PictureSaveQueue sInstance;
+
+    private final ThreadPoolExecutor executor = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS,
+            new ArrayBlockingQueue<Runnable>(CAPACITY));
+    private final Handler mainHandler = new Handler(Looper.getMainLooper());
+    // Writer thread only. The writer's batch is one larger than ours, so it never flushes on its
+    // own and every flush is reported to the listeners of its files.
+    private final MediaWriter writer = new MediaWriter(MediaWriter.FsyncPolicy.NEVER, BATCH_SIZE + 1);
+    private final ArrayList<SaveTask> batch = new ArrayList<>(BATCH_SIZE);
+
+    private PictureSaveQueue() {
+    }
+
+    static synchronized PictureSaveQueue get() {
+        if (sInstance == null) {
+            sInstance = new PictureSaveQueue();
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return True, if a picture offered now would be accepted
+     */
+    boolean hasRoom() {
+        return executor.getQueue().remainingCapacity() > 0;
+    }
+
+    /**
+     * Queues a picture for writing. The listener is called on the UI thread once it is written.
+     *
+     * @param file The file to write, or null for a new file from
+     *             {@link Camera1Helper#getOutputMediaFile(int)}
+     * @return False, if the queue is full; the picture is dropped and the listener not called
+     */
+    boolean offer(byte[] data, File file, MediaWriter.FsyncPolicy fsyncPolicy,
+                  CameraView.OnPictureTakenListener listener) {
+        try {
+            executor.execute(new SaveTask(data, file, fsyncPolicy, listener));
+            return true;
+        } catch (RejectedExecutionException e) {
+            return false;
+        }
+    }
+
+    private final class SaveTask implements Runnable {
+        private final byte[] data;
+        private final File file;
+        private final MediaWriter.FsyncPolicy fsyncPolicy;
+        private final CameraView.OnPictureTakenListener listener;
+        // The file written, while it waits for the batch to be synced.
+        private File written;
+
+        SaveTask(byte[] data, File file, MediaWriter.FsyncPolicy fsyncPolicy,
+                 CameraView.OnPictureTakenListener listener) {
+            this.data = data;
+            this.file = file;
+            this.fsyncPolicy = fsyncPolicy;
+            this.listener = listener;
+        }
+
+        @Override
+        public void run() {
+            File target = file != null ? file : Camera1Helper.getOutputMediaFile(Camera1Helper.MEDIA_TYPE_IMAGE);
+            if (target == null) {
+                postResult(file, new IOException("Media storage is not available."));
+            } else {
+                try {
+                    if (fsyncPolicy != writer.getFsyncPolicy()) {
+                        flushBatch();
+                        writer.setFsyncPolicy(fsyncPolicy);
+                    }
+                    writer.write(target, data);
+                    if (fsyncPolicy == MediaWriter.FsyncPolicy.PER_BATCH) {
+                        written = target;
+                        batch.add(this);
+                    } else {
+                        postResult(target, null);
+                    }
+                } catch (IOException e) {
+                    postResult(target, e);
+                }
+            }
+            if (!batch.isEmpty() && (executor.getQueue().isEmpty() || batch.size() == BATCH_SIZE)) {
+                flushBatch();
+            }
+        }
+
+        private void postResult(final File result, final IOException failure) {
+            mainHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    if (failure != null) {
+                        listener.onPictureFailed(result, failure);
+                    } else {
+                        listener.onPictureTaken(result);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Syncs the pending batch and reports its pictures. A failed flush fails every picture of
+     * the batch, it doesn't tell which file it was.
+     */
+    private void flushBatch() {
+        IOException error = null;
+        try {
+            writer.flush();
+        } catch (IOException e) {
+            Log.e(TAG, "Pictures not synced", e);
+            error = e;
+        }
+        for (int i = 0; i < batch.size(); i++) {
+            SaveTask task = batch.get(i);
+            task.postResult(task.written, error);
+        }
+        batch.clear();
+    }
+}
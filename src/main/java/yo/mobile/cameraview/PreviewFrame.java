@@ -0,0 +1,76 @@
+package yo.mobile.cameraview;
+
+
+/**
+ * A single preview frame delivered to {@link CameraView.OnPreviewFrameListener}.
+ * <p>
+ * The frame data lives in a buffer owned by the camera. Call {@link #release()} once the frame
+ * is no longer needed so the buffer can be handed back to the camera. Frames that are never
+ * released starve the camera and no new frames will be delivered.
+ */
+public final class PreviewFrame {
+
+    private final FramePool pool;
+    private final byte[] data;
+    private int width;
+    private int height;
+    private int format;
+    private boolean inUse;
+
+    interface FramePool {
+        void recycle(PreviewFrame frame);
+    }
+
+    PreviewFrame(FramePool pool, byte[] data) {
+        this.pool = pool;
+        this.data = data;
+    }
+
+    void set(int width, int height, int format) {
+        this.width = width;
+        this.height = height;
+        this.format = format;
+    }
+
+    byte[] getBuffer() {
+        return data;
+    }
+
+    boolean isInUse() {
+        return inUse;
+    }
+
+    void setInUse(boolean inUse) {
+        this.inUse = inUse;
+    }
+
+    /**
+     * @return the raw frame data, in the format returned by {@link #getFormat()}. The array is
+     * reused for later frames once this frame is released.
+     */
+    public byte[] getData() {
+        return data;
+    }
+
+    public int getWidth() {
+        return width;
+    }
+
+    public int getHeight() {
+        return height;
+    }
+
+    /**
+     * @return the {@link android.graphics.ImageFormat} of the data, e.g. NV21.
+     */
+    public int getFormat() {
+        return format;
+    }
+
+    /**
+     * Returns the frame buffer to the camera. The frame must not be used after this call.
+     */
+    public void release() {
+        pool.recycle(this);
+    }
+}
@@ -0,0 +1,89 @@
+package yo.mobile.cameraview;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Timestamps of the phases of one camera open cycle, from {@link System#nanoTime()}.
+ * <p>
+ * A cycle starts when the view is constructed (first cycle only), when its surface texture
+ * becomes available or when the camera is switched, and ends with the first preview frame. The
+ * backends mark phases from the camera thread. The same instance is reused for every cycle, so
+ * listeners must copy what they need before returning.
+ */
+public final class StartupMetrics {
+
+    public static final int PHASE_CONSTRUCTED = 0;
+    public static final int PHASE_SURFACE_AVAILABLE = 1;
+    public static final int PHASE_OPEN_REQUESTED = 2;
+    /**
+     * {@code Camera.open} returned or {@code CameraDevice.StateCallback.onOpened} was called.
+     */
+    public static final int PHASE_DEVICE_OPENED = 3;
+    /**
+     * The preview was started or the capture session was configured.
+     */
+    public static final int PHASE_SESSION_CONFIGURED = 4;
+    public static final int PHASE_FIRST_FRAME = 5;
+    public static final int PHASE_COUNT = 6;
+
+    private final AtomicLongArray timestamps = new AtomicLongArray(PHASE_COUNT);
+    private int cycle;
+
+    StartupMetrics() {
+        clear();
+    }
+
+    /**
+     * @return Number of the open cycle, starting at 0 for the first one after construction
+     */
+    public int getCycle() {
+        return cycle;
+    }
+
+    /**
+     * @return The time the phase was reached, or -1 if it wasn't in this cycle
+     */
+    public long getTimestampNanos(int phase) {
+        return timestamps.get(phase);
+    }
+
+    /**
+     * @return Time from one phase to another, or -1 if either wasn't reached in this cycle
+     */
+    public long getDurationNanos(int fromPhase, int toPhase) {
+        long from = timestamps.get(fromPhase);
+        long to = timestamps.get(toPhase);
+        return from >= 0 && to >= 0 ? to - from : -1;
+    }
+
+    void mark(int phase) {
+        timestamps.set(phase, System.nanoTime());
+    }
+
+    /**
+     * Marks the phase unless it was already reached in this cycle.
+     *
+     * @return True, if the phase was marked
+     */
+    boolean markOnce(int phase) {
+        return timestamps.compareAndSet(phase, -1, System.nanoTime());
+    }
+
+    /**
+     * Starts the next cycle, unless this is the first one after construction. Only the first
+     * cycle has a {@link #PHASE_CONSTRUCTED} timestamp, and a camera switch starts a cycle
+     * without {@link #PHASE_SURFACE_AVAILABLE}.
+     */
+    void startCycle() {
+        if (timestamps.get(PHASE_OPEN_REQUESTED) >= 0) {
+            cycle++;
+            clear();
+        }
+    }
+
+    private void clear() {
+        for (int i = 0; i < PHASE_COUNT; i++) {
+            timestamps.set(i, -1);
+        }
+    }
+}
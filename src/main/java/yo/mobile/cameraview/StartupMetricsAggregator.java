@@ -0,0 +1,78 @@
+package yo.mobile.cameraview;
+
+import yo.mobile.cameraview.util.LatencyHistogram;
+
+/**
+ * {@link CameraView.OnStartupMetricsListener} that collects the duration of every startup phase
+ * over many open cycles for percentiles, e.g. p50 / p95 / p99. Uses fixed-size histograms, so
+ * nothing is allocated per cycle. Can be shared by several views and read from any thread.
+ * <p>
+ * To compare startup between two builds, set one aggregator with
+ * {@link CameraView#setOnStartupMetricsListener(CameraView.OnStartupMetricsListener)}, open and
+ * close the camera the same number of times on the same device with each build, e.g. by pausing
+ * and resuming the activity, and compare {@link #getTotalPercentileNanos(double)} at 50 and 95
+ * along with the phase percentiles.
+ */
+public class StartupMetricsAggregator implements CameraView.OnStartupMetricsListener {
+
+    // phaseHistograms[i] holds the time from phase i - 1 to phase i; index 0 is unused.
+    private final LatencyHistogram[] phaseHistograms = new LatencyHistogram[StartupMetrics.PHASE_COUNT];
+    private final LatencyHistogram totalHistogram = new LatencyHistogram();
+
+    public StartupMetricsAggregator() {
+        for (int i = 1; i < phaseHistograms.length; i++) {
+            phaseHistograms[i] = new LatencyHistogram();
+        }
+    }
+
+    @Override
+    public synchronized void onStartupMetrics(StartupMetrics metrics) {
+        for (int phase = 1; phase < StartupMetrics.PHASE_COUNT; phase++) {
+            long duration = metrics.getDurationNanos(phase - 1, phase);
+            if (duration >= 0) {
+                phaseHistograms[phase].record(duration);
+            }
+        }
+        long total = metrics.getDurationNanos(StartupMetrics.PHASE_SURFACE_AVAILABLE,
+                StartupMetrics.PHASE_FIRST_FRAME);
+        if (total >= 0) {
+            totalHistogram.record(total);
+        }
+    }
+
+    /**
+     * @param phase      Phase after {@link StartupMetrics#PHASE_CONSTRUCTED}
+     * @param percentile Between 0 and 100
+     * @return Percentile of the time from the previous phase to {@code phase}
+     */
+    public synchronized long getPhasePercentileNanos(int phase, double percentile) {
+        return phaseHistograms[phase].getPercentileNanos(percentile);
+    }
+
+    /**
+     * @return Number of cycles that reached {@code phase} straight from the previous phase
+     */
+    public synchronized long getPhaseCount(int phase) {
+        return phaseHistograms[phase].getCount();
+    }
+
+    /**
+     * @param percentile Between 0 and 100
+     * @return Percentile of the time from the surface texture becoming available to the first
+     * frame
+     */
+    public synchronized long getTotalPercentileNanos(double percentile) {
+        return totalHistogram.getPercentileNanos(percentile);
+    }
+
+    public synchronized long getTotalCount() {
+        return totalHistogram.getCount();
+    }
+
+    public synchronized void reset() {
+        for (int i = 1; i < phaseHistograms.length; i++) {
+            phaseHistograms[i].reset();
+        }
+        totalHistogram.reset();
+    }
+}
@@ -0,0 +1,35 @@
+package yo.mobile.cameraview.recorder;
+
+
+import android.media.MediaCodec;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Pooled copy of one encoded access unit, waiting in {@link MuxerWriter} to be written.
+ */
+final class EncodedSample {
+
+    ByteBuffer data;
+    final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+
+    EncodedSample(int capacity) {
+        data = ByteBuffer.allocateDirect(capacity);
+    }
+
+    /**
+     * Copies the valid part of a codec output buffer. The backing buffer only grows when a
+     * sample is larger than anything this slot has held before, e.g. an unusually large key frame.
+     */
+    void copyFrom(ByteBuffer buffer, MediaCodec.BufferInfo bufferInfo, long presentationTimeUs) {
+        if (bufferInfo.size > data.capacity()) {
+            data = ByteBuffer.allocateDirect(bufferInfo.size);
+        }
+        buffer.limit(bufferInfo.offset + bufferInfo.size);
+        buffer.position(bufferInfo.offset);
+        data.clear();
+        data.put(buffer);
+        data.flip();
+        info.set(0, bufferInfo.size, presentationTimeUs, bufferInfo.flags);
+    }
+}
@@ -0,0 +1,401 @@
+package yo.mobile.cameraview.recorder;
+
+
+import android.annotation.TargetApi;
+import android.media.AudioFormat;
+import android.media.AudioRecord;
+import android.media.CamcorderProfile;
+import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
+import android.media.MediaFormat;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.os.SystemClock;
+import android.util.Log;
+import android.view.Surface;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+
+import yo.mobile.cameraview.util.MediaCodecWrapper;
+
+/**
+ * Records H.264 video, and optionally AAC audio from {@link AudioRecord}, into an MP4 file.
+ * <p>
+ * Video is encoded from a surface: pass {@link #getInputSurface()} to
+ * {@link yo.mobile.cameraview.CameraView#setRecordingSurface(Surface)} before the camera is opened.
+ * Each encoder is drained on its own thread into a {@link MuxerWriter}, which copies samples into
+ * bounded pools and writes them, interleaved by timestamp, on a separate writer thread. Heap use
+ * stays flat over long recordings, and a brief storage stall does not back up into the encoders.
+ * Encoded samples are never dropped; if storage stalls for longer than the pools can absorb, the
+ * recording stops and {@link #isFailed()} reports it.
+ * <p>
+ * Audio and video timestamps are both put on the {@link System#nanoTime()} clock, so the tracks
+ * stay in sync in the file.
+ * <p>
+ * The library doesn't declare {@code RECORD_AUDIO}: apps that record audio have to declare it in
+ * their manifest and hold it at runtime.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+public class Mp4Recorder {
+
+    private static final String TAG = Mp4Recorder.class.getSimpleName();
+
+    private static final int TRACK_VIDEO = 0;
+    private static final int TRACK_AUDIO = 1;
+
+    private static final int AUDIO_SAMPLE_RATE = 44100;
+    private static final int AUDIO_BIT_RATE = 128000;
+    private static final int I_FRAME_INTERVAL_S = 1;
+
+    // About two seconds of video and audio can be buffered while storage is stalled.
+    private static final int VIDEO_POOL_SIZE = 60;
+    private static final int AUDIO_POOL_SIZE = 90;
+    private static final int MIN_VIDEO_SAMPLE_SIZE = 64 * 1024;
+    private static final int AUDIO_SAMPLE_SIZE = 8 * 1024;
+
+    // How long an encoder thread waits for codec output before checking for stop.
+    private static final long DRAIN_TIMEOUT_MS = 10;
+    // How long an encoder thread waits for a free pool slot before the recording is stopped.
+    private static final long STALL_TIMEOUT_MS = 5000;
+
+    private final MediaCodecWrapper videoEncoder;
+    private final MediaCodecWrapper audioEncoder;
+    private final AudioRecord audioRecord;
+    private final ByteBuffer audioBuffer;
+    private final MuxerWriter writer;
+    private final File outputFile;
+    private Thread videoThread;
+    private Thread audioThread;
+    private volatile boolean recording;
+    private volatile boolean failed;
+
+    /**
+     * @param outputFile  The MP4 file to write, e.g. from
+     *                    {@link yo.mobile.cameraview.util.Camera1Helper#getOutputMediaFile(int)}
+     * @param videoFormat Video output format, see {@link #createVideoFormat(int, int, int, int)}
+     * @param withAudio   True, to record an audio track from the camcorder microphone. Needs the
+     *                    app's {@code RECORD_AUDIO} permission.
+     */
+    public Mp4Recorder(File outputFile, MediaFormat videoFormat, boolean withAudio) throws IOException {
+        this.outputFile = outputFile;
+        int bitRate = videoFormat.getInteger(MediaFormat.KEY_BIT_RATE);
+        int frameRate = videoFormat.getInteger(MediaFormat.KEY_FRAME_RATE);
+        // Room for a frame several times the average size; larger key frames grow their slot.
+        int videoSampleSize = Math.max(MIN_VIDEO_SAMPLE_SIZE, bitRate / 8 / Math.max(frameRate, 1) * 4);
+        int[] poolSizes = withAudio ? new int[]{VIDEO_POOL_SIZE, AUDIO_POOL_SIZE} : new int[]{VIDEO_POOL_SIZE};
+        int[] sampleSizes = withAudio ? new int[]{videoSampleSize, AUDIO_SAMPLE_SIZE} : new int[]{videoSampleSize};
+
+        writer = new MuxerWriter(outputFile.getPath(), poolSizes, sampleSizes);
+        MediaCodecWrapper video = null;
+        MediaCodecWrapper audio = null;
+        AudioRecord record = null;
+        try {
+            video = MediaCodecWrapper.fromVideoEncoderFormat(videoFormat);
+            if (video == null) {
+                throw new IllegalArgumentException("Not a video format: " + videoFormat);
+            }
+            video.setOutputSampleListener(new TrackSink(TRACK_VIDEO));
+            if (withAudio) {
+                int minBufferSize = AudioRecord.getMinBufferSize(AUDIO_SAMPLE_RATE,
+                        AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT);
+                record = new AudioRecord(MediaRecorder.AudioSource.CAMCORDER, AUDIO_SAMPLE_RATE,
+                        AudioFormat.CHANNEL_IN_MONO, AudioFormat.ENCODING_PCM_16BIT, minBufferSize * 2);
+                if (record.getState() != AudioRecord.STATE_INITIALIZED) {
+                    throw new IOException("AudioRecord initialization failed");
+                }
+                MediaFormat audioFormat = MediaFormat.createAudioFormat(
+                        MediaFormat.MIMETYPE_AUDIO_AAC, AUDIO_SAMPLE_RATE, 1);
+                audioFormat.setInteger(MediaFormat.KEY_AAC_PROFILE,
+                        MediaCodecInfo.CodecProfileLevel.AACObjectLC);
+                audioFormat.setInteger(MediaFormat.KEY_BIT_RATE, AUDIO_BIT_RATE);
+                audioFormat.setInteger(MediaFormat.KEY_MAX_INPUT_SIZE, minBufferSize);
+                audio = MediaCodecWrapper.fromAudioEncoderFormat(audioFormat);
+                audio.setOutputSampleListener(new TrackSink(TRACK_AUDIO));
+                audioBuffer = ByteBuffer.allocateDirect(minBufferSize);
+            } else {
+                audioBuffer = null;
+            }
+        } catch (IOException | RuntimeException e) {
+            if (video != null) {
+                video.stopAndRelease();
+            }
+            if (audio != null) {
+                audio.stopAndRelease();
+            }
+            if (record != null) {
+                record.release();
+            }
+            writer.release();
+            throw e;
+        }
+        videoEncoder = video;
+        audioEncoder = audio;
+        audioRecord = record;
+    }
+
+    /**
+     * Creates an H.264 format suitable for {@link #Mp4Recorder(File, MediaFormat, boolean)}.
+     */
+    public static MediaFormat createVideoFormat(int width, int height, int bitRate, int frameRate) {
+        MediaFormat format = MediaFormat.createVideoFormat(MediaFormat.MIMETYPE_VIDEO_AVC, width, height);
+        format.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        format.setInteger(MediaFormat.KEY_BIT_RATE, bitRate);
+        format.setInteger(MediaFormat.KEY_FRAME_RATE, frameRate);
+        format.setInteger(MediaFormat.KEY_I_FRAME_INTERVAL, I_FRAME_INTERVAL_S);
+        return format;
+    }
+
+    /**
+     * Creates an H.264 format from a {@link CamcorderProfile}, e.g. the one built for the
+     * negotiated preview size.
+     */
+    public static MediaFormat createVideoFormat(CamcorderProfile profile) {
+        return createVideoFormat(profile.videoFrameWidth, profile.videoFrameHeight,
+                profile.videoBitRate, profile.videoFrameRate);
+    }
+
+    /**
+     * @return the surface the camera should render into.
+     */
+    public Surface getInputSurface() {
+        return videoEncoder.getInputSurface();
+    }
+
+    public File getOutputFile() {
+        return outputFile;
+    }
+
+    /**
+     * Sets the rotation the player should apply, e.g. the camera display orientation. Must be
+     * called before {@link #start()}.
+     */
+    public void setOrientationHint(int degrees) {
+        writer.setOrientationHint(degrees);
+    }
+
+    /**
+     * @return True, if the recording stopped early because encoding failed or storage stalled
+     * for longer than the pools could absorb. The file holds what was written until then.
+     */
+    public boolean isFailed() {
+        return failed || writer.isStalled();
+    }
+
+    public void start() {
+        if (recording) {
+            return;
+        }
+        recording = true;
+        writer.start();
+        videoThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                drainVideo();
+            }
+        }, "Mp4RecorderVideo");
+        videoThread.start();
+        if (audioEncoder != null) {
+            audioThread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    recordAudio();
+                }
+            }, "Mp4RecorderAudio");
+            audioThread.start();
+        }
+    }
+
+    /**
+     * Stops recording and waits until the file is finalized. The recorder can't be restarted.
+     */
+    public void stop() {
+        recording = false;
+        try {
+            if (videoThread != null) {
+                videoThread.join();
+            }
+            if (audioThread != null) {
+                audioThread.join();
+            }
+            writer.finish();
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while stopping " + e.getMessage());
+            writer.abort();
+            Thread.currentThread().interrupt();
+        } finally {
+            videoEncoder.stopAndRelease();
+            if (audioEncoder != null) {
+                audioEncoder.stopAndRelease();
+            }
+            if (audioRecord != null) {
+                audioRecord.release();
+            }
+        }
+    }
+
+    private void drainVideo() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        boolean endSignaled = false;
+        try {
+            while (true) {
+                if (!recording && !endSignaled) {
+                    endSignaled = videoEncoder.signalEndOfInputStream(0);
+                }
+                if (drain(videoEncoder, info)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException | RuntimeException e) {
+            Log.e(TAG, "Video encoding failed", e);
+            fail();
+        } finally {
+            writer.endTrack(TRACK_VIDEO);
+        }
+    }
+
+    private void recordAudio() {
+        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+        long startTimeUs = -1;
+        long samplesRead = 0;
+        boolean endSignaled = false;
+        try {
+            audioRecord.startRecording();
+            if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+                // E.g. another app holds the microphone.
+                throw new IllegalStateException("AudioRecord didn't start recording");
+            }
+            while (true) {
+                if (!endSignaled && audioEncoder.awaitInputBuffer(DRAIN_TIMEOUT_MS)) {
+                    if (!recording) {
+                        long endTimeUs = startTimeUs < 0 ? System.nanoTime() / 1000
+                                : startTimeUs + samplesRead * 1000000 / AUDIO_SAMPLE_RATE;
+                        endSignaled = audioEncoder.signalEndOfInputStream(endTimeUs);
+                    } else {
+                        audioBuffer.clear();
+                        int read = audioRecord.read(audioBuffer, audioBuffer.capacity());
+                        if (read > 0) {
+                            if (startTimeUs < 0) {
+                                // The first buffer was captured over the time it covers, up to
+                                // about now. Later buffers follow on by sample count.
+                                startTimeUs = System.nanoTime() / 1000
+                                        - (read / 2) * 1000000L / AUDIO_SAMPLE_RATE;
+                            }
+                            long presentationTimeUs = startTimeUs + samplesRead * 1000000 / AUDIO_SAMPLE_RATE;
+                            audioBuffer.limit(read);
+                            audioEncoder.writeSample(audioBuffer, null, presentationTimeUs, 0);
+                            // 16 bit mono PCM
+                            samplesRead += read / 2;
+                        }
+                    }
+                }
+                if (drain(audioEncoder, info)) {
+                    break;
+                }
+            }
+        } catch (InterruptedException | MediaCodecWrapper.WriteException | RuntimeException e) {
+            Log.e(TAG, "Audio encoding failed", e);
+            fail();
+        } finally {
+            writer.endTrack(TRACK_AUDIO);
+            stopAudioRecord();
+        }
+    }
+
+    /**
+     * Stops the microphone if it was started. Runs last on the audio thread, so a failing stop
+     * can neither keep the audio track open nor end the thread with an exception.
+     */
+    private void stopAudioRecord() {
+        if (audioRecord.getRecordingState() != AudioRecord.RECORDSTATE_RECORDING) {
+            return;
+        }
+        try {
+            audioRecord.stop();
+        } catch (IllegalStateException e) {
+            Log.w(TAG, "Failed to stop the audio recording", e);
+        }
+    }
+
+    /**
+     * Stops the recording after a failure. The encoders are ended normally and the file is
+     * finished with what was written.
+     */
+    private void fail() {
+        failed = true;
+        recording = false;
+        writer.abort();
+    }
+
+    /**
+     * Hands every available encoded sample to the writer.
+     *
+     * @return True, once the end of stream has been reached.
+     */
+    private boolean drain(MediaCodecWrapper encoder, MediaCodec.BufferInfo info)
+            throws InterruptedException {
+        long timeoutMs = encoder == videoEncoder ? DRAIN_TIMEOUT_MS : 0;
+        while (encoder.awaitSample(info, timeoutMs)) {
+            encoder.popSample(false);
+            if ((info.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0) {
+                return true;
+            }
+            timeoutMs = 0;
+        }
+        return false;
+    }
+
+    /**
+     * Forwards encoded samples of one track to the writer. Runs on that track's encoder thread.
+     * <p>
+     * Video timestamps come from the camera through the input surface. Cameras stamp frames with
+     * either the monotonic clock or, with a realtime timestamp source, the elapsed realtime
+     * clock; the first sample tells which, and realtime stamps are moved to the monotonic clock
+     * the audio track uses.
+     */
+    private final class TrackSink implements MediaCodecWrapper.OutputSampleListener {
+
+        private final int track;
+        private boolean formatAdded;
+        private boolean clockKnown;
+        private long clockOffsetUs;
+
+        TrackSink(int track) {
+            this.track = track;
+        }
+
+        @Override
+        public void outputSample(MediaCodecWrapper sender, MediaCodec.BufferInfo info, ByteBuffer buffer) {
+            // Codec specific data is part of the output format, not a sample.
+            if ((info.flags & MediaCodec.BUFFER_FLAG_CODEC_CONFIG) != 0 || info.size == 0) {
+                return;
+            }
+            if (!formatAdded) {
+                writer.addTrack(track, sender.getOutputFormat());
+                formatAdded = true;
+            }
+            if (!clockKnown) {
+                clockKnown = true;
+                if (track == TRACK_VIDEO) {
+                    long monotonicUs = System.nanoTime() / 1000;
+                    long realtimeUs = SystemClock.elapsedRealtimeNanos() / 1000;
+                    long timeUs = info.presentationTimeUs;
+                    if (Math.abs(timeUs - realtimeUs) < Math.abs(timeUs - monotonicUs)) {
+                        clockOffsetUs = monotonicUs - realtimeUs;
+                    }
+                }
+            }
+            try {
+                if (!writer.writeSample(track, buffer, info, info.presentationTimeUs + clockOffsetUs,
+                        STALL_TIMEOUT_MS)) {
+                    // Stalled or failed; let the encoders run to the end of stream.
+                    recording = false;
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+}
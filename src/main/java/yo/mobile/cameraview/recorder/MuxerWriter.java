@@ -0,0 +1,336 @@
+package yo.mobile.cameraview.recorder;
+
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.media.MediaMuxer;
+import android.os.Build;
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Feeds encoded samples into a {@link MediaMuxer} on its own writer thread.
+ * <p>
+ * Producers copy each encoded sample into a slot taken from a fixed per-track pool and return
+ * immediately, so codec output buffers are released right away and a brief storage stall is
+ * absorbed by the pool instead of stalling the encoders. Memory use is bounded by the pool. A
+ * sample is never dropped, since every later frame up to the next key frame depends on it: a
+ * producer waits for a free slot, and if storage stalls for longer than it is willing to wait,
+ * the file is finished with what was written so far.
+ * <p>
+ * All tracks must have their presentation times on the same clock. They are rebased together to
+ * the earliest first sample of any track, so their offset against each other is kept. The writer
+ * interleaves tracks in presentation time order: it only writes a sample once every other live
+ * track has a later sample queued, or has fallen more than {@link #MAX_INTERLEAVE_US} behind, or
+ * the sample's own pool is exhausted.
+ */
+@TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+class MuxerWriter implements Runnable {
+
+    private static final String TAG = MuxerWriter.class.getSimpleName();
+
+    // How far one track may run ahead of a track that has nothing queued.
+    static final long MAX_INTERLEAVE_US = 500000;
+
+    private final MediaMuxer muxer;
+    private final int trackCount;
+    private final MediaFormat[] formats;
+    private final int[] muxerTracks;
+    private final ArrayDeque<EncodedSample>[] queued;
+    private final ArrayDeque<EncodedSample>[] free;
+    private final long[] lastPresentationTimeUs;
+    private final boolean[] ended;
+    // Shared start of all tracks, -1 until every track has its first sample queued or has ended.
+    private long startTimeUs = -1;
+    private boolean muxerStarted;
+    private boolean aborted;
+    private boolean stalled;
+    private Thread thread;
+    // Track of the sample last returned by nextSample(), only used on the writer thread.
+    private int sampleTrack;
+
+    /**
+     * @param path        Output file path
+     * @param poolSizes   Number of pooled samples per track
+     * @param sampleSizes Initial capacity of each pooled sample, per track
+     */
+    @SuppressWarnings("unchecked")
+    MuxerWriter(String path, int[] poolSizes, int[] sampleSizes) throws IOException {
+        muxer = new MediaMuxer(path, MediaMuxer.OutputFormat.MUXER_OUTPUT_MPEG_4);
+        trackCount = poolSizes.length;
+        formats = new MediaFormat[trackCount];
+        muxerTracks = new int[trackCount];
+        queued = new ArrayDeque[trackCount];
+        free = new ArrayDeque[trackCount];
+        lastPresentationTimeUs = new long[trackCount];
+        ended = new boolean[trackCount];
+        for (int track = 0; track < trackCount; track++) {
+            queued[track] = new ArrayDeque<>(poolSizes[track]);
+            free[track] = new ArrayDeque<>(poolSizes[track]);
+            for (int i = 0; i < poolSizes[track]; i++) {
+                free[track].add(new EncodedSample(sampleSizes[track]));
+            }
+            lastPresentationTimeUs[track] = -1;
+        }
+    }
+
+    /**
+     * Must be called before the first track is added.
+     */
+    void setOrientationHint(int degrees) {
+        muxer.setOrientationHint(degrees);
+    }
+
+    void start() {
+        thread = new Thread(this, "MuxerWriter");
+        thread.start();
+    }
+
+    /**
+     * Registers the output format of a track. The muxer is started once every track has one.
+     */
+    synchronized void addTrack(int track, MediaFormat format) {
+        formats[track] = format;
+        notifyAll();
+    }
+
+    /**
+     * Queues a copy of an encoded sample for writing, waiting for a free pool slot while the
+     * writer has fallen behind.
+     *
+     * @param presentationTimeUs Presentation time on the clock shared by all tracks
+     * @param timeoutMs          How long storage may stall before the recording is stopped
+     * @return False, if the writer was aborted, by now or by an earlier stall or failure; the
+     * sample is not written and nothing more will be.
+     */
+    boolean writeSample(int track, ByteBuffer buffer, MediaCodec.BufferInfo info, long presentationTimeUs,
+                        long timeoutMs) throws InterruptedException {
+        EncodedSample sample;
+        synchronized (this) {
+            long deadline = System.currentTimeMillis() + timeoutMs;
+            long remaining = timeoutMs;
+            while (free[track].isEmpty() && !aborted && remaining > 0) {
+                wait(remaining);
+                remaining = deadline - System.currentTimeMillis();
+            }
+            if (aborted) {
+                return false;
+            }
+            sample = free[track].poll();
+            if (sample == null) {
+                Log.e(TAG, "Storage stalled for " + timeoutMs + " ms, recording stopped");
+                stalled = true;
+                aborted = true;
+                notifyAll();
+                return false;
+            }
+        }
+        // Copy outside the lock so the writer is never held up by a producer.
+        sample.copyFrom(buffer, info, presentationTimeUs);
+        synchronized (this) {
+            queued[track].add(sample);
+            notifyAll();
+        }
+        return true;
+    }
+
+    /**
+     * Marks a track as complete; the writer finishes the file once every track has ended.
+     */
+    synchronized void endTrack(int track) {
+        ended[track] = true;
+        notifyAll();
+    }
+
+    /**
+     * @return True, if the recording was stopped because storage stalled for too long.
+     */
+    synchronized boolean isStalled() {
+        return stalled;
+    }
+
+    /**
+     * Waits for every queued sample to be written and finalizes the file. All tracks must have
+     * been ended.
+     */
+    void finish() throws InterruptedException {
+        if (thread != null) {
+            thread.join();
+            thread = null;
+        }
+    }
+
+    /**
+     * Stops writing without waiting for queued samples, e.g. after an encoder failure.
+     */
+    synchronized void abort() {
+        aborted = true;
+        notifyAll();
+    }
+
+    @Override
+    public void run() {
+        try {
+            if (!awaitFormats()) {
+                return;
+            }
+            EncodedSample sample;
+            while ((sample = nextSample()) != null) {
+                int track = sampleTrack;
+                muxer.writeSampleData(muxerTracks[track], sample.data, sample.info);
+                synchronized (this) {
+                    free[track].add(sample);
+                    notifyAll();
+                }
+            }
+        } catch (InterruptedException e) {
+            Log.w(TAG, "Interrupted while writing " + e.getMessage());
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Muxer failed", e);
+            abort();
+        } finally {
+            release();
+        }
+    }
+
+    private synchronized boolean awaitFormats() throws InterruptedException {
+        while (!aborted) {
+            boolean ready = true;
+            for (int track = 0; track < trackCount; track++) {
+                if (formats[track] == null) {
+                    // A track that ended without output would keep the muxer from ever starting.
+                    if (ended[track]) {
+                        Log.e(TAG, "Track " + track + " ended without output");
+                        aborted = true;
+                        notifyAll();
+                        return false;
+                    }
+                    ready = false;
+                }
+            }
+            if (ready) {
+                for (int track = 0; track < trackCount; track++) {
+                    muxerTracks[track] = muxer.addTrack(formats[track]);
+                }
+                muxer.start();
+                muxerStarted = true;
+                return true;
+            }
+            wait();
+        }
+        return false;
+    }
+
+    /**
+     * Blocks until the next sample in presentation time order can be written.
+     *
+     * @return The sample, or null once every track has ended and been drained.
+     */
+    private synchronized EncodedSample nextSample() throws InterruptedException {
+        while (!aborted) {
+            if (startTimeUs < 0 && !findStartTime()) {
+                wait();
+                continue;
+            }
+            int next = -1;
+            long nextTimeUs = Long.MAX_VALUE;
+            boolean allDone = true;
+            for (int track = 0; track < trackCount; track++) {
+                EncodedSample head = queued[track].peek();
+                if (head != null) {
+                    allDone = false;
+                    long timeUs = Math.max(head.info.presentationTimeUs - startTimeUs, 0);
+                    if (timeUs < nextTimeUs) {
+                        next = track;
+                        nextTimeUs = timeUs;
+                    }
+                } else if (!ended[track]) {
+                    allDone = false;
+                }
+            }
+            if (allDone) {
+                return null;
+            }
+            if (next >= 0 && canWrite(next, nextTimeUs)) {
+                EncodedSample sample = queued[next].poll();
+                sample.info.presentationTimeUs = Math.max(nextTimeUs, lastPresentationTimeUs[next]);
+                lastPresentationTimeUs[next] = sample.info.presentationTimeUs;
+                sampleTrack = next;
+                return sample;
+            }
+            wait();
+        }
+        return null;
+    }
+
+    /**
+     * A sample may be written once no live track with an empty queue could still produce an
+     * earlier one, or when its track has used up its pool and would otherwise start dropping.
+     */
+    private boolean canWrite(int track, long timeUs) {
+        if (free[track].isEmpty()) {
+            return true;
+        }
+        for (int other = 0; other < trackCount; other++) {
+            if (other == track || ended[other] || !queued[other].isEmpty()) {
+                continue;
+            }
+            if (timeUs - lastPresentationTimeUs[other] <= MAX_INTERLEAVE_US) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Sets the shared start to the earliest first sample, once every track has queued its first
+     * sample or ended. If a pool fills up before that, the tracks that have samples decide, so
+     * the pool doesn't stay full.
+     *
+     * @return True, if the start is known.
+     */
+    private boolean findStartTime() {
+        long earliest = Long.MAX_VALUE;
+        boolean complete = true;
+        boolean poolFull = false;
+        for (int track = 0; track < trackCount; track++) {
+            EncodedSample head = queued[track].peek();
+            if (head != null) {
+                earliest = Math.min(earliest, head.info.presentationTimeUs);
+                poolFull |= free[track].isEmpty();
+            } else if (!ended[track]) {
+                complete = false;
+            }
+        }
+        if (earliest == Long.MAX_VALUE) {
+            // Every track ended without a sample, there is nothing to write.
+            startTimeUs = complete ? 0 : -1;
+            return complete;
+        }
+        if (!complete && !poolFull) {
+            return false;
+        }
+        startTimeUs = earliest;
+        return true;
+    }
+
+    /**
+     * Finalizes the file and releases the muxer. Called by the writer thread when it is done, or
+     * directly if the writer is never started.
+     */
+    void release() {
+        try {
+            if (muxerStarted) {
+                muxer.stop();
+            }
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Failed to finalize recording", e);
+        } finally {
+            muxer.release();
+        }
+    }
+}
@@ -28,8 +28,6 @@ import android.view.Surface;
 import android.view.WindowManager;
 
 import java.io.File;
-import java.text.SimpleDateFormat;
-import java.util.Date;
 import java.util.List;
 
 import static android.content.ContentValues.TAG;
@@ -55,51 +53,30 @@ public class Camera1Helper {
      */
     public static Camera.Size getOptimalVideoSize(List<Camera.Size> supportedVideoSizes,
                                                   List<Camera.Size> previewSizes, int w, int h) {
-        // Use a very small tolerance because we want an exact match.
-        final double ASPECT_TOLERANCE = 0.1;
-        double targetRatio = (double) w / h;
-
         // Supported video sizes list might be null, it means that we are allowed to use the preview
         // sizes
-        List<Camera.Size> videoSizes;
-        if (supportedVideoSizes != null) {
-            videoSizes = supportedVideoSizes;
-        } else {
-            videoSizes = previewSizes;
-        }
-        Camera.Size optimalSize = null;
-
-        // Start with max value and refine as we iterate over available video sizes. This is the
-        // minimum difference between view and camera height.
-        double minDiff = Double.MAX_VALUE;
-
-        // Target view height
-        int targetHeight = h;
-
-        // Try to find a video size that matches aspect ratio and the target view size.
-        // Iterate over all available sizes and pick the largest size that can fit in the view and
-        // still maintain the aspect ratio.
-        for (Camera.Size size : videoSizes) {
-            double ratio = (double) size.width / size.height;
-            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
-                continue;
-            if (Math.abs(size.height - targetHeight) < minDiff && previewSizes.contains(size)) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
-            }
-        }
+        List<Camera.Size> videoSizes = supportedVideoSizes != null ? supportedVideoSizes : previewSizes;
+        int index = SizeSelector.selectVideoSize(toSizeList(supportedVideoSizes),
+                toSizeList(previewSizes), w, h);
+        return index >= 0 ? videoSizes.get(index) : null;
+    }
 
-        // Cannot find video size that matches the aspect ratio, ignore the requirement
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Camera.Size size : videoSizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff && previewSizes.contains(size)) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
-                }
-            }
+    /**
+     * @param sizes Camera sizes, may be null
+     * @return The sizes as a {@link SizeList}, or null
+     */
+    public static SizeList toSizeList(List<Camera.Size> sizes) {
+        if (sizes == null) {
+            return null;
         }
-        return optimalSize;
+        int[] widths = new int[sizes.size()];
+        int[] heights = new int[sizes.size()];
+        for (int i = 0; i < widths.length; i++) {
+            Camera.Size size = sizes.get(i);
+            widths[i] = size.width;
+            heights[i] = size.height;
+        }
+        return new SizeList(widths, heights);
     }
 
     /**
@@ -276,29 +253,8 @@ public class Camera1Helper {
      * @return
      */
     public static Camera.Size getOptimalPreviewSize(List<Camera.Size> sizes, int targetHeight) {
-        final double MIN_ASPECT_RATIO = 1.0;
-        final double MAX_ASPECT_RATIO = 1.5;
-        Camera.Size optimalSize = null;
-        double minDiff = Double.MAX_VALUE;
-        for (Camera.Size size : sizes) {
-            double ratio = (double) size.width / size.height;
-            if (ratio <= MIN_ASPECT_RATIO || ratio > MAX_ASPECT_RATIO)
-                continue;
-            if (Math.abs(size.height - targetHeight) < minDiff) {
-                optimalSize = size;
-                minDiff = Math.abs(size.height - targetHeight);
-            }
-        }
-        if (optimalSize == null) {
-            minDiff = Double.MAX_VALUE;
-            for (Camera.Size size : sizes) {
-                if (Math.abs(size.height - targetHeight) < minDiff) {
-                    optimalSize = size;
-                    minDiff = Math.abs(size.height - targetHeight);
-                }
-            }
-        }
-        return optimalSize;
+        int index = SizeSelector.selectPreviewSize(toSizeList(sizes), targetHeight);
+        return index >= 0 ? sizes.get(index) : null;
     }
 
     /**
@@ -358,47 +314,45 @@ public class Camera1Helper {
         camera.setParameters(parameters);
     }
 
+    private static MediaStorage sMediaStorage;
+
     /**
      * Creates a media file in the {@code Environment.DIRECTORY_PICTURES} directory. The directory
      * is persistent and available to other applications like gallery.
+     * <p>
+     * The directory is only created once and names are unique down to the millisecond, see
+     * {@link MediaStorage}. The file itself is not created.
      *
      * @param type Media type. Can be video or image.
      * @return A file object pointing to the newly created file.
      */
-    public static File getOutputMediaFile(int type) {
+    public static synchronized File getOutputMediaFile(int type) {
         // To be safe, you should check that the SDCard is mounted
         // using Environment.getExternalStorageState() before doing this.
         if (!Environment.getExternalStorageState().equalsIgnoreCase(Environment.MEDIA_MOUNTED)) {
             return null;
         }
 
-        File mediaStorageDir = new File(Environment.getExternalStoragePublicDirectory(
-                Environment.DIRECTORY_PICTURES), "CameraSample");
-        // This location works best if you want the created images to be shared
-        // between applications and persist after your app has been uninstalled.
-
-        // Create the storage directory if it does not exist
-        if (!mediaStorageDir.exists()) {
-            if (!mediaStorageDir.mkdirs()) {
-                Log.d("CameraSample", "failed to create directory");
-                return null;
-            }
+        if (sMediaStorage == null) {
+            // This location works best if you want the created images to be shared
+            // between applications and persist after your app has been uninstalled.
+            sMediaStorage = new MediaStorage(new File(Environment.getExternalStoragePublicDirectory(
+                    Environment.DIRECTORY_PICTURES), "CameraSample"));
         }
 
-        // Create a media file name
-        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
         File mediaFile;
         if (type == MEDIA_TYPE_IMAGE) {
-            mediaFile = new File(mediaStorageDir.getPath() + File.separator +
-                    "IMG_" + timeStamp + ".jpg");
+            mediaFile = sMediaStorage.newFile("IMG_", ".jpg");
         } else if (type == MEDIA_TYPE_VIDEO) {
-            mediaFile = new File(mediaStorageDir.getPath() + File.separator +
-                    "VID_" + timeStamp + ".mp4");
+            mediaFile = sMediaStorage.newFile("VID_", ".mp4");
         } else {
             return null;
         }
+        if (mediaFile == null) {
+            Log.d("CameraSample", "failed to create directory");
+        }
 
         return mediaFile;
     }
 
-}
\ No newline at end of file
+}
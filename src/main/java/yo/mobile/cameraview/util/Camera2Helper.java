@@ -24,10 +24,7 @@ import android.os.Build;
 import android.util.Log;
 import android.util.Size;
 
-import java.util.ArrayList;
-import java.util.Collections;
 import java.util.Comparator;
-import java.util.List;
 
 import static android.content.ContentValues.TAG;
 
@@ -43,7 +40,9 @@ public class Camera2Helper {
         if (Build.VERSION.SDK_INT < Build.VERSION_CODES.LOLLIPOP) return false;
         try {
             CameraManager manager = (CameraManager) context.getSystemService(Context.CAMERA_SERVICE);
-            String[] idList = manager.getCameraIdList();
+            // The ids and hardware levels come from the capability cache after the first run.
+            CapabilityCache cache = CapabilityCache.get(context);
+            String[] idList = cache.getCamera2Ids(manager);
             boolean notNull = true;
             if (idList.length == 0) {
                 notNull = false;
@@ -53,9 +52,7 @@ public class Camera2Helper {
                         notNull = false;
                         break;
                     }
-                    final CameraCharacteristics characteristics = manager.getCameraCharacteristics(str);
-                    //noinspection ConstantConditions
-                    final int supportLevel = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+                    final int supportLevel = cache.getCamera2(manager, str).getHardwareLevel();
                     if (supportLevel == CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL_LEGACY) {
                         notNull = false;
                         break;
@@ -101,34 +98,29 @@ public class Camera2Helper {
      */
     public static Size chooseOptimalSize(Size[] choices, int textureViewWidth,
                                          int textureViewHeight, int maxWidth, int maxHeight, Size aspectRatio) {
-
-        // Collect the supported resolutions that are at least as big as the preview Surface
-        List<Size> bigEnough = new ArrayList<>();
-        // Collect the supported resolutions that are smaller than the preview Surface
-        List<Size> notBigEnough = new ArrayList<>();
-        int w = aspectRatio.getWidth();
-        int h = aspectRatio.getHeight();
-        for (Size option : choices) {
-            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
-                    option.getHeight() == option.getWidth() * h / w) {
-                if (option.getWidth() >= textureViewWidth &&
-                        option.getHeight() >= textureViewHeight) {
-                    bigEnough.add(option);
-                } else {
-                    notBigEnough.add(option);
-                }
-            }
-        }
-
-        // Pick the smallest of those big enough. If there is no one big enough, pick the
-        // largest of those not big enough.
-        if (bigEnough.size() > 0) {
-            return Collections.min(bigEnough, new CompareSizesByArea());
-        } else if (notBigEnough.size() > 0) {
-            return Collections.max(notBigEnough, new CompareSizesByArea());
-        } else {
+        int index = SizeSelector.selectOptimalSize(toSizeList(choices), textureViewWidth,
+                textureViewHeight, maxWidth, maxHeight, aspectRatio.getWidth(), aspectRatio.getHeight());
+        if (index < 0) {
             Log.e(TAG, "Couldn't find any suitable preview size");
             return choices[0];
         }
+        return choices[index];
+    }
+
+    /**
+     * @param sizes Camera sizes, may be null
+     * @return The sizes as a {@link SizeList}, or null
+     */
+    public static SizeList toSizeList(Size[] sizes) {
+        if (sizes == null) {
+            return null;
+        }
+        int[] widths = new int[sizes.length];
+        int[] heights = new int[sizes.length];
+        for (int i = 0; i < sizes.length; i++) {
+            widths[i] = sizes[i].getWidth();
+            heights[i] = sizes[i].getHeight();
+        }
+        return new SizeList(widths, heights);
     }
 }
\ No newline at end of file
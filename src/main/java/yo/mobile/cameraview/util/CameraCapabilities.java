@@ -0,0 +1,111 @@
+package yo.mobile.cameraview.util;
+
+/**
+ * Snapshot of what one camera supports, as far as the camera backends need it to decide how to
+ * open it. Built by {@link CapabilityCache} from either camera API.
+ */
+public final class CameraCapabilities {
+
+    public static final int FACING_BACK = 0;
+    public static final int FACING_FRONT = 1;
+    public static final int FACING_EXTERNAL = 2;
+
+    /**
+     * Hardware level of cameras that were probed through the old camera API.
+     */
+    public static final int HARDWARE_LEVEL_UNKNOWN = -1;
+
+    private final String key;
+    private final int facing;
+    private final int orientation;
+    private final int hardwareLevel;
+    private final SizeList previewSizes;
+    private final SizeList videoSizes;
+    private final SizeList jpegSizes;
+    private final int[] fpsRanges;
+
+    CameraCapabilities(String key, int facing, int orientation, int hardwareLevel,
+                       SizeList previewSizes, SizeList videoSizes, SizeList jpegSizes, int[] fpsRanges) {
+        this.key = key;
+        this.facing = facing;
+        this.orientation = orientation;
+        this.hardwareLevel = hardwareLevel;
+        this.previewSizes = previewSizes;
+        this.videoSizes = videoSizes;
+        this.jpegSizes = jpegSizes;
+        this.fpsRanges = fpsRanges;
+    }
+
+    /**
+     * @return The API and id of the camera, e.g. "camera2:0"
+     */
+    public String getKey() {
+        return key;
+    }
+
+    /**
+     * @return One of {@link #FACING_BACK}, {@link #FACING_FRONT}, {@link #FACING_EXTERNAL}
+     */
+    public int getFacing() {
+        return facing;
+    }
+
+    /**
+     * @return Clockwise rotation of the sensor relative to the device's natural orientation
+     */
+    public int getOrientation() {
+        return orientation;
+    }
+
+    /**
+     * @return {@code CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL}, or
+     * {@link #HARDWARE_LEVEL_UNKNOWN} for the old camera API
+     */
+    public int getHardwareLevel() {
+        return hardwareLevel;
+    }
+
+    /**
+     * @return Preview sizes, or null if the camera has no stream configuration
+     */
+    public SizeList getPreviewSizes() {
+        return previewSizes;
+    }
+
+    /**
+     * @return Video sizes, or null if the camera doesn't report them separately
+     */
+    public SizeList getVideoSizes() {
+        return videoSizes;
+    }
+
+    /**
+     * @return Still capture sizes, or null if unknown
+     */
+    public SizeList getJpegSizes() {
+        return jpegSizes;
+    }
+
+    public int getFpsRangeCount() {
+        return fpsRanges.length / 2;
+    }
+
+    /**
+     * @return Minimum of the given frame rate range, in frames per 1000 seconds like
+     * {@code Camera.Parameters.getSupportedPreviewFpsRange()}
+     */
+    public int getFpsRangeMin(int index) {
+        return fpsRanges[index * 2];
+    }
+
+    /**
+     * @return Maximum of the given frame rate range, in frames per 1000 seconds
+     */
+    public int getFpsRangeMax(int index) {
+        return fpsRanges[index * 2 + 1];
+    }
+
+    int[] getFpsRanges() {
+        return fpsRanges;
+    }
+}
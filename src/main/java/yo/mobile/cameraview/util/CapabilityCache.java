@@ -0,0 +1,310 @@
+package yo.mobile.cameraview.util;
+
+import android.annotation.TargetApi;
+import android.content.Context;
+import android.graphics.ImageFormat;
+import android.graphics.SurfaceTexture;
+import android.hardware.Camera;
+import android.hardware.camera2.CameraAccessException;
+import android.hardware.camera2.CameraCharacteristics;
+import android.hardware.camera2.CameraManager;
+import android.hardware.camera2.params.StreamConfigurationMap;
+import android.media.MediaRecorder;
+import android.os.Build;
+import android.util.Log;
+import android.util.Range;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Process-wide cache of {@link CameraCapabilities}, persisted to a small binary file so later
+ * cold starts don't have to query the camera service for them.
+ * <p>
+ * The file starts with a format version and {@link Build#FINGERPRINT}; it is discarded when
+ * either differs, e.g. after an OS update. Cameras are probed on first use and the file is
+ * rewritten whenever a new camera was probed.
+ */
+public final class CapabilityCache {
+
+    private static final String TAG = CapabilityCache.class.getSimpleName();
+    private static final String FILE_NAME = "camera_capabilities.bin";
+    private static final int MAGIC = 0x43415043;
+    private static final int VERSION = 1;
+    // Upper bound for any count read from the file, to reject corrupt data early.
+    private static final int MAX_COUNT = 4096;
+
+    private static CapabilityCache sInstance;
+
+    private final File mFile;
+    private final HashMap<String, CameraCapabilities> mCameras = new HashMap<>();
+    // Null until the camera2 id list has been read.
+    private String[] mCamera2Ids;
+
+    private CapabilityCache(File file) {
+        mFile = file;
+        try {
+            load();
+        } catch (FileNotFoundException e) {
+            // First run
+        } catch (IOException e) {
+            Log.w(TAG, "Discarding capability cache: " + e.getMessage());
+            mCameras.clear();
+            mCamera2Ids = null;
+            //noinspection ResultOfMethodCallIgnored
+            mFile.delete();
+        }
+    }
+
+    public static synchronized CapabilityCache get(Context context) {
+        if (sInstance == null) {
+            sInstance = new CapabilityCache(new File(context.getCacheDir(), FILE_NAME));
+        }
+        return sInstance;
+    }
+
+    /**
+     * @return The camera2 ids, read from the camera service only if not cached
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public synchronized String[] getCamera2Ids(CameraManager manager) throws CameraAccessException {
+        if (mCamera2Ids == null) {
+            mCamera2Ids = manager.getCameraIdList();
+            save();
+        }
+        return mCamera2Ids.clone();
+    }
+
+    /**
+     * @return The capabilities of a camera2 camera, read from its characteristics only if not
+     * cached
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public synchronized CameraCapabilities getCamera2(CameraManager manager, String cameraId)
+            throws CameraAccessException {
+        String key = "camera2:" + cameraId;
+        CameraCapabilities capabilities = mCameras.get(key);
+        if (capabilities == null) {
+            capabilities = probeCamera2(key, manager.getCameraCharacteristics(cameraId));
+            mCameras.put(key, capabilities);
+            save();
+        }
+        return capabilities;
+    }
+
+    /**
+     * @param camera The opened camera, only used if its capabilities are not cached
+     * @return The capabilities of a camera1 camera
+     */
+    public synchronized CameraCapabilities getCamera1(int cameraId, Camera camera) {
+        String key = "camera1:" + cameraId;
+        CameraCapabilities capabilities = mCameras.get(key);
+        if (capabilities == null) {
+            capabilities = probeCamera1(key, cameraId, camera.getParameters());
+            mCameras.put(key, capabilities);
+            save();
+        }
+        return capabilities;
+    }
+
+    /**
+     * Forgets all cached capabilities, in memory and on disk.
+     */
+    public synchronized void clear() {
+        mCameras.clear();
+        mCamera2Ids = null;
+        //noinspection ResultOfMethodCallIgnored
+        mFile.delete();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static CameraCapabilities probeCamera2(String key, CameraCharacteristics characteristics) {
+        Integer lensFacing = characteristics.get(CameraCharacteristics.LENS_FACING);
+        int facing;
+        if (lensFacing == null || lensFacing == CameraCharacteristics.LENS_FACING_BACK) {
+            facing = CameraCapabilities.FACING_BACK;
+        } else if (lensFacing == CameraCharacteristics.LENS_FACING_FRONT) {
+            facing = CameraCapabilities.FACING_FRONT;
+        } else {
+            facing = CameraCapabilities.FACING_EXTERNAL;
+        }
+        Integer orientation = characteristics.get(CameraCharacteristics.SENSOR_ORIENTATION);
+        Integer hardwareLevel = characteristics.get(CameraCharacteristics.INFO_SUPPORTED_HARDWARE_LEVEL);
+
+        SizeList previewSizes = null;
+        SizeList videoSizes = null;
+        SizeList jpegSizes = null;
+        StreamConfigurationMap map = characteristics.get(CameraCharacteristics.SCALER_STREAM_CONFIGURATION_MAP);
+        if (map != null) {
+            previewSizes = Camera2Helper.toSizeList(map.getOutputSizes(SurfaceTexture.class));
+            videoSizes = Camera2Helper.toSizeList(map.getOutputSizes(MediaRecorder.class));
+            jpegSizes = Camera2Helper.toSizeList(map.getOutputSizes(ImageFormat.JPEG));
+        }
+
+        Range<Integer>[] ranges = characteristics.get(CameraCharacteristics.CONTROL_AE_AVAILABLE_TARGET_FPS_RANGES);
+        int[] fpsRanges = new int[ranges != null ? ranges.length * 2 : 0];
+        for (int i = 0; i < fpsRanges.length / 2; i++) {
+            fpsRanges[i * 2] = ranges[i].getLower() * 1000;
+            fpsRanges[i * 2 + 1] = ranges[i].getUpper() * 1000;
+        }
+
+        return new CameraCapabilities(key, facing, orientation != null ? orientation : 0,
+                hardwareLevel != null ? hardwareLevel : CameraCapabilities.HARDWARE_LEVEL_UNKNOWN,
+                previewSizes, videoSizes, jpegSizes, fpsRanges);
+    }
+
+    private static CameraCapabilities probeCamera1(String key, int cameraId, Camera.Parameters parameters) {
+        Camera.CameraInfo info = new Camera.CameraInfo();
+        Camera.getCameraInfo(cameraId, info);
+        int facing = info.facing == Camera.CameraInfo.CAMERA_FACING_FRONT
+                ? CameraCapabilities.FACING_FRONT : CameraCapabilities.FACING_BACK;
+
+        List<int[]> ranges = parameters.getSupportedPreviewFpsRange();
+        int[] fpsRanges = new int[ranges != null ? ranges.size() * 2 : 0];
+        for (int i = 0; i < fpsRanges.length / 2; i++) {
+            int[] range = ranges.get(i);
+            fpsRanges[i * 2] = range[Camera.Parameters.PREVIEW_FPS_MIN_INDEX];
+            fpsRanges[i * 2 + 1] = range[Camera.Parameters.PREVIEW_FPS_MAX_INDEX];
+        }
+
+        return new CameraCapabilities(key, facing, info.orientation,
+                CameraCapabilities.HARDWARE_LEVEL_UNKNOWN,
+                Camera1Helper.toSizeList(parameters.getSupportedPreviewSizes()),
+                Camera1Helper.toSizeList(parameters.getSupportedVideoSizes()),
+                Camera1Helper.toSizeList(parameters.getSupportedPictureSizes()),
+                fpsRanges);
+    }
+
+    private void load() throws IOException {
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        try {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("unknown format");
+            }
+            if (!Build.FINGERPRINT.equals(in.readUTF())) {
+                throw new IOException("OS build changed");
+            }
+            int idCount = readCount(in);
+            if (idCount >= 0) {
+                String[] ids = new String[idCount];
+                for (int i = 0; i < idCount; i++) {
+                    ids[i] = in.readUTF();
+                }
+                mCamera2Ids = ids;
+            }
+            int cameraCount = readCount(in);
+            for (int i = 0; i < cameraCount; i++) {
+                String key = in.readUTF();
+                int facing = in.readInt();
+                int orientation = in.readInt();
+                int hardwareLevel = in.readInt();
+                SizeList previewSizes = readSizes(in);
+                SizeList videoSizes = readSizes(in);
+                SizeList jpegSizes = readSizes(in);
+                int[] fpsRanges = new int[Math.max(readCount(in), 0)];
+                for (int j = 0; j < fpsRanges.length; j++) {
+                    fpsRanges[j] = in.readInt();
+                }
+                mCameras.put(key, new CameraCapabilities(key, facing, orientation, hardwareLevel,
+                        previewSizes, videoSizes, jpegSizes, fpsRanges));
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Writes the cache to a temporary file and renames it over the old one, so a crash while
+     * writing can't leave a truncated cache behind.
+     */
+    private void save() {
+        File tmp = new File(mFile.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeUTF(Build.FINGERPRINT);
+                if (mCamera2Ids == null) {
+                    out.writeInt(-1);
+                } else {
+                    out.writeInt(mCamera2Ids.length);
+                    for (String id : mCamera2Ids) {
+                        out.writeUTF(id);
+                    }
+                }
+                out.writeInt(mCameras.size());
+                for (CameraCapabilities capabilities : mCameras.values()) {
+                    out.writeUTF(capabilities.getKey());
+                    out.writeInt(capabilities.getFacing());
+                    out.writeInt(capabilities.getOrientation());
+                    out.writeInt(capabilities.getHardwareLevel());
+                    writeSizes(out, capabilities.getPreviewSizes());
+                    writeSizes(out, capabilities.getVideoSizes());
+                    writeSizes(out, capabilities.getJpegSizes());
+                    int[] fpsRanges = capabilities.getFpsRanges();
+                    out.writeInt(fpsRanges.length);
+                    for (int value : fpsRanges) {
+                        out.writeInt(value);
+                    }
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(mFile)) {
+                throw new IOException("rename failed");
+            }
+        } catch (IOException e) {
+            // The cache still works in memory for this process.
+            Log.w(TAG, "Failed to write capability cache: " + e.getMessage());
+            //noinspection ResultOfMethodCallIgnored
+            tmp.delete();
+        }
+    }
+
+    private static SizeList readSizes(DataInputStream in) throws IOException {
+        int count = readCount(in);
+        if (count < 0) {
+            return null;
+        }
+        int[] widths = new int[count];
+        int[] heights = new int[count];
+        for (int i = 0; i < count; i++) {
+            widths[i] = in.readInt();
+            heights[i] = in.readInt();
+        }
+        return new SizeList(widths, heights);
+    }
+
+    /**
+     * @return A count, or -1 for null
+     */
+    private static int readCount(DataInputStream in) throws IOException {
+        int count = in.readInt();
+        if (count < -1 || count > MAX_COUNT) {
+            throw new IOException("corrupt count " + count);
+        }
+        return count;
+    }
+
+    private static void writeSizes(DataOutputStream out, SizeList sizes) throws IOException {
+        if (sizes == null) {
+            out.writeInt(-1);
+            return;
+        }
+        out.writeInt(sizes.size());
+        for (int i = 0; i < sizes.size(); i++) {
+            out.writeInt(sizes.getWidth(i));
+            out.writeInt(sizes.getHeight(i));
+        }
+    }
+}
@@ -0,0 +1,241 @@
+package yo.mobile.cameraview.util;
+
+import android.media.MediaExtractor;
+
+/**
+ * Drives a decoder on its own thread: keeps its input fed and releases each output frame at the
+ * time given by its presentation timestamp.
+ * <p>
+ * Frames are handed to the display with {@code releaseOutputBuffer(index, renderTimestampNs)}
+ * up to {@link #EARLY_RELEASE_NS} before they are due, so the driver sleeps at most once per frame
+ * and leaves the exact timing to the display pipeline. Frames that are already more than the
+ * late threshold behind the clock are dropped without rendering.
+ * <p>
+ * The decoder and the clock are interfaces so the pacing logic can run on the JVM against fakes.
+ */
+public class DecodeDriver implements Runnable {
+
+    /**
+     * Time source for pacing, in the time base of render timestamps.
+     */
+    public interface Clock {
+        long nanoTime();
+
+        void sleepNanos(long nanos) throws InterruptedException;
+    }
+
+    /**
+     * The clock used by {@code MediaCodec.releaseOutputBuffer(int, long)}.
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+        @Override
+        public long nanoTime() {
+            return System.nanoTime();
+        }
+
+        @Override
+        public void sleepNanos(long nanos) throws InterruptedException {
+            Thread.sleep(nanos / 1000000, (int) (nanos % 1000000));
+        }
+    };
+
+    /**
+     * The decoder as seen by the driver.
+     */
+    public interface Decoder {
+        int FEED_NONE = 0;
+        int FEED_SAMPLE = 1;
+        int FEED_END_OF_STREAM = 2;
+
+        /**
+         * Queues the next input sample if the decoder has room for it.
+         *
+         * @return {@link #FEED_NONE} if no input buffer became available in time,
+         * {@link #FEED_SAMPLE} if a sample was queued, or {@link #FEED_END_OF_STREAM} if end of
+         * stream was queued.
+         */
+        int feedInput(long timeoutMs) throws InterruptedException;
+
+        /**
+         * @return True, if an output frame is available. Its properties are then returned by
+         * {@link #getOutputPresentationTimeUs()}, {@link #getOutputSize()} and
+         * {@link #isOutputEndOfStream()}.
+         */
+        boolean awaitOutput(long timeoutMs) throws InterruptedException;
+
+        long getOutputPresentationTimeUs();
+
+        /**
+         * @return The size of the output frame, 0 for an empty end of stream buffer.
+         */
+        int getOutputSize();
+
+        boolean isOutputEndOfStream();
+
+        void renderOutput(long renderTimestampNs);
+
+        void dropOutput();
+    }
+
+    public interface Listener {
+        /**
+         * Called on the driver thread after the last frame has been released.
+         */
+        void onEndOfStream(DecodeDriver driver);
+    }
+
+    // Frames are released to the display this long before they are due.
+    static final long EARLY_RELEASE_NS = 20000000L;
+    // Delay before the first frame, so it isn't late before it is even released.
+    static final long START_LATENCY_NS = 10000000L;
+    static final long DEFAULT_LATE_THRESHOLD_NS = 30000000L;
+
+    // How long to wait for output while there is still input to queue.
+    private static final long INPUT_POLL_MS = 5;
+    // How long to wait for output once all input has been queued.
+    private static final long OUTPUT_TIMEOUT_MS = 50;
+
+    private final Decoder decoder;
+    private final Clock clock;
+    private final long lateThresholdNs;
+    private Listener listener;
+    private Thread thread;
+    private volatile boolean running;
+    private volatile long renderedFrames;
+    private volatile long droppedFrames;
+
+    /**
+     * @param lateThresholdNs Frames later than this are dropped instead of rendered.
+     */
+    public DecodeDriver(Decoder decoder, Clock clock, long lateThresholdNs) {
+        this.decoder = decoder;
+        this.clock = clock;
+        this.lateThresholdNs = lateThresholdNs;
+    }
+
+    /**
+     * Creates a driver that feeds {@code codec} from {@code extractor}, with its track already
+     * selected, and paces it against the system clock. Needs API 21 for timed rendering.
+     */
+    public static DecodeDriver create(MediaCodecWrapper codec, MediaExtractor extractor) {
+        return new DecodeDriver(new ExtractorDecoder(codec, extractor), SYSTEM_CLOCK,
+                DEFAULT_LATE_THRESHOLD_NS);
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    public long getRenderedFrames() {
+        return renderedFrames;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    public synchronized void start() {
+        if (thread != null) {
+            return;
+        }
+        running = true;
+        thread = new Thread(this, "DecodeDriver");
+        thread.start();
+    }
+
+    /**
+     * Stops the driver and waits for its thread to finish. The decoder is not released.
+     */
+    public synchronized void stop() {
+        if (thread == null) {
+            return;
+        }
+        running = false;
+        thread.interrupt();
+        try {
+            thread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        thread = null;
+    }
+
+    @Override
+    public void run() {
+        boolean inputDone = false;
+        long baseTimeNs = -1;
+        long basePresentationTimeUs = 0;
+        try {
+            while (running) {
+                if (!inputDone) {
+                    inputDone = feedAvailableInput();
+                }
+                if (!decoder.awaitOutput(inputDone ? OUTPUT_TIMEOUT_MS : INPUT_POLL_MS)) {
+                    continue;
+                }
+                // Some decoders flag the last frame itself as end of stream, it is paced like the
+                // others before the stream ends.
+                boolean endOfStream = decoder.isOutputEndOfStream();
+                if (endOfStream && decoder.getOutputSize() == 0) {
+                    decoder.dropOutput();
+                    notifyEndOfStream();
+                    break;
+                }
+
+                long presentationTimeUs = decoder.getOutputPresentationTimeUs();
+                long nowNs = clock.nanoTime();
+                if (baseTimeNs < 0) {
+                    baseTimeNs = nowNs + START_LATENCY_NS;
+                    basePresentationTimeUs = presentationTimeUs;
+                }
+                long renderTimeNs = baseTimeNs + (presentationTimeUs - basePresentationTimeUs) * 1000;
+
+                if (nowNs - renderTimeNs > lateThresholdNs) {
+                    decoder.dropOutput();
+                    droppedFrames++;
+                } else {
+                    long waitNs = renderTimeNs - EARLY_RELEASE_NS - nowNs;
+                    if (waitNs > 0) {
+                        // Top up the input first so the decoder keeps working while we sleep.
+                        if (!inputDone) {
+                            inputDone = feedAvailableInput();
+                        }
+                        clock.sleepNanos(waitNs);
+                    }
+                    decoder.renderOutput(renderTimeNs);
+                    renderedFrames++;
+                }
+                if (endOfStream) {
+                    notifyEndOfStream();
+                    break;
+                }
+            }
+        } catch (InterruptedException e) {
+            // stop() was called
+        }
+    }
+
+    private void notifyEndOfStream() {
+        if (listener != null) {
+            listener.onEndOfStream(this);
+        }
+    }
+
+    /**
+     * Queues input until the decoder has no free input buffer left.
+     *
+     * @return True, once end of stream has been queued.
+     */
+    private boolean feedAvailableInput() throws InterruptedException {
+        while (true) {
+            switch (decoder.feedInput(0)) {
+                case Decoder.FEED_NONE:
+                    return false;
+                case Decoder.FEED_END_OF_STREAM:
+                    return true;
+                default:
+                    break;
+            }
+        }
+    }
+}
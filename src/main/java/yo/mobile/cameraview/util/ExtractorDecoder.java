@@ -0,0 +1,69 @@
+package yo.mobile.cameraview.util;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaExtractor;
+import android.os.Build;
+
+/**
+ * {@link DecodeDriver.Decoder} backed by a {@link MediaCodecWrapper} fed from a
+ * {@link MediaExtractor}.
+ */
+@TargetApi(Build.VERSION_CODES.LOLLIPOP)
+class ExtractorDecoder implements DecodeDriver.Decoder {
+
+    private final MediaCodecWrapper codec;
+    private final MediaExtractor extractor;
+    private final MediaCodec.BufferInfo outputInfo = new MediaCodec.BufferInfo();
+
+    ExtractorDecoder(MediaCodecWrapper codec, MediaExtractor extractor) {
+        this.codec = codec;
+        this.extractor = extractor;
+    }
+
+    @Override
+    public int feedInput(long timeoutMs) throws InterruptedException {
+        if (!codec.awaitInputBuffer(timeoutMs)) {
+            return FEED_NONE;
+        }
+        long presentationTimeUs = extractor.getSampleTime();
+        boolean isSecure = (extractor.getSampleFlags() & MediaExtractor.SAMPLE_FLAG_ENCRYPTED) != 0;
+        // Past the last sample the extractor reports -1 and writeSample queues end of stream.
+        codec.writeSample(extractor, isSecure, Math.max(presentationTimeUs, 0), 0);
+        if (presentationTimeUs < 0) {
+            return FEED_END_OF_STREAM;
+        }
+        extractor.advance();
+        return FEED_SAMPLE;
+    }
+
+    @Override
+    public boolean awaitOutput(long timeoutMs) throws InterruptedException {
+        return codec.awaitSample(outputInfo, timeoutMs);
+    }
+
+    @Override
+    public long getOutputPresentationTimeUs() {
+        return outputInfo.presentationTimeUs;
+    }
+
+    @Override
+    public int getOutputSize() {
+        return outputInfo.size;
+    }
+
+    @Override
+    public boolean isOutputEndOfStream() {
+        return (outputInfo.flags & MediaCodec.BUFFER_FLAG_END_OF_STREAM) != 0;
+    }
+
+    @Override
+    public void renderOutput(long renderTimestampNs) {
+        codec.popSample(renderTimestampNs);
+    }
+
+    @Override
+    public void dropOutput() {
+        codec.popSample(false);
+    }
+}
@@ -0,0 +1,157 @@
+package yo.mobile.cameraview.util;
+
+/**
+ * Tracks the timing of delivered frames: rolling frame rate, jitter and dropped frames.
+ * <p>
+ * Frames are reported by a single thread with {@link #onFrame(long)}, usually from
+ * {@code SurfaceTexture.getTimestamp()}. The statistics are published through volatile fields
+ * and can be read from any thread without locking; each value is consistent by itself, but two
+ * values read one after the other may come from different frames. Interval percentiles are the
+ * exception: they are read on the reporting thread.
+ * <p>
+ * An interval longer than 1.5 frame durations counts as the frames that should have arrived in
+ * between, e.g. an interval of three frame durations counts as two dropped frames.
+ */
+public final class FrameTimingTracker {
+
+    public static final long DEFAULT_FRAME_DURATION_NANOS = 1000000000L / 30;
+    private static final int WINDOW_SIZE = 64;
+
+    // Written by the reporting thread only.
+    private final long[] intervals = new long[WINDOW_SIZE];
+    private int nextInterval;
+    private int intervalCount;
+    private long windowSum;
+    private long lastTimestamp = -1;
+    // Every interval since the last reset.
+    private final LatencyHistogram intervalHistogram = new LatencyHistogram();
+
+    private volatile long frameDurationNanos = DEFAULT_FRAME_DURATION_NANOS;
+    private volatile long frameCount;
+    private volatile long droppedFrames;
+    private volatile double fps;
+    private volatile double jitterNanos;
+    private volatile long lastIntervalNanos;
+    private volatile long maxIntervalNanos;
+
+    /**
+     * Sets the expected time between frames, e.g. 1 s / target frame rate. Frames missing from
+     * longer intervals are counted as dropped.
+     */
+    public void setFrameDurationNanos(long frameDurationNanos) {
+        if (frameDurationNanos <= 0) {
+            throw new IllegalArgumentException("Frame duration must be positive.");
+        }
+        this.frameDurationNanos = frameDurationNanos;
+    }
+
+    public long getFrameDurationNanos() {
+        return frameDurationNanos;
+    }
+
+    /**
+     * Reports a frame. Timestamps that don't increase, such as the 0 some devices report, only
+     * count the frame.
+     *
+     * @param timestampNanos Monotonic timestamp of the frame
+     */
+    public void onFrame(long timestampNanos) {
+        frameCount++;
+        if (timestampNanos <= lastTimestamp || timestampNanos <= 0) {
+            return;
+        }
+        long previous = lastTimestamp;
+        lastTimestamp = timestampNanos;
+        if (previous < 0) {
+            return;
+        }
+        long interval = timestampNanos - previous;
+
+        long frameDuration = frameDurationNanos;
+        if (interval * 2 > frameDuration * 3) {
+            droppedFrames += Math.max((interval + frameDuration / 2) / frameDuration - 1, 1);
+        }
+
+        if (intervalCount == WINDOW_SIZE) {
+            windowSum -= intervals[nextInterval];
+        } else {
+            intervalCount++;
+        }
+        intervals[nextInterval] = interval;
+        nextInterval = (nextInterval + 1) % WINDOW_SIZE;
+        windowSum += interval;
+        intervalHistogram.record(interval);
+
+        double mean = (double) windowSum / intervalCount;
+        double squares = 0;
+        for (int i = 0; i < intervalCount; i++) {
+            double deviation = intervals[i] - mean;
+            squares += deviation * deviation;
+        }
+        fps = 1e9 / mean;
+        jitterNanos = Math.sqrt(squares / intervalCount);
+        lastIntervalNanos = interval;
+        if (interval > maxIntervalNanos) {
+            maxIntervalNanos = interval;
+        }
+    }
+
+    /**
+     * Clears all statistics, e.g. when the camera is reopened. Must be called on the reporting
+     * thread.
+     */
+    public void reset() {
+        nextInterval = 0;
+        intervalCount = 0;
+        windowSum = 0;
+        lastTimestamp = -1;
+        intervalHistogram.reset();
+        frameCount = 0;
+        droppedFrames = 0;
+        fps = 0;
+        jitterNanos = 0;
+        lastIntervalNanos = 0;
+        maxIntervalNanos = 0;
+    }
+
+    public long getFrameCount() {
+        return frameCount;
+    }
+
+    public long getDroppedFrames() {
+        return droppedFrames;
+    }
+
+    /**
+     * @return Frame rate over the last 64 intervals, or 0 before the second frame
+     */
+    public double getFps() {
+        return fps;
+    }
+
+    /**
+     * @return Standard deviation of the last 64 frame intervals
+     */
+    public double getJitterNanos() {
+        return jitterNanos;
+    }
+
+    public long getLastIntervalNanos() {
+        return lastIntervalNanos;
+    }
+
+    public long getMaxIntervalNanos() {
+        return maxIntervalNanos;
+    }
+
+    /**
+     * Must be called on the reporting thread.
+     *
+     * @param percentile Between 0 and 100, e.g. 99 for p99
+     * @return Frame interval percentile since the last reset, within about 6%, or 0 before the
+     * second frame
+     */
+    public long getIntervalPercentileNanos(double percentile) {
+        return intervalHistogram.getPercentileNanos(percentile);
+    }
+}
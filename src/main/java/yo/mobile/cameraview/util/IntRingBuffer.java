@@ -0,0 +1,67 @@
+package yo.mobile.cameraview.util;
+
+/**
+ * FIFO queue of primitive ints backed by a circular array, used for codec buffer indices so they
+ * are never boxed. The array only grows when more indices are queued than ever before, which does
+ * not happen in steady state since a codec owns a fixed number of buffers.
+ */
+final class IntRingBuffer {
+
+    private int[] mElements;
+    private int mHead;
+    private int mSize;
+
+    IntRingBuffer(int initialCapacity) {
+        mElements = new int[Math.max(initialCapacity, 1)];
+    }
+
+    boolean isEmpty() {
+        return mSize == 0;
+    }
+
+    int size() {
+        return mSize;
+    }
+
+    void add(int value) {
+        if (mSize == mElements.length) {
+            grow();
+        }
+        mElements[(mHead + mSize) % mElements.length] = value;
+        mSize++;
+    }
+
+    /**
+     * @return the head element, or -1 if the queue is empty.
+     */
+    int peek() {
+        return mSize == 0 ? -1 : mElements[mHead];
+    }
+
+    /**
+     * Removes and returns the head element, or returns -1 if the queue is empty.
+     */
+    int poll() {
+        if (mSize == 0) {
+            return -1;
+        }
+        int value = mElements[mHead];
+        mHead = (mHead + 1) % mElements.length;
+        mSize--;
+        return value;
+    }
+
+    void clear() {
+        mHead = 0;
+        mSize = 0;
+    }
+
+    private void grow() {
+        int[] elements = new int[mElements.length * 2];
+        for (int i = 0; i < mSize; i++) {
+            elements[i] = mElements[(mHead + i) % mElements.length];
+        }
+        mElements = elements;
+        mHead = 0;
+    }
+}
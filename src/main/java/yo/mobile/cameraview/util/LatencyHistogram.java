@@ -0,0 +1,92 @@
+package yo.mobile.cameraview.util;
+
+/**
+ * Fixed-size histogram of durations for percentile estimates. Recording never allocates.
+ * <p>
+ * Values are kept in microseconds in log-linear buckets: exact below 16 us, then 16 buckets per
+ * power of two, so a reported percentile is within about 6% of the recorded value. Durations up
+ * to several hours fit; longer ones are counted in the last bucket. Not thread safe.
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int MAX_EXPONENT = 35;
+    private static final int BUCKET_COUNT = (MAX_EXPONENT - SUB_BUCKET_BITS + 2) * SUB_BUCKETS;
+
+    private final long[] counts = new long[BUCKET_COUNT];
+    private long totalCount;
+    private long maxMicros;
+
+    public void record(long durationNanos) {
+        long micros = Math.max(durationNanos / 1000, 0);
+        counts[bucketOf(micros)]++;
+        totalCount++;
+        if (micros > maxMicros) {
+            maxMicros = micros;
+        }
+    }
+
+    public long getCount() {
+        return totalCount;
+    }
+
+    /**
+     * @return The largest recorded duration, exact
+     */
+    public long getMaxNanos() {
+        return maxMicros * 1000;
+    }
+
+    /**
+     * @param percentile Between 0 and 100, e.g. 99 for p99
+     * @return The duration below which {@code percentile} percent of the recorded durations fall,
+     * or 0 if nothing was recorded
+     */
+    public long getPercentileNanos(double percentile) {
+        if (totalCount == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(percentile / 100 * totalCount);
+        rank = Math.min(Math.max(rank, 1), totalCount);
+        long seen = 0;
+        for (int bucket = 0; bucket < BUCKET_COUNT; bucket++) {
+            seen += counts[bucket];
+            if (seen >= rank) {
+                return Math.min(bucketMidpoint(bucket), maxMicros) * 1000;
+            }
+        }
+        return maxMicros * 1000;
+    }
+
+    public void reset() {
+        for (int i = 0; i < BUCKET_COUNT; i++) {
+            counts[i] = 0;
+        }
+        totalCount = 0;
+        maxMicros = 0;
+    }
+
+    static int bucketOf(long micros) {
+        if (micros < SUB_BUCKETS) {
+            return (int) micros;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(micros);
+        if (exponent > MAX_EXPONENT) {
+            return BUCKET_COUNT - 1;
+        }
+        int subBucket = (int) (micros >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    static long bucketMidpoint(int bucket) {
+        if (bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int exponent = bucket / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = bucket % SUB_BUCKETS;
+        int shift = exponent - SUB_BUCKET_BITS;
+        long lower = (long) (SUB_BUCKETS + subBucket) << shift;
+        return lower + ((1L << shift) >> 1);
+    }
+}
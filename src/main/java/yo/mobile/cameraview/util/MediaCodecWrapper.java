@@ -16,23 +16,34 @@
 
 package yo.mobile.cameraview.util;
 
+import android.annotation.TargetApi;
 import android.media.MediaCodec;
+import android.media.MediaCodecInfo;
 import android.media.MediaExtractor;
 import android.media.MediaFormat;
+import android.os.Build;
 import android.os.Handler;
+import android.os.HandlerThread;
 import android.os.Looper;
+import android.os.SystemClock;
+import android.util.Log;
 import android.view.Surface;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
-import java.util.ArrayDeque;
-import java.util.Queue;
+import java.util.Arrays;
 
 /**
  * Simplifies the MediaCodec interface by wrapping around the buffer processing operations.
  */
 public class MediaCodecWrapper {
 
+    private static final String TAG = MediaCodecWrapper.class.getSimpleName();
+
+    // Initial size of the per-index tables in asynchronous mode, where the buffer count is not
+    // known up front. The tables grow as higher indices show up.
+    private static final int ASYNC_INITIAL_BUFFER_COUNT = 8;
+
     // Handler to use for {@code OutputSampleListener} and {code OutputFormatChangedListener}
     // callbacks
     private Handler mHandler;
@@ -54,9 +65,46 @@ public class MediaCodecWrapper {
     }
 
     /**
-     * The {@link MediaCodec} that is managed by this class.
+     * The codec operations used by the wrapper. Implemented by {@link PlatformCodec} around a
+     * {@link MediaCodec}, and by fakes so the buffer bookkeeping can run on the JVM.
+     */
+    interface Codec {
+        void start();
+
+        void stop();
+
+        void release();
+
+        ByteBuffer[] getInputBuffers();
+
+        ByteBuffer[] getOutputBuffers();
+
+        ByteBuffer getInputBuffer(int index);
+
+        ByteBuffer getOutputBuffer(int index);
+
+        int dequeueInputBuffer(long timeoutUs);
+
+        int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs);
+
+        void queueInputBuffer(int index, int offset, int size, long presentationTimeUs, int flags);
+
+        void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+                                    long presentationTimeUs, int flags);
+
+        void releaseOutputBuffer(int index, boolean render);
+
+        void releaseOutputBuffer(int index, long renderTimestampNs);
+
+        MediaFormat getOutputFormat();
+
+        void signalEndOfInputStream();
+    }
+
+    /**
+     * The codec that is managed by this class.
      */
-    private MediaCodec mDecoder;
+    private Codec mDecoder;
 
     // References to the internal buffers managed by the codec. The codec
     // refers to these buffers by index, never by reference so it's up to us
@@ -66,27 +114,101 @@ public class MediaCodecWrapper {
 
     // Indices of the input buffers that are currently available for writing. We'll
     // consume these in the order they were dequeued from the codec.
-    private Queue<Integer> mAvailableInputBuffers;
+    private IntRingBuffer mAvailableInputBuffers;
 
     // Indices of the output buffers that currently hold valid data, in the order
     // they were produced by the codec.
-    private Queue<Integer> mAvailableOutputBuffers;
+    private IntRingBuffer mAvailableOutputBuffers;
 
     // Information about each output buffer, by index. Each entry in this array
     // is valid if and only if its index is currently contained in mAvailableOutputBuffers.
+    // The entries are allocated once and filled by copying, so slots never alias each other.
     private MediaCodec.BufferInfo[] mOutputBufferInfo;
 
+    // Scratch info for dequeueOutputBuffer in the polling mode, reused on every call.
+    private final MediaCodec.BufferInfo mDequeueInfo = new MediaCodec.BufferInfo();
+
     // An (optional) stream that will receive decoded data.
     private OutputSampleListener mOutputSampleListener;
 
+    // Guards the buffer bookkeeping above. In asynchronous mode it is updated from the codec
+    // callback thread while peek/pop run on the caller's thread.
+    private final Object mLock = new Object();
+
+    // Thread receiving MediaCodec.Callback events, or null in the polling mode.
+    private HandlerThread mCallbackThread;
+
+    // Last error reported by the codec in asynchronous mode.
+    private MediaCodec.CodecException mCodecError;
+
+    // Input surface of an encoder created by fromVideoEncoderFormat, null otherwise.
+    private Surface mInputSurface;
+
+    // True if the wrapped codec encodes rather than decodes.
+    private boolean mEncoder;
+
     private MediaCodecWrapper(MediaCodec codec) {
+        this(new PlatformCodec(codec), false, null);
+    }
+
+    /**
+     * @param encoder      True if the codec has been configured as an encoder.
+     * @param inputSurface The encoder input surface, if the codec is a surface-input encoder.
+     *                     Such encoders take no input buffers.
+     */
+    MediaCodecWrapper(Codec codec, boolean encoder, Surface inputSurface) {
         mDecoder = codec;
+        mEncoder = encoder;
+        mInputSurface = inputSurface;
         codec.start();
-        mInputBuffers = codec.getInputBuffers();
+        mInputBuffers = inputSurface == null ? codec.getInputBuffers() : new ByteBuffer[0];
         mOutputBuffers = codec.getOutputBuffers();
-        mOutputBufferInfo = new MediaCodec.BufferInfo[mOutputBuffers.length];
-        mAvailableInputBuffers = new ArrayDeque<Integer>(mOutputBuffers.length);
-        mAvailableOutputBuffers = new ArrayDeque<Integer>(mInputBuffers.length);
+        mOutputBufferInfo = newBufferInfoTable(mOutputBuffers.length);
+        mAvailableInputBuffers = new IntRingBuffer(mInputBuffers.length);
+        mAvailableOutputBuffers = new IntRingBuffer(mOutputBuffers.length);
+    }
+
+    /**
+     * Wraps a codec that has been configured with an {@link AsyncCallback}. Buffer arrays are not
+     * available in asynchronous mode; buffers are looked up by index instead.
+     */
+    private MediaCodecWrapper(MediaCodec codec, HandlerThread callbackThread) {
+        mDecoder = new PlatformCodec(codec);
+        mCallbackThread = callbackThread;
+        mOutputBufferInfo = newBufferInfoTable(ASYNC_INITIAL_BUFFER_COUNT);
+        mAvailableInputBuffers = new IntRingBuffer(ASYNC_INITIAL_BUFFER_COUNT);
+        mAvailableOutputBuffers = new IntRingBuffer(ASYNC_INITIAL_BUFFER_COUNT);
+    }
+
+    private static MediaCodec.BufferInfo[] newBufferInfoTable(int size) {
+        MediaCodec.BufferInfo[] table = new MediaCodec.BufferInfo[size];
+        for (int i = 0; i < size; i++) {
+            table[i] = new MediaCodec.BufferInfo();
+        }
+        return table;
+    }
+
+    /**
+     * Stores a copy of {@code info} in the slot for output buffer {@code index}, growing the table
+     * if the codec uses more buffers than expected.
+     */
+    private void setOutputBufferInfo(int index, MediaCodec.BufferInfo info) {
+        if (index >= mOutputBufferInfo.length) {
+            int oldSize = mOutputBufferInfo.length;
+            mOutputBufferInfo = Arrays.copyOf(mOutputBufferInfo, Math.max(index + 1, oldSize * 2));
+            for (int i = oldSize; i < mOutputBufferInfo.length; i++) {
+                mOutputBufferInfo[i] = new MediaCodec.BufferInfo();
+            }
+        }
+        copyBufferInfo(info, mOutputBufferInfo[index]);
+    }
+
+    // Copies field by field, BufferInfo.set() does nothing in the android.jar used by JVM tests.
+    private static void copyBufferInfo(MediaCodec.BufferInfo from, MediaCodec.BufferInfo to) {
+        to.offset = from.offset;
+        to.size = from.size;
+        to.presentationTimeUs = from.presentationTimeUs;
+        to.flags = from.flags;
     }
 
     /**
@@ -97,6 +219,89 @@ public class MediaCodecWrapper {
         mDecoder.release();
         mDecoder = null;
         mHandler = null;
+        if (mInputSurface != null) {
+            mInputSurface.release();
+            mInputSurface = null;
+        }
+        synchronized (mLock) {
+            mAvailableInputBuffers.clear();
+            mAvailableOutputBuffers.clear();
+            mLock.notifyAll();
+        }
+        if (mCallbackThread != null) {
+            mCallbackThread.quitSafely();
+            mCallbackThread = null;
+        }
+    }
+
+    /**
+     * @return true if the wrapped codec is an encoder created by
+     * {@link #fromVideoEncoderFormat(MediaFormat)} or {@link #fromAudioEncoderFormat(MediaFormat)}.
+     */
+    public boolean isEncoder() {
+        return mEncoder;
+    }
+
+    /**
+     * @return the current output format of the codec. Valid once the codec has reported
+     * {@link MediaCodec#INFO_OUTPUT_FORMAT_CHANGED}, i.e. by the time the first sample is output.
+     */
+    public MediaFormat getOutputFormat() {
+        return mDecoder.getOutputFormat();
+    }
+
+    /**
+     * @return the surface to render encoder input into, or null if this wrapper is not a
+     * surface-input encoder.
+     */
+    public Surface getInputSurface() {
+        return mInputSurface;
+    }
+
+    /**
+     * Signals end of stream to the codec. The last output sample carries
+     * {@link MediaCodec#BUFFER_FLAG_END_OF_STREAM}. Codecs fed with buffers need a free input
+     * buffer for this; if there is none yet, nothing is queued and the call should be retried.
+     *
+     * @param presentationTimeUs Timestamp of the end of stream, ignored by surface-input encoders.
+     * @return True, if end of stream has been signaled.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public boolean signalEndOfInputStream(long presentationTimeUs) {
+        if (mInputSurface != null) {
+            mDecoder.signalEndOfInputStream();
+            return true;
+        }
+        int index = nextInputBuffer();
+        if (index < 0) {
+            return false;
+        }
+        mDecoder.queueInputBuffer(index, 0, 0, presentationTimeUs,
+                MediaCodec.BUFFER_FLAG_END_OF_STREAM);
+        return true;
+    }
+
+    /**
+     * Getter for the registered {@link OutputSampleListener}
+     */
+    public OutputSampleListener getOutputSampleListener() {
+        return mOutputSampleListener;
+    }
+
+    /**
+     * @param outputSampleListener Listener notified from {@link #popSample(boolean)} with the
+     *                             contents of each output buffer before it is released.
+     */
+    public void setOutputSampleListener(OutputSampleListener outputSampleListener) {
+        mOutputSampleListener = outputSampleListener;
+    }
+
+    /**
+     * @return true if this wrapper receives codec events through {@link MediaCodec.Callback}
+     * instead of polling the codec.
+     */
+    public boolean isAsync() {
+        return mCallbackThread != null;
     }
 
     /**
@@ -163,6 +368,198 @@ public class MediaCodecWrapper {
         return result;
     }
 
+    /**
+     * Constructs a video encoder that takes its input from a {@link Surface} instead of from
+     * buffers, so frames can be rendered straight into the encoder (for example as an output of a
+     * camera capture session) without copying YUV data through the Java heap.
+     * <p>
+     * Encoded samples are read through {@link #peekSample(MediaCodec.BufferInfo)} and
+     * {@link #popSample(boolean)} like decoded ones; the {@link OutputSampleListener} is notified
+     * for every sample. The color format is set to
+     * {@link MediaCodecInfo.CodecCapabilities#COLOR_FormatSurface} if the format does not
+     * specify one.
+     *
+     * @param outputFormat The format to encode to. Must specify size, bit rate, frame rate and
+     *                     I-frame interval.
+     * @return The wrapper, or null if the format is not a video format.
+     */
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    public static MediaCodecWrapper fromVideoEncoderFormat(final MediaFormat outputFormat)
+            throws IOException {
+        final String mimeType = outputFormat.getString(MediaFormat.KEY_MIME);
+        if (!mimeType.contains("video/")) {
+            return null;
+        }
+        if (!outputFormat.containsKey(MediaFormat.KEY_COLOR_FORMAT)) {
+            outputFormat.setInteger(MediaFormat.KEY_COLOR_FORMAT,
+                    MediaCodecInfo.CodecCapabilities.COLOR_FormatSurface);
+        }
+
+        MediaCodec videoCodec = MediaCodec.createEncoderByType(mimeType);
+        try {
+            videoCodec.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            // The input surface has to be created after configure() and before start().
+            Surface inputSurface = videoCodec.createInputSurface();
+            return new MediaCodecWrapper(new PlatformCodec(videoCodec), true, inputSurface);
+        } catch (RuntimeException e) {
+            videoCodec.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Constructs an audio encoder fed with buffers through {@link #writeSample(ByteBuffer,
+     * MediaCodec.CryptoInfo, long, int)}, e.g. with PCM data read from
+     * {@link android.media.AudioRecord}. Encoded samples are read like those of
+     * {@link #fromVideoEncoderFormat(MediaFormat)}.
+     *
+     * @param outputFormat The format to encode to, e.g. AAC with sample rate, channel count and
+     *                     bit rate.
+     * @return The wrapper, or null if the format is not an audio format.
+     */
+    public static MediaCodecWrapper fromAudioEncoderFormat(final MediaFormat outputFormat)
+            throws IOException {
+        final String mimeType = outputFormat.getString(MediaFormat.KEY_MIME);
+        if (!mimeType.contains("audio/")) {
+            return null;
+        }
+
+        MediaCodec audioCodec = MediaCodec.createEncoderByType(mimeType);
+        try {
+            audioCodec.configure(outputFormat, null, null, MediaCodec.CONFIGURE_FLAG_ENCODE);
+            return new MediaCodecWrapper(new PlatformCodec(audioCodec), true, null);
+        } catch (RuntimeException e) {
+            audioCodec.release();
+            throw e;
+        }
+    }
+
+    /**
+     * Same as {@link #fromVideoFormat(MediaFormat, Surface)}, but the codec runs in asynchronous
+     * mode: input-available, output-available and format-changed events are pushed by
+     * {@link MediaCodec.Callback} to a dedicated {@link HandlerThread} instead of being polled
+     * on every {@link #peekSample} / {@link #popSample}. Use {@link #awaitInputBuffer(long)} and
+     * {@link #awaitSample(MediaCodec.BufferInfo, long)} to wait for the codec without spinning.
+     *
+     * @param trackFormat The format of the media object to be decoded.
+     * @param surface     Surface to render the decoded frames.
+     * @return The wrapper, or null if the format is not a video format.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public static MediaCodecWrapper fromVideoFormatAsync(final MediaFormat trackFormat,
+                                                         final Surface surface) throws IOException {
+        final String mimeType = trackFormat.getString(MediaFormat.KEY_MIME);
+        if (!mimeType.contains("video/")) {
+            return null;
+        }
+
+        HandlerThread callbackThread = new HandlerThread("MediaCodecCallback");
+        callbackThread.start();
+        try {
+            // Before M the callback is delivered on the looper of the thread that created the
+            // codec, so the codec is created on the callback thread itself.
+            final MediaCodec[] codec = new MediaCodec[1];
+            final IOException[] error = new IOException[1];
+            runOnThread(callbackThread, new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        codec[0] = MediaCodec.createDecoderByType(mimeType);
+                    } catch (IOException e) {
+                        error[0] = e;
+                    }
+                }
+            });
+            if (error[0] != null) {
+                throw error[0];
+            }
+            MediaCodecWrapper result = new MediaCodecWrapper(codec[0], callbackThread);
+            codec[0].setCallback(new AsyncCallback(result));
+            codec[0].configure(trackFormat, surface, null, 0);
+            codec[0].start();
+            return result;
+        } catch (IOException | RuntimeException e) {
+            callbackThread.quitSafely();
+            throw e;
+        }
+    }
+
+    private static void runOnThread(HandlerThread thread, final Runnable task) {
+        final Object done = new Object();
+        final boolean[] finished = new boolean[1];
+        new Handler(thread.getLooper()).post(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    task.run();
+                } finally {
+                    synchronized (done) {
+                        finished[0] = true;
+                        done.notifyAll();
+                    }
+                }
+            }
+        });
+        boolean interrupted = false;
+        synchronized (done) {
+            while (!finished[0]) {
+                try {
+                    done.wait();
+                } catch (InterruptedException e) {
+                    interrupted = true;
+                }
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Forwards codec events to a wrapper created by {@link #fromVideoFormatAsync}. Kept in its own
+     * class so that {@link MediaCodec.Callback} is only loaded on API 21+; polling wrappers never
+     * touch it.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    private static final class AsyncCallback extends MediaCodec.Callback {
+        private final MediaCodecWrapper wrapper;
+
+        AsyncCallback(MediaCodecWrapper wrapper) {
+            this.wrapper = wrapper;
+        }
+
+        @Override
+        public void onInputBufferAvailable(MediaCodec codec, int index) {
+            synchronized (wrapper.mLock) {
+                wrapper.mAvailableInputBuffers.add(index);
+                wrapper.mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputBufferAvailable(MediaCodec codec, int index, MediaCodec.BufferInfo info) {
+            synchronized (wrapper.mLock) {
+                wrapper.setOutputBufferInfo(index, info);
+                wrapper.mAvailableOutputBuffers.add(index);
+                wrapper.mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onError(MediaCodec codec, MediaCodec.CodecException e) {
+            Log.e(TAG, "Codec error", e);
+            synchronized (wrapper.mLock) {
+                wrapper.mCodecError = e;
+                wrapper.mLock.notifyAll();
+            }
+        }
+
+        @Override
+        public void onOutputFormatChanged(MediaCodec codec, MediaFormat format) {
+            wrapper.notifyOutputFormatChanged(format);
+        }
+    }
+
 
     /**
      * Write a media sample to the decoder.
@@ -189,9 +586,9 @@ public class MediaCodecWrapper {
         int size = input.remaining();
 
         // check if we have dequed input buffers available from the codec
-        if (size > 0 && !mAvailableInputBuffers.isEmpty()) {
-            int index = mAvailableInputBuffers.remove();
-            ByteBuffer buffer = mInputBuffers[index];
+        int index = size > 0 ? nextInputBuffer() : -1;
+        if (index >= 0) {
+            ByteBuffer buffer = getInputBuffer(index);
 
             // we can't write our sample to a lesser capacity input buffer.
             if (size > buffer.capacity()) {
@@ -241,13 +638,15 @@ public class MediaCodecWrapper {
         boolean result = false;
         boolean isEos = false;
 
-        if (!mAvailableInputBuffers.isEmpty()) {
-            int index = mAvailableInputBuffers.remove();
-            ByteBuffer buffer = mInputBuffers[index];
+        int index = nextInputBuffer();
+        if (index >= 0) {
+            ByteBuffer buffer = getInputBuffer(index);
 
             // reads the sample from the file using extractor into the buffer
             int size = extractor.readSampleData(buffer, 0);
             if (size <= 0) {
+                // readSampleData returns -1 past the last sample; queue an empty buffer instead.
+                size = 0;
                 flags |= MediaCodec.BUFFER_FLAG_END_OF_STREAM;
             }
 
@@ -265,6 +664,92 @@ public class MediaCodecWrapper {
         return result;
     }
 
+    /**
+     * @return the index of the next input buffer available for writing, or -1 if there is none.
+     */
+    private int nextInputBuffer() {
+        update();
+        synchronized (mLock) {
+            return mAvailableInputBuffers.poll();
+        }
+    }
+
+    private ByteBuffer getInputBuffer(int index) {
+        return isAsync() ? mDecoder.getInputBuffer(index) : mInputBuffers[index];
+    }
+
+    private ByteBuffer getOutputBuffer(int index) {
+        return isAsync() ? mDecoder.getOutputBuffer(index) : mOutputBuffers[index];
+    }
+
+    /**
+     * Waits until the codec has an input buffer available for {@link #writeSample}.
+     *
+     * @param timeoutMs Maximum time to wait, in milliseconds.
+     * @return True, if an input buffer is available.
+     */
+    public boolean awaitInputBuffer(long timeoutMs) throws InterruptedException {
+        if (mInputSurface != null) {
+            return false;
+        }
+        if (!isAsync()) {
+            update();
+            synchronized (mLock) {
+                if (!mAvailableInputBuffers.isEmpty()) {
+                    return true;
+                }
+            }
+            int index = mDecoder.dequeueInputBuffer(timeoutMs * 1000);
+            if (index < 0) {
+                return false;
+            }
+            synchronized (mLock) {
+                mAvailableInputBuffers.add(index);
+            }
+            return true;
+        }
+        synchronized (mLock) {
+            awaitLocked(mAvailableInputBuffers, timeoutMs);
+            return !mAvailableInputBuffers.isEmpty();
+        }
+    }
+
+    /**
+     * Like {@link #peekSample(MediaCodec.BufferInfo)}, but waits until an output buffer is
+     * available instead of returning immediately.
+     *
+     * @param out_bufferInfo An output var to hold the buffer info.
+     * @param timeoutMs      Maximum time to wait, in milliseconds.
+     * @return True, if the peek was successful.
+     */
+    public boolean awaitSample(MediaCodec.BufferInfo out_bufferInfo, long timeoutMs)
+            throws InterruptedException {
+        if (peekSample(out_bufferInfo)) {
+            return true;
+        }
+        if (!isAsync()) {
+            handleOutputBuffer(mDecoder.dequeueOutputBuffer(mDequeueInfo, timeoutMs * 1000),
+                    mDequeueInfo);
+        } else {
+            synchronized (mLock) {
+                awaitLocked(mAvailableOutputBuffers, timeoutMs);
+            }
+        }
+        return peekSample(out_bufferInfo);
+    }
+
+    private void awaitLocked(IntRingBuffer queue, long timeoutMs) throws InterruptedException {
+        long deadline = SystemClock.uptimeMillis() + timeoutMs;
+        long remaining = timeoutMs;
+        while (queue.isEmpty() && mDecoder != null && remaining > 0) {
+            if (mCodecError != null) {
+                throw new IllegalStateException("Codec error", mCodecError);
+            }
+            mLock.wait(remaining);
+            remaining = deadline - SystemClock.uptimeMillis();
+        }
+    }
+
     /**
      * Performs a peek() operation in the queue to extract media info for the buffer ready to be
      * released i.e. the head element of the queue.
@@ -276,16 +761,13 @@ public class MediaCodecWrapper {
         // dequeue available buffers and synchronize our data structures with the codec.
         update();
         boolean result = false;
-        if (!mAvailableOutputBuffers.isEmpty()) {
-            int index = mAvailableOutputBuffers.peek();
-            MediaCodec.BufferInfo info = mOutputBufferInfo[index];
-            // metadata of the sample
-            out_bufferInfo.set(
-                    info.offset,
-                    info.size,
-                    info.presentationTimeUs,
-                    info.flags);
-            result = true;
+        synchronized (mLock) {
+            if (!mAvailableOutputBuffers.isEmpty()) {
+                int index = mAvailableOutputBuffers.peek();
+                // metadata of the sample
+                copyBufferInfo(mOutputBufferInfo[index], out_bufferInfo);
+                result = true;
+            }
         }
         return result;
     }
@@ -296,83 +778,135 @@ public class MediaCodecWrapper {
      * OutputSampleListener#outputSample(MediaCodecWrapper, android.media.MediaCodec.BufferInfo,
      * java.nio.ByteBuffer)}
      *
-     * @param render True, if the buffer is to be rendered on the {@link Surface} configured
+     * @param render True, if the buffer is to be rendered on the {@link Surface} configured.
+     *               Encoders have nothing to render; their listener is always notified.
      */
     public void popSample(boolean render) {
+        int index = nextOutputBuffer(render);
+        if (index >= 0) {
+            // releases the buffer back to the codec
+            mDecoder.releaseOutputBuffer(index, render && !isEncoder());
+        }
+    }
+
+    /**
+     * Like {@link #popSample(boolean)} with {@code render} set, but the frame is shown at the
+     * given time instead of as soon as possible. The display pipeline takes care of the timing,
+     * so callers can release a frame shortly before it is due instead of waiting for the exact
+     * moment.
+     *
+     * @param renderTimestampNs The time to show the frame at, in the {@link System#nanoTime()}
+     *                          time base.
+     */
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    public void popSample(long renderTimestampNs) {
+        int index = nextOutputBuffer(true);
+        if (index >= 0) {
+            if (isEncoder()) {
+                mDecoder.releaseOutputBuffer(index, false);
+            } else {
+                mDecoder.releaseOutputBuffer(index, renderTimestampNs);
+            }
+        }
+    }
+
+    /**
+     * Removes the head of the output queue and notifies the {@link OutputSampleListener}.
+     *
+     * @return The index of the output buffer to release, or -1 if there is none.
+     */
+    private int nextOutputBuffer(boolean render) {
         // dequeue available buffers and synchronize our data structures with the codec.
         update();
-        if (!mAvailableOutputBuffers.isEmpty()) {
-            int index = mAvailableOutputBuffers.remove();
-
-            if (render && mOutputSampleListener != null) {
-                ByteBuffer buffer = mOutputBuffers[index];
-                MediaCodec.BufferInfo info = mOutputBufferInfo[index];
-                mOutputSampleListener.outputSample(this, info, buffer);
+        int index;
+        synchronized (mLock) {
+            if (mAvailableOutputBuffers.isEmpty()) {
+                return -1;
             }
+            index = mAvailableOutputBuffers.poll();
+        }
 
-            // releases the buffer back to the codec
-            mDecoder.releaseOutputBuffer(index, render);
+        if ((render || isEncoder()) && mOutputSampleListener != null) {
+            ByteBuffer buffer = getOutputBuffer(index);
+            MediaCodec.BufferInfo info = mOutputBufferInfo[index];
+            mOutputSampleListener.outputSample(this, info, buffer);
         }
+        return index;
     }
 
     /**
      * Synchronize this object's state with the internal state of the wrapped
-     * MediaCodec.
+     * MediaCodec. In asynchronous mode the codec callbacks keep the state in sync, so there is
+     * nothing to poll.
      */
     private void update() {
+        if (isAsync()) {
+            return;
+        }
         // BEGIN_INCLUDE(update_codec_state)
         int index;
 
         // Get valid input buffers from the codec to fill later in the same order they were
-        // made available by the codec.
-        while ((index = mDecoder.dequeueInputBuffer(0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
+        // made available by the codec. Surface-input encoders have no input buffers.
+        while (mInputSurface == null
+                && (index = mDecoder.dequeueInputBuffer(0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
             mAvailableInputBuffers.add(index);
         }
 
 
         // Likewise with output buffers. If the output buffers have changed, start using the
         // new set of output buffers. If the output format has changed, notify listeners.
-        MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
-        while ((index = mDecoder.dequeueOutputBuffer(info, 0)) != MediaCodec.INFO_TRY_AGAIN_LATER) {
-            switch (index) {
-                case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
-                    mOutputBuffers = mDecoder.getOutputBuffers();
-                    mOutputBufferInfo = new MediaCodec.BufferInfo[mOutputBuffers.length];
-                    mAvailableOutputBuffers.clear();
-                    break;
-                case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
-                    if (mOutputFormatChangedListener != null) {
-                        mHandler.post(new Runnable() {
-                            @Override
-                            public void run() {
-                                mOutputFormatChangedListener
-                                        .outputFormatChanged(MediaCodecWrapper.this,
-                                                mDecoder.getOutputFormat());
-
-                            }
-                        });
-                    }
-                    break;
-                default:
-                    // Making sure the index is valid before adding to output buffers. We've already
-                    // handled INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED &
-                    // INFO_OUTPUT_BUFFERS_CHANGED i.e all the other possible return codes but
-                    // asserting index value anyways for future-proofing the code.
-                    if (index >= 0) {
-                        mOutputBufferInfo[index] = info;
-                        mAvailableOutputBuffers.add(index);
-                    } else {
-                        throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
-                    }
-                    break;
-            }
-
+        while ((index = mDecoder.dequeueOutputBuffer(mDequeueInfo, 0))
+                != MediaCodec.INFO_TRY_AGAIN_LATER) {
+            handleOutputBuffer(index, mDequeueInfo);
         }
         // END_INCLUDE(update_codec_state)
 
     }
 
-    private class WriteException extends Throwable {
+    /**
+     * Handles one result of {@link MediaCodec#dequeueOutputBuffer} in the polling mode.
+     */
+    private void handleOutputBuffer(int index, MediaCodec.BufferInfo info) {
+        switch (index) {
+            case MediaCodec.INFO_TRY_AGAIN_LATER:
+                break;
+            case MediaCodec.INFO_OUTPUT_BUFFERS_CHANGED:
+                mOutputBuffers = mDecoder.getOutputBuffers();
+                mOutputBufferInfo = newBufferInfoTable(mOutputBuffers.length);
+                mAvailableOutputBuffers.clear();
+                break;
+            case MediaCodec.INFO_OUTPUT_FORMAT_CHANGED:
+                notifyOutputFormatChanged(mDecoder.getOutputFormat());
+                break;
+            default:
+                // Making sure the index is valid before adding to output buffers. We've already
+                // handled INFO_TRY_AGAIN_LATER, INFO_OUTPUT_FORMAT_CHANGED &
+                // INFO_OUTPUT_BUFFERS_CHANGED i.e all the other possible return codes but
+                // asserting index value anyways for future-proofing the code.
+                if (index >= 0) {
+                    setOutputBufferInfo(index, info);
+                    mAvailableOutputBuffers.add(index);
+                } else {
+                    throw new IllegalStateException("Unknown status from dequeueOutputBuffer");
+                }
+                break;
+        }
+    }
+
+    private void notifyOutputFormatChanged(final MediaFormat format) {
+        final OutputFormatChangedListener listener = mOutputFormatChangedListener;
+        if (listener != null) {
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    listener.outputFormatChanged(MediaCodecWrapper.this, format);
+                }
+            });
+        }
+    }
+
+    public static class WriteException extends Exception {
         private WriteException(final String detailMessage) {
             super(detailMessage);
         }
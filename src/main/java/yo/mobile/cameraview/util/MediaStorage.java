@@ -0,0 +1,99 @@
+package yo.mobile.cameraview.util;
+
+import java.io.File;
+import java.util.Calendar;
+
+/**
+ * Names new media files in one directory, e.g. {@code IMG_20161018_142501_123.jpg}.
+ * <p>
+ * The directory is created on the first file and only checked again after it was found missing.
+ * The timestamp is formatted into a reused buffer and the date part is only recomputed when the
+ * second changes, so a name costs no allocation besides the returned {@link File}. Names are
+ * unique within the process: a counter is appended to files created in the same millisecond.
+ * Uses plain Java only, so it runs on the JVM against any directory.
+ */
+public final class MediaStorage {
+
+    private final File directory;
+    private boolean directoryReady;
+    // Time zone and locale fields of the device at construction.
+    private final Calendar calendar = Calendar.getInstance();
+    private final StringBuilder name = new StringBuilder(48);
+    // "yyyyMMdd_HHmmss" of cachedSecond.
+    private final char[] secondChars = new char[15];
+    private long cachedSecond = Long.MIN_VALUE;
+    private long lastMillis = Long.MIN_VALUE;
+    private int sameMillisCount;
+
+    public MediaStorage(File directory) {
+        this.directory = directory;
+    }
+
+    public File getDirectory() {
+        return directory;
+    }
+
+    /**
+     * @param prefix    E.g. "IMG_"
+     * @param extension E.g. ".jpg"
+     * @return A new file in the directory, or null if the directory can't be created
+     */
+    public synchronized File newFile(String prefix, String extension) {
+        if (!directoryReady) {
+            if (!directory.isDirectory() && !directory.mkdirs()) {
+                return null;
+            }
+            directoryReady = true;
+        }
+        long millis = System.currentTimeMillis();
+        if (millis == lastMillis) {
+            sameMillisCount++;
+        } else {
+            lastMillis = millis;
+            sameMillisCount = 0;
+        }
+        long second = millis / 1000;
+        if (second != cachedSecond) {
+            cachedSecond = second;
+            formatSecond(millis);
+        }
+        name.setLength(0);
+        name.append(prefix).append(secondChars).append('_');
+        int millisOfSecond = (int) (millis - second * 1000);
+        name.append((char) ('0' + millisOfSecond / 100))
+                .append((char) ('0' + millisOfSecond / 10 % 10))
+                .append((char) ('0' + millisOfSecond % 10));
+        if (sameMillisCount > 0) {
+            name.append('_').append(sameMillisCount);
+        }
+        name.append(extension);
+        return new File(directory, name.toString());
+    }
+
+    /**
+     * Forgets that the directory exists, e.g. after a write failed because it was deleted.
+     */
+    public synchronized void invalidate() {
+        directoryReady = false;
+    }
+
+    private void formatSecond(long millis) {
+        calendar.setTimeInMillis(millis);
+        int i = 0;
+        i = put(calendar.get(Calendar.YEAR), 4, i);
+        i = put(calendar.get(Calendar.MONTH) + 1, 2, i);
+        i = put(calendar.get(Calendar.DAY_OF_MONTH), 2, i);
+        secondChars[i++] = '_';
+        i = put(calendar.get(Calendar.HOUR_OF_DAY), 2, i);
+        i = put(calendar.get(Calendar.MINUTE), 2, i);
+        put(calendar.get(Calendar.SECOND), 2, i);
+    }
+
+    private int put(int value, int digits, int offset) {
+        for (int i = offset + digits - 1; i >= offset; i--) {
+            secondChars[i] = (char) ('0' + value % 10);
+            value /= 10;
+        }
+        return offset + digits;
+    }
+}
@@ -0,0 +1,165 @@
+package yo.mobile.cameraview.util;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Writes whole media files, e.g. JPEGs of a burst, in batches.
+ * <p>
+ * Every {@link #write} puts the data into its file right away. What batching changes is when the
+ * files are synced to storage, see {@link FsyncPolicy}: with {@link FsyncPolicy#PER_BATCH} the
+ * files stay open until {@link #flush()} or until the batch is full, and are then synced one
+ * after another. By then the kernel has been writing all of them back in parallel, so the syncs
+ * mostly wait for the same I/O instead of queuing a full write-back each.
+ * <p>
+ * Optionally preallocates each file to its final size before writing, so the file system can
+ * allocate it in one piece; on file systems that allocate lazily this only sets the size.
+ * <p>
+ * Not thread safe, meant to be owned by a writer thread. Uses plain Java only, so it runs on the
+ * JVM against any directory.
+ */
+public final class MediaWriter implements Closeable {
+
+    public enum FsyncPolicy {
+        /**
+         * Each file is synced before {@link #write} returns.
+         */
+        PER_FILE,
+        /**
+         * The files of a batch are synced together when the batch is flushed.
+         */
+        PER_BATCH,
+        /**
+         * Files are left to the kernel's write-back, like plain {@code FileOutputStream}s.
+         */
+        NEVER
+    }
+
+    public static final int DEFAULT_BATCH_SIZE = 8;
+
+    private final int batchSize;
+    private final RandomAccessFile[] batch;
+    private int batchCount;
+    private FsyncPolicy fsyncPolicy;
+    private boolean preallocate;
+
+    public MediaWriter(FsyncPolicy fsyncPolicy, int batchSize) {
+        if (batchSize < 1) {
+            throw new IllegalArgumentException("Batch size must be positive.");
+        }
+        if (fsyncPolicy == null) {
+            throw new IllegalArgumentException("Fsync policy is required.");
+        }
+        this.fsyncPolicy = fsyncPolicy;
+        this.batchSize = batchSize;
+        batch = new RandomAccessFile[batchSize];
+    }
+
+    public FsyncPolicy getFsyncPolicy() {
+        return fsyncPolicy;
+    }
+
+    /**
+     * Changes the policy for the next files. A pending batch is flushed first.
+     */
+    public void setFsyncPolicy(FsyncPolicy fsyncPolicy) throws IOException {
+        if (fsyncPolicy == null) {
+            throw new IllegalArgumentException("Fsync policy is required.");
+        }
+        if (fsyncPolicy != this.fsyncPolicy) {
+            flush();
+            this.fsyncPolicy = fsyncPolicy;
+        }
+    }
+
+    public boolean isPreallocate() {
+        return preallocate;
+    }
+
+    public void setPreallocate(boolean preallocate) {
+        this.preallocate = preallocate;
+    }
+
+    /**
+     * Writes the remaining bytes of {@code data} as the content of {@code file}. Direct buffers,
+     * e.g. an image plane, are written without a copy into the Java heap. The buffer's position
+     * is at its limit afterwards.
+     */
+    public void write(File file, ByteBuffer data) throws IOException {
+        RandomAccessFile out = new RandomAccessFile(file, "rw");
+        boolean kept = false;
+        try {
+            FileChannel channel = out.getChannel();
+            if (preallocate) {
+                out.setLength(data.remaining());
+            } else {
+                // "rw" keeps what an existing file has.
+                channel.truncate(0);
+            }
+            while (data.hasRemaining()) {
+                channel.write(data);
+            }
+            switch (fsyncPolicy) {
+                case PER_FILE:
+                    channel.force(true);
+                    break;
+                case PER_BATCH:
+                    batch[batchCount++] = out;
+                    kept = true;
+                    break;
+                default:
+                    break;
+            }
+        } finally {
+            if (!kept) {
+                out.close();
+            }
+        }
+        if (batchCount == batchSize) {
+            flush();
+        }
+    }
+
+    public void write(File file, byte[] data) throws IOException {
+        write(file, ByteBuffer.wrap(data));
+    }
+
+    /**
+     * Syncs and closes the files of the pending batch. Does nothing for the other policies.
+     *
+     * @throws IOException The first failure; the other files are synced and closed anyway
+     */
+    public void flush() throws IOException {
+        IOException error = null;
+        for (int i = 0; i < batchCount; i++) {
+            try {
+                batch[i].getChannel().force(true);
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            try {
+                batch[i].close();
+            } catch (IOException e) {
+                if (error == null) {
+                    error = e;
+                }
+            }
+            batch[i] = null;
+        }
+        batchCount = 0;
+        if (error != null) {
+            throw error;
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        flush();
+    }
+}
@@ -0,0 +1,101 @@
+package yo.mobile.cameraview.util;
+
+import android.annotation.TargetApi;
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+
+/**
+ * {@link MediaCodecWrapper.Codec} that forwards to a {@link MediaCodec}.
+ */
+class PlatformCodec implements MediaCodecWrapper.Codec {
+
+    private final MediaCodec codec;
+
+    PlatformCodec(MediaCodec codec) {
+        this.codec = codec;
+    }
+
+    @Override
+    public void start() {
+        codec.start();
+    }
+
+    @Override
+    public void stop() {
+        codec.stop();
+    }
+
+    @Override
+    public void release() {
+        codec.release();
+    }
+
+    @Override
+    public ByteBuffer[] getInputBuffers() {
+        return codec.getInputBuffers();
+    }
+
+    @Override
+    public ByteBuffer[] getOutputBuffers() {
+        return codec.getOutputBuffers();
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public ByteBuffer getInputBuffer(int index) {
+        return codec.getInputBuffer(index);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public ByteBuffer getOutputBuffer(int index) {
+        return codec.getOutputBuffer(index);
+    }
+
+    @Override
+    public int dequeueInputBuffer(long timeoutUs) {
+        return codec.dequeueInputBuffer(timeoutUs);
+    }
+
+    @Override
+    public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+        return codec.dequeueOutputBuffer(info, timeoutUs);
+    }
+
+    @Override
+    public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                                 int flags) {
+        codec.queueInputBuffer(index, offset, size, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+                                       long presentationTimeUs, int flags) {
+        codec.queueSecureInputBuffer(index, offset, info, presentationTimeUs, flags);
+    }
+
+    @Override
+    public void releaseOutputBuffer(int index, boolean render) {
+        codec.releaseOutputBuffer(index, render);
+    }
+
+    @TargetApi(Build.VERSION_CODES.LOLLIPOP)
+    @Override
+    public void releaseOutputBuffer(int index, long renderTimestampNs) {
+        codec.releaseOutputBuffer(index, renderTimestampNs);
+    }
+
+    @Override
+    public MediaFormat getOutputFormat() {
+        return codec.getOutputFormat();
+    }
+
+    @TargetApi(Build.VERSION_CODES.JELLY_BEAN_MR2)
+    @Override
+    public void signalEndOfInputStream() {
+        codec.signalEndOfInputStream();
+    }
+}
@@ -0,0 +1,60 @@
+package yo.mobile.cameraview.util;
+
+import java.util.Arrays;
+
+/**
+ * Immutable list of sizes stored as primitive width / height arrays, independent of the camera
+ * API the sizes came from. See {@link SizeSelector}.
+ */
+public final class SizeList {
+
+    private final int[] widths;
+    private final int[] heights;
+    // Sizes packed by pack(), sorted for contains(). Built on first use.
+    private long[] sortedKeys;
+
+    /**
+     * @param widths  Widths, copied
+     * @param heights Heights, copied; same length as {@code widths}
+     */
+    public SizeList(int[] widths, int[] heights) {
+        if (widths.length != heights.length) {
+            throw new IllegalArgumentException("Widths and heights differ in length.");
+        }
+        this.widths = widths.clone();
+        this.heights = heights.clone();
+    }
+
+    public int size() {
+        return widths.length;
+    }
+
+    public int getWidth(int index) {
+        return widths[index];
+    }
+
+    public int getHeight(int index) {
+        return heights[index];
+    }
+
+    /**
+     * @return True, if the list contains a size of exactly {@code width} x {@code height}.
+     * O(log n) after the first call.
+     */
+    public boolean contains(int width, int height) {
+        long[] keys = sortedKeys;
+        if (keys == null) {
+            keys = new long[widths.length];
+            for (int i = 0; i < keys.length; i++) {
+                keys[i] = pack(widths[i], heights[i]);
+            }
+            Arrays.sort(keys);
+            sortedKeys = keys;
+        }
+        return Arrays.binarySearch(keys, pack(width, height)) >= 0;
+    }
+
+    static long pack(int width, int height) {
+        return ((long) width << 32) | (height & 0xffffffffL);
+    }
+}
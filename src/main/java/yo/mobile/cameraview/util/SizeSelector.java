@@ -0,0 +1,276 @@
+package yo.mobile.cameraview.util;
+
+import java.util.HashMap;
+
+/**
+ * Preview / video / still size selection shared by both camera backends.
+ * <p>
+ * The static methods are pure single-pass implementations of the rules previously spread over
+ * {@link Camera1Helper#getOptimalVideoSize}, {@link Camera1Helper#getOptimalPreviewSize} and
+ * {@link Camera2Helper#chooseOptimalSize}, working on {@link SizeList}s and returning an index
+ * into the list. Instances obtained from {@link #forCamera(String)} also keep each camera's
+ * supported sizes and memoize results, so reopening a camera with the same target doesn't
+ * search again.
+ */
+public final class SizeSelector {
+
+    public static final int SIZES_PREVIEW = 0;
+    public static final int SIZES_VIDEO = 1;
+    public static final int SIZES_JPEG = 2;
+    private static final int SIZE_KINDS = 3;
+
+    private static final int QUERY_VIDEO = 1;
+    private static final int QUERY_PREVIEW = 2;
+    private static final int QUERY_OPTIMAL = 3;
+    private static final int QUERY_LARGEST = 4;
+
+    private static final int MEMO_SIZE = 8;
+
+    private static final HashMap<String, SizeSelector> sCameras = new HashMap<>();
+
+    private final SizeList[] mSizes = new SizeList[SIZE_KINDS];
+    // Small round-robin memo; a query is identified by two packed longs.
+    private final long[] mMemoKeys = new long[MEMO_SIZE * 2];
+    private final int[] mMemoResults = new int[MEMO_SIZE];
+    private int mMemoCount;
+    private int mMemoNext;
+
+    private SizeSelector() {
+    }
+
+    /**
+     * @param cameraKey Identifies the camera, including the API, e.g. "camera2:0"
+     * @return The selector for this camera, created on first use and kept for the process
+     */
+    public static synchronized SizeSelector forCamera(String cameraKey) {
+        SizeSelector selector = sCameras.get(cameraKey);
+        if (selector == null) {
+            selector = new SizeSelector();
+            sCameras.put(cameraKey, selector);
+        }
+        return selector;
+    }
+
+    /**
+     * @param kind One of {@link #SIZES_PREVIEW}, {@link #SIZES_VIDEO}, {@link #SIZES_JPEG}
+     * @return The sizes set for this camera, or null if not known yet
+     */
+    public synchronized SizeList getSizes(int kind) {
+        return mSizes[kind];
+    }
+
+    /**
+     * Sets the supported sizes of one kind. Clears memoized results.
+     */
+    public synchronized void setSizes(int kind, SizeList sizes) {
+        mSizes[kind] = sizes;
+        mMemoCount = 0;
+        mMemoNext = 0;
+    }
+
+    /**
+     * Memoized {@link #selectVideoSize(SizeList, SizeList, int, int)} over this camera's video
+     * and preview sizes.
+     *
+     * @return Index into the video sizes, or into the preview sizes if video sizes are not set
+     */
+    public synchronized int selectVideoSize(int width, int height) {
+        long key = packQuery(QUERY_VIDEO, width, height, 0);
+        int result = lookup(key, 0);
+        if (result == Integer.MIN_VALUE) {
+            result = selectVideoSize(mSizes[SIZES_VIDEO], mSizes[SIZES_PREVIEW], width, height);
+            store(key, 0, result);
+        }
+        return result;
+    }
+
+    /**
+     * Memoized {@link #selectPreviewSize(SizeList, int)} over the sizes of the given kind.
+     */
+    public synchronized int selectPreviewSize(int kind, int targetHeight) {
+        long key = packQuery(QUERY_PREVIEW, kind, targetHeight, 0);
+        int result = lookup(key, 0);
+        if (result == Integer.MIN_VALUE) {
+            result = selectPreviewSize(mSizes[kind], targetHeight);
+            store(key, 0, result);
+        }
+        return result;
+    }
+
+    /**
+     * Memoized {@link #selectOptimalSize(SizeList, int, int, int, int, int, int)} over the
+     * preview sizes.
+     */
+    public synchronized int selectOptimalSize(int textureViewWidth, int textureViewHeight,
+                                              int maxWidth, int maxHeight,
+                                              int aspectWidth, int aspectHeight) {
+        long key1 = packQuery(QUERY_OPTIMAL, textureViewWidth, textureViewHeight, maxWidth);
+        long key2 = packQuery(maxHeight, aspectWidth, aspectHeight, 0);
+        int result = lookup(key1, key2);
+        if (result == Integer.MIN_VALUE) {
+            result = selectOptimalSize(mSizes[SIZES_PREVIEW], textureViewWidth, textureViewHeight,
+                    maxWidth, maxHeight, aspectWidth, aspectHeight);
+            store(key1, key2, result);
+        }
+        return result;
+    }
+
+    /**
+     * Memoized {@link #selectLargest(SizeList)} over the sizes of the given kind.
+     */
+    public synchronized int selectLargest(int kind) {
+        long key = packQuery(QUERY_LARGEST, kind, 0, 0);
+        int result = lookup(key, 0);
+        if (result == Integer.MIN_VALUE) {
+            result = selectLargest(mSizes[kind]);
+            store(key, 0, result);
+        }
+        return result;
+    }
+
+    /**
+     * Packs four values of up to 16 bits each, plenty for pixel dimensions, into one memo key.
+     */
+    private static long packQuery(int a, int b, int c, int d) {
+        return ((long) (a & 0xffff) << 48) | ((long) (b & 0xffff) << 32)
+                | ((long) (c & 0xffff) << 16) | (d & 0xffff);
+    }
+
+    private int lookup(long key1, long key2) {
+        for (int i = 0; i < mMemoCount; i++) {
+            if (mMemoKeys[i * 2] == key1 && mMemoKeys[i * 2 + 1] == key2) {
+                return mMemoResults[i];
+            }
+        }
+        return Integer.MIN_VALUE;
+    }
+
+    private void store(long key1, long key2, int result) {
+        int slot = mMemoNext;
+        mMemoKeys[slot * 2] = key1;
+        mMemoKeys[slot * 2 + 1] = key2;
+        mMemoResults[slot] = result;
+        mMemoNext = (slot + 1) % MEMO_SIZE;
+        mMemoCount = Math.max(mMemoCount, mMemoNext == 0 ? MEMO_SIZE : mMemoNext);
+    }
+
+    /**
+     * Picks the video size whose height is closest to {@code h}, among the sizes with an aspect
+     * ratio within 0.1 of {@code w / h} that are also preview sizes. If there is none, the aspect
+     * ratio is ignored.
+     *
+     * @param videoSizes   Supported video sizes, or null if the preview sizes should be used
+     * @param previewSizes Supported preview sizes
+     * @return Index into {@code videoSizes}, or into {@code previewSizes} if that was null, or -1
+     */
+    public static int selectVideoSize(SizeList videoSizes, SizeList previewSizes, int w, int h) {
+        final double ASPECT_TOLERANCE = 0.1;
+        double targetRatio = (double) w / h;
+        SizeList sizes = videoSizes != null ? videoSizes : previewSizes;
+
+        // Both passes of the original search are done at once: the aspect-matching best and the
+        // overall best, used if no size matches the aspect ratio.
+        int optimal = -1;
+        int minDiff = Integer.MAX_VALUE;
+        int fallback = -1;
+        int fallbackMinDiff = Integer.MAX_VALUE;
+        for (int i = 0; i < sizes.size(); i++) {
+            int width = sizes.getWidth(i);
+            int height = sizes.getHeight(i);
+            int diff = Math.abs(height - h);
+            if (diff >= fallbackMinDiff && diff >= minDiff) {
+                continue;
+            }
+            if (!previewSizes.contains(width, height)) {
+                continue;
+            }
+            if (diff < fallbackMinDiff) {
+                fallback = i;
+                fallbackMinDiff = diff;
+            }
+            if (diff < minDiff && Math.abs((double) width / height - targetRatio) <= ASPECT_TOLERANCE) {
+                optimal = i;
+                minDiff = diff;
+            }
+        }
+        return optimal >= 0 ? optimal : fallback;
+    }
+
+    /**
+     * Picks the size whose height is closest to {@code targetHeight}, among the sizes with an
+     * aspect ratio in (1.0, 1.5]. If there is none, the aspect ratio is ignored.
+     *
+     * @return Index into {@code sizes}, or -1 if it is empty
+     */
+    public static int selectPreviewSize(SizeList sizes, int targetHeight) {
+        final double MIN_ASPECT_RATIO = 1.0;
+        final double MAX_ASPECT_RATIO = 1.5;
+        int optimal = -1;
+        int minDiff = Integer.MAX_VALUE;
+        int fallback = -1;
+        int fallbackMinDiff = Integer.MAX_VALUE;
+        for (int i = 0; i < sizes.size(); i++) {
+            int height = sizes.getHeight(i);
+            int diff = Math.abs(height - targetHeight);
+            if (diff < fallbackMinDiff) {
+                fallback = i;
+                fallbackMinDiff = diff;
+            }
+            double ratio = (double) sizes.getWidth(i) / height;
+            if (ratio > MIN_ASPECT_RATIO && ratio <= MAX_ASPECT_RATIO && diff < minDiff) {
+                optimal = i;
+                minDiff = diff;
+            }
+        }
+        return optimal >= 0 ? optimal : fallback;
+    }
+
+    /**
+     * Picks the smallest size that is at least as large as the texture view and at most as large
+     * as the max size, with exactly the given aspect ratio. If there is none, picks the largest
+     * matching size that is smaller than the texture view.
+     *
+     * @return Index into {@code choices}, or -1 if no size matches
+     */
+    public static int selectOptimalSize(SizeList choices, int textureViewWidth, int textureViewHeight,
+                                        int maxWidth, int maxHeight, int aspectWidth, int aspectHeight) {
+        int bigEnough = -1;
+        long bigEnoughArea = Long.MAX_VALUE;
+        int notBigEnough = -1;
+        long notBigEnoughArea = -1;
+        for (int i = 0; i < choices.size(); i++) {
+            int width = choices.getWidth(i);
+            int height = choices.getHeight(i);
+            if (width > maxWidth || height > maxHeight || height != width * aspectHeight / aspectWidth) {
+                continue;
+            }
+            long area = (long) width * height;
+            if (width >= textureViewWidth && height >= textureViewHeight) {
+                if (area < bigEnoughArea) {
+                    bigEnough = i;
+                    bigEnoughArea = area;
+                }
+            } else if (area > notBigEnoughArea) {
+                notBigEnough = i;
+                notBigEnoughArea = area;
+            }
+        }
+        return bigEnough >= 0 ? bigEnough : notBigEnough;
+    }
+
+    /**
+     * @return Index of the size with the largest area, or -1 if {@code sizes} is empty
+     */
+    public static int selectLargest(SizeList sizes) {
+        int largest = -1;
+        long largestArea = -1;
+        for (int i = 0; i < sizes.size(); i++) {
+            long area = (long) sizes.getWidth(i) * sizes.getHeight(i);
+            if (area > largestArea) {
+                largest = i;
+                largestArea = area;
+            }
+        }
+        return largest;
+    }
+}
@@ -0,0 +1,375 @@
+package yo.mobile.cameraview.util;
+
+import android.annotation.TargetApi;
+import android.media.Image;
+import android.os.Build;
+
+import java.nio.ByteBuffer;
+import java.nio.IntBuffer;
+import java.util.concurrent.Executor;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Converts NV21 preview frames (Camera1) and YUV_420_888 images (Camera2) to ARGB_8888 pixels, as
+ * used by {@code Bitmap.setPixels} / {@code copyPixelsFromBuffer}. BT.601 limited range.
+ * <p>
+ * The frame is split into strips of rows that are converted in parallel: the calling thread
+ * takes the first strip, the others go to an executor. Planes are read in place through their
+ * row and pixel strides, and the pixels are written into the caller's {@code int[]} or
+ * {@link IntBuffer}, e.g. a direct buffer viewed as ints. The strip tasks are created once, so a
+ * conversion allocates nothing.
+ * <p>
+ * One converter runs one conversion at a time; use one per consumer thread for concurrent
+ * conversions.
+ */
+public final class YuvConverter {
+
+    private static ThreadPoolExecutor sSharedExecutor;
+
+    private final Executor executor;
+    private final Strip[] strips;
+    private final Object lock = new Object();
+    private int pendingStrips;
+    private RuntimeException stripError;
+
+    // The current conversion, published to the strips by Executor.execute.
+    private byte[] nv21;
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+    private int yRowStride;
+    private int uvRowStride;
+    private int uvPixelStride;
+    private int width;
+    private int height;
+    private int[] outArray;
+    private IntBuffer outBuffer;
+
+    /**
+     * Converter that uses all cores, with a thread pool shared by all such converters.
+     */
+    public YuvConverter() {
+        this(getSharedExecutor(), Runtime.getRuntime().availableProcessors());
+    }
+
+    /**
+     * @param executor    Runs all strips but the first, which runs on the calling thread. May be
+     *                    null if {@code parallelism} is 1
+     * @param parallelism Number of strips per frame
+     */
+    public YuvConverter(Executor executor, int parallelism) {
+        if (parallelism < 1) {
+            throw new IllegalArgumentException("Parallelism must be positive.");
+        }
+        if (executor == null && parallelism > 1) {
+            throw new IllegalArgumentException("Executor is required.");
+        }
+        this.executor = executor;
+        strips = new Strip[parallelism];
+        for (int i = 0; i < parallelism; i++) {
+            strips[i] = new Strip();
+        }
+    }
+
+    private static synchronized Executor getSharedExecutor() {
+        if (sSharedExecutor == null) {
+            int threads = Math.max(Runtime.getRuntime().availableProcessors() - 1, 1);
+            sSharedExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                    new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "YuvConverter");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return sSharedExecutor;
+    }
+
+    /**
+     * @param nv21 Frame in NV21, as delivered by {@code Camera.PreviewCallback}
+     * @param out  At least {@code width * height} pixels, row by row
+     */
+    public synchronized void nv21ToArgb(byte[] nv21, int width, int height, int[] out) {
+        checkNv21(nv21, width, height);
+        checkOutput(out != null ? out.length : -1, width, height);
+        this.nv21 = nv21;
+        this.outArray = out;
+        convert(width, height);
+    }
+
+    /**
+     * @param out At least {@code width * height} pixels from index 0, row by row. Its position is
+     *            not changed
+     */
+    public synchronized void nv21ToArgb(byte[] nv21, int width, int height, IntBuffer out) {
+        checkNv21(nv21, width, height);
+        checkOutput(out != null ? out.limit() : -1, width, height);
+        this.nv21 = nv21;
+        this.outBuffer = out;
+        convert(width, height);
+    }
+
+    /**
+     * Converts YUV 4:2:0 planes with any strides, e.g. those of a YUV_420_888 image. Interleaved
+     * (semi-planar) chroma is read in place as two planes with a pixel stride of 2.
+     *
+     * @param uvRowStride   Row stride of both chroma planes
+     * @param uvPixelStride Pixel stride of both chroma planes
+     * @param out           At least {@code width * height} pixels, row by row
+     */
+    public synchronized void yuv420ToArgb(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                                          int uvRowStride, int uvPixelStride, int width, int height,
+                                          int[] out) {
+        checkPlanes(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height);
+        checkOutput(out != null ? out.length : -1, width, height);
+        setPlanes(y, yRowStride, u, v, uvRowStride, uvPixelStride);
+        this.outArray = out;
+        convert(width, height);
+    }
+
+    /**
+     * @param out At least {@code width * height} pixels from index 0, row by row. Its position is
+     *            not changed
+     */
+    public synchronized void yuv420ToArgb(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                                          int uvRowStride, int uvPixelStride, int width, int height,
+                                          IntBuffer out) {
+        checkPlanes(y, yRowStride, u, v, uvRowStride, uvPixelStride, width, height);
+        checkOutput(out != null ? out.limit() : -1, width, height);
+        setPlanes(y, yRowStride, u, v, uvRowStride, uvPixelStride);
+        this.outBuffer = out;
+        convert(width, height);
+    }
+
+    /**
+     * Converts a YUV_420_888 image, e.g. from the analysis stream, at its full size.
+     */
+    @TargetApi(Build.VERSION_CODES.KITKAT)
+    public void imageToArgb(Image image, int[] out) {
+        Image.Plane[] planes = image.getPlanes();
+        yuv420ToArgb(planes[0].getBuffer(), planes[0].getRowStride(),
+                planes[1].getBuffer(), planes[2].getBuffer(),
+                planes[1].getRowStride(), planes[1].getPixelStride(),
+                image.getWidth(), image.getHeight(), out);
+    }
+
+    private static void checkNv21(byte[] nv21, int width, int height) {
+        checkSize(width, height);
+        if (nv21 == null || nv21.length < width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)) {
+            throw new IllegalArgumentException("NV21 frame is too small.");
+        }
+    }
+
+    private static void checkPlanes(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                                    int uvRowStride, int uvPixelStride, int width, int height) {
+        checkSize(width, height);
+        if (y == null || u == null || v == null) {
+            throw new IllegalArgumentException("Planes are required.");
+        }
+        int chromaWidth = (width + 1) / 2;
+        int chromaHeight = (height + 1) / 2;
+        int uvLast = (chromaHeight - 1) * uvRowStride + (chromaWidth - 1) * uvPixelStride;
+        if (yRowStride < width || y.limit() < (height - 1) * yRowStride + width
+                || uvPixelStride < 1 || u.limit() <= uvLast || v.limit() <= uvLast) {
+            throw new IllegalArgumentException("Planes are too small for the size and strides.");
+        }
+    }
+
+    private static void checkSize(int width, int height) {
+        if (width <= 0 || height <= 0) {
+            throw new IllegalArgumentException("Size must be positive.");
+        }
+    }
+
+    private static void checkOutput(int length, int width, int height) {
+        if (length < width * height) {
+            throw new IllegalArgumentException("Output is too small.");
+        }
+    }
+
+    private void setPlanes(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                           int uvRowStride, int uvPixelStride) {
+        this.yPlane = y;
+        this.uPlane = u;
+        this.vPlane = v;
+        this.yRowStride = yRowStride;
+        this.uvRowStride = uvRowStride;
+        this.uvPixelStride = uvPixelStride;
+    }
+
+    private void convert(int width, int height) {
+        this.width = width;
+        this.height = height;
+        try {
+            // Strips start on even rows, so no chroma row is shared by two strips.
+            int chromaRows = (height + 1) / 2;
+            int stripCount = Math.min(strips.length, chromaRows);
+            int rowsPerStrip = (chromaRows + stripCount - 1) / stripCount * 2;
+            stripCount = (height + rowsPerStrip - 1) / rowsPerStrip;
+            synchronized (lock) {
+                pendingStrips = stripCount - 1;
+                stripError = null;
+            }
+            for (int i = 1; i < stripCount; i++) {
+                Strip strip = strips[i];
+                strip.startRow = i * rowsPerStrip;
+                strip.endRow = Math.min(strip.startRow + rowsPerStrip, height);
+                try {
+                    executor.execute(strip);
+                } catch (RejectedExecutionException e) {
+                    strip.run();
+                }
+            }
+            convertRows(0, Math.min(rowsPerStrip, height));
+            synchronized (lock) {
+                boolean interrupted = false;
+                while (pendingStrips > 0) {
+                    try {
+                        lock.wait();
+                    } catch (InterruptedException e) {
+                        // The strips still use the buffers, so they have to finish first.
+                        interrupted = true;
+                    }
+                }
+                if (interrupted) {
+                    Thread.currentThread().interrupt();
+                }
+                if (stripError != null) {
+                    throw stripError;
+                }
+            }
+        } finally {
+            nv21 = null;
+            yPlane = null;
+            uPlane = null;
+            vPlane = null;
+            outArray = null;
+            outBuffer = null;
+        }
+    }
+
+    private final class Strip implements Runnable {
+        int startRow;
+        int endRow;
+
+        @Override
+        public void run() {
+            RuntimeException error = null;
+            try {
+                convertRows(startRow, endRow);
+            } catch (RuntimeException e) {
+                error = e;
+            }
+            synchronized (lock) {
+                if (error != null && stripError == null) {
+                    stripError = error;
+                }
+                pendingStrips--;
+                lock.notifyAll();
+            }
+        }
+    }
+
+    private void convertRows(int startRow, int endRow) {
+        if (nv21 != null) {
+            convertNv21Rows(startRow, endRow);
+        } else {
+            convertPlaneRows(startRow, endRow);
+        }
+    }
+
+    private void convertNv21Rows(int startRow, int endRow) {
+        byte[] nv21 = this.nv21;
+        int width = this.width;
+        int chromaOffset = width * height;
+        int chromaRowStride = (width + 1) / 2 * 2;
+        int[] outArray = this.outArray;
+        IntBuffer outBuffer = this.outBuffer;
+        for (int row = startRow; row < endRow; row++) {
+            int yIndex = row * width;
+            int uvIndex = chromaOffset + (row >> 1) * chromaRowStride;
+            for (int col = 0; col < width; col += 2) {
+                // V comes first in NV21.
+                int v = (nv21[uvIndex++] & 0xff) - 128;
+                int u = (nv21[uvIndex++] & 0xff) - 128;
+                int pixel = yuvToArgb(nv21[yIndex] & 0xff, u, v);
+                if (outArray != null) {
+                    outArray[yIndex] = pixel;
+                } else {
+                    outBuffer.put(yIndex, pixel);
+                }
+                yIndex++;
+                if (col + 1 < width) {
+                    pixel = yuvToArgb(nv21[yIndex] & 0xff, u, v);
+                    if (outArray != null) {
+                        outArray[yIndex] = pixel;
+                    } else {
+                        outBuffer.put(yIndex, pixel);
+                    }
+                    yIndex++;
+                }
+            }
+        }
+    }
+
+    private void convertPlaneRows(int startRow, int endRow) {
+        ByteBuffer yPlane = this.yPlane;
+        ByteBuffer uPlane = this.uPlane;
+        ByteBuffer vPlane = this.vPlane;
+        int yRowStride = this.yRowStride;
+        int uvRowStride = this.uvRowStride;
+        int uvPixelStride = this.uvPixelStride;
+        int width = this.width;
+        int[] outArray = this.outArray;
+        IntBuffer outBuffer = this.outBuffer;
+        for (int row = startRow; row < endRow; row++) {
+            int yIndex = row * yRowStride;
+            int uvIndex = (row >> 1) * uvRowStride;
+            int outIndex = row * width;
+            for (int col = 0; col < width; col += 2) {
+                int u = (uPlane.get(uvIndex) & 0xff) - 128;
+                int v = (vPlane.get(uvIndex) & 0xff) - 128;
+                uvIndex += uvPixelStride;
+                int pixel = yuvToArgb(yPlane.get(yIndex++) & 0xff, u, v);
+                if (outArray != null) {
+                    outArray[outIndex] = pixel;
+                } else {
+                    outBuffer.put(outIndex, pixel);
+                }
+                outIndex++;
+                if (col + 1 < width) {
+                    pixel = yuvToArgb(yPlane.get(yIndex++) & 0xff, u, v);
+                    if (outArray != null) {
+                        outArray[outIndex] = pixel;
+                    } else {
+                        outBuffer.put(outIndex, pixel);
+                    }
+                    outIndex++;
+                }
+            }
+        }
+    }
+
+    /**
+     * BT.601 limited range in 10 bit fixed point.
+     *
+     * @param u Cb - 128
+     * @param v Cr - 128
+     */
+    static int yuvToArgb(int y, int u, int v) {
+        int y1192 = 1192 * Math.max(y - 16, 0);
+        int r = y1192 + 1634 * v;
+        int g = y1192 - 833 * v - 400 * u;
+        int b = y1192 + 2066 * u;
+        r = r < 0 ? 0 : (r > 262143 ? 262143 : r);
+        g = g < 0 ? 0 : (g > 262143 ? 262143 : g);
+        b = b < 0 ? 0 : (b > 262143 ? 262143 : b);
+        return 0xff000000 | ((r << 6) & 0xff0000) | ((g >> 2) & 0xff00) | ((b >> 10) & 0xff);
+    }
+}
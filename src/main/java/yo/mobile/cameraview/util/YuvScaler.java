@@ -0,0 +1,324 @@
+package yo.mobile.cameraview.util;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+
+/**
+ * Crops, downscales and rotates YUV 4:2:0 frames before they are converted, e.g. to feed a
+ * 224x224 model from a 1080p preview. Works on the Y and chroma planes directly, so the cost is
+ * proportional to the crop for {@link Filter#BOX} and to the output for {@link Filter#BILINEAR},
+ * never to a full-size conversion.
+ * <p>
+ * Takes NV21 frames (Camera1) or planes with any row and pixel strides (Camera2 YUV_420_888) and
+ * produces NV21 at the output size, ready for {@link YuvConverter}. The output arrays come from a
+ * small pool; hand them back with {@link #release(byte[])} once done. The sampling tables are
+ * computed when the input size or settings change, so a frame allocates nothing once the pool is
+ * warm.
+ * <p>
+ * Not thread safe except for {@link #release(byte[])}.
+ */
+public final class YuvScaler {
+
+    public enum Filter {
+        /**
+         * Averages all source pixels under each output pixel. Best quality for large reductions.
+         */
+        BOX,
+        /**
+         * Interpolates the four nearest source pixels. Cheaper, but skips pixels when reducing by
+         * more than 2x.
+         */
+        BILINEAR
+    }
+
+    static final int POOL_SIZE = 3;
+
+    private final int outputWidth;
+    private final int outputHeight;
+    private final Filter filter;
+    private final ArrayDeque<byte[]> pool = new ArrayDeque<>(POOL_SIZE);
+    private int rotation;
+    private int cropLeft;
+    private int cropTop;
+    private int cropWidth;
+    private int cropHeight;
+    private byte[] wrappedArray;
+    private ByteBuffer wrappedBuffer;
+
+    // Sampling tables for the unrotated output: source start and end for BOX, source index and
+    // weight in 1/256 for BILINEAR.
+    private boolean tablesValid;
+    private int tableSourceWidth;
+    private int tableSourceHeight;
+    private final int[] lumaXa;
+    private final int[] lumaXb;
+    private final int[] lumaYa;
+    private final int[] lumaYb;
+    private final int[] chromaXa;
+    private final int[] chromaXb;
+    private final int[] chromaYa;
+    private final int[] chromaYb;
+
+    /**
+     * @param outputWidth  Width of the output before rotation, even
+     * @param outputHeight Height of the output before rotation, even
+     */
+    public YuvScaler(int outputWidth, int outputHeight, Filter filter) {
+        if (outputWidth <= 0 || outputHeight <= 0 || outputWidth % 2 != 0 || outputHeight % 2 != 0) {
+            throw new IllegalArgumentException("Output size must be positive and even.");
+        }
+        if (filter == null) {
+            throw new IllegalArgumentException("Filter is required.");
+        }
+        this.outputWidth = outputWidth;
+        this.outputHeight = outputHeight;
+        this.filter = filter;
+        lumaXa = new int[outputWidth];
+        lumaXb = new int[outputWidth];
+        lumaYa = new int[outputHeight];
+        lumaYb = new int[outputHeight];
+        chromaXa = new int[outputWidth / 2];
+        chromaXb = new int[outputWidth / 2];
+        chromaYa = new int[outputHeight / 2];
+        chromaYb = new int[outputHeight / 2];
+    }
+
+    /**
+     * Sets the region of the input to scale, in input pixels. It is aligned to even coordinates
+     * and clipped to the frame. A width or height of 0 selects the whole frame.
+     */
+    public void setCrop(int left, int top, int width, int height) {
+        if (left < 0 || top < 0 || width < 0 || height < 0) {
+            throw new IllegalArgumentException("Crop cannot be negative.");
+        }
+        cropLeft = left & ~1;
+        cropTop = top & ~1;
+        cropWidth = width & ~1;
+        cropHeight = height & ~1;
+        tablesValid = false;
+    }
+
+    /**
+     * Rotates the output clockwise, e.g. by {@code CameraView.getSensorOrientation()} to get
+     * frames upright in the device's natural orientation.
+     *
+     * @param degrees 0, 90, 180 or 270
+     */
+    public void setRotation(int degrees) {
+        if (degrees != 0 && degrees != 90 && degrees != 180 && degrees != 270) {
+            throw new IllegalArgumentException("Rotation must be a multiple of 90 degrees.");
+        }
+        rotation = degrees;
+    }
+
+    /**
+     * @return Width of the output frames, after rotation
+     */
+    public int getOutputWidth() {
+        return rotation % 180 == 0 ? outputWidth : outputHeight;
+    }
+
+    /**
+     * @return Height of the output frames, after rotation
+     */
+    public int getOutputHeight() {
+        return rotation % 180 == 0 ? outputHeight : outputWidth;
+    }
+
+    /**
+     * @param nv21 Frame in NV21, as delivered by {@code Camera.PreviewCallback}
+     * @return The scaled frame in NV21, from the pool
+     */
+    public byte[] scaleNv21(byte[] nv21, int width, int height) {
+        if (nv21 == null || nv21.length < width * height + 2 * ((width + 1) / 2) * ((height + 1) / 2)) {
+            throw new IllegalArgumentException("NV21 frame is too small.");
+        }
+        // Wrapping doesn't copy; the chroma planes are addressed by offset into the same buffer.
+        // Camera1 cycles through a few callback buffers, so the wrapper is kept for the last one.
+        if (nv21 != wrappedArray) {
+            wrappedArray = nv21;
+            wrappedBuffer = ByteBuffer.wrap(nv21);
+        }
+        ByteBuffer buffer = wrappedBuffer;
+        int chromaOffset = width * height;
+        int chromaRowStride = (width + 1) / 2 * 2;
+        return scale(buffer, 0, width, buffer, chromaOffset + 1, buffer, chromaOffset,
+                chromaRowStride, 2, width, height);
+    }
+
+    /**
+     * Scales YUV 4:2:0 planes, e.g. those of a YUV_420_888 image.
+     *
+     * @param uvRowStride   Row stride of both chroma planes
+     * @param uvPixelStride Pixel stride of both chroma planes
+     * @return The scaled frame in NV21, from the pool
+     */
+    public byte[] scale(ByteBuffer y, int yRowStride, ByteBuffer u, ByteBuffer v,
+                        int uvRowStride, int uvPixelStride, int width, int height) {
+        if (y == null || u == null || v == null) {
+            throw new IllegalArgumentException("Planes are required.");
+        }
+        return scale(y, 0, yRowStride, u, 0, v, 0, uvRowStride, uvPixelStride, width, height);
+    }
+
+    private byte[] scale(ByteBuffer y, int yOffset, int yRowStride, ByteBuffer u, int uOffset,
+                         ByteBuffer v, int vOffset, int uvRowStride, int uvPixelStride,
+                         int width, int height) {
+        if (width < 2 || height < 2) {
+            throw new IllegalArgumentException("Frame is too small.");
+        }
+        if (!tablesValid || width != tableSourceWidth || height != tableSourceHeight) {
+            computeTables(width, height);
+        }
+        byte[] out = obtain();
+        int lumaSize = outputWidth * outputHeight;
+        int rotatedWidth = getOutputWidth();
+        // Luma: one byte per pixel. Chroma: V then U per 2x2 block, as NV21 wants.
+        scalePlane(y, yOffset, yRowStride, 1, lumaXa, lumaXb, lumaYa, lumaYb,
+                out, 0, rotatedWidth, 1, outputWidth, outputHeight);
+        scalePlane(v, vOffset, uvRowStride, uvPixelStride, chromaXa, chromaXb, chromaYa, chromaYb,
+                out, lumaSize, rotatedWidth, 2, outputWidth / 2, outputHeight / 2);
+        scalePlane(u, uOffset, uvRowStride, uvPixelStride, chromaXa, chromaXb, chromaYa, chromaYb,
+                out, lumaSize + 1, rotatedWidth, 2, outputWidth / 2, outputHeight / 2);
+        return out;
+    }
+
+    /**
+     * Writes one plane of {@code planeWidth} x {@code planeHeight} unrotated samples into
+     * {@code out}, rotated.
+     *
+     * @param outRowStride   Row stride of the rotated plane in {@code out}
+     * @param outPixelStride 1 for luma, 2 for the interleaved chroma
+     */
+    private void scalePlane(ByteBuffer src, int srcOffset, int rowStride, int pixelStride,
+                            int[] xa, int[] xb, int[] ya, int[] yb,
+                            byte[] out, int outOffset, int outRowStride, int outPixelStride,
+                            int planeWidth, int planeHeight) {
+        // Position of unrotated sample (x, y) is base + x * stepX + y * stepY.
+        int base;
+        int stepX;
+        int stepY;
+        switch (rotation) {
+            case 90:
+                base = (planeHeight - 1) * outPixelStride;
+                stepX = outRowStride;
+                stepY = -outPixelStride;
+                break;
+            case 180:
+                base = (planeHeight - 1) * outRowStride + (planeWidth - 1) * outPixelStride;
+                stepX = -outPixelStride;
+                stepY = -outRowStride;
+                break;
+            case 270:
+                base = (planeWidth - 1) * outRowStride;
+                stepX = -outRowStride;
+                stepY = outPixelStride;
+                break;
+            default:
+                base = 0;
+                stepX = outPixelStride;
+                stepY = outRowStride;
+                break;
+        }
+        base += outOffset;
+        for (int row = 0; row < planeHeight; row++) {
+            int index = base + row * stepY;
+            if (filter == Filter.BOX) {
+                int y0 = ya[row];
+                int y1 = yb[row];
+                for (int col = 0; col < planeWidth; col++) {
+                    int x0 = xa[col];
+                    int x1 = xb[col];
+                    int sum = 0;
+                    for (int sy = y0; sy < y1; sy++) {
+                        int rowStart = srcOffset + sy * rowStride;
+                        for (int sx = x0; sx < x1; sx++) {
+                            sum += src.get(rowStart + sx * pixelStride) & 0xff;
+                        }
+                    }
+                    out[index] = (byte) (sum / ((y1 - y0) * (x1 - x0)));
+                    index += stepX;
+                }
+            } else {
+                int rowStart = srcOffset + ya[row] * rowStride;
+                int fy = yb[row];
+                int nextRow = fy != 0 ? rowStride : 0;
+                for (int col = 0; col < planeWidth; col++) {
+                    int position = rowStart + xa[col] * pixelStride;
+                    int fx = xb[col];
+                    int nextColumn = fx != 0 ? pixelStride : 0;
+                    int top = (src.get(position) & 0xff) * (256 - fx)
+                            + (src.get(position + nextColumn) & 0xff) * fx;
+                    int bottom = (src.get(position + nextRow) & 0xff) * (256 - fx)
+                            + (src.get(position + nextRow + nextColumn) & 0xff) * fx;
+                    out[index] = (byte) ((top * (256 - fy) + bottom * fy + 32768) >> 16);
+                    index += stepX;
+                }
+            }
+        }
+    }
+
+    private void computeTables(int width, int height) {
+        int left = Math.min(cropLeft, width - 2);
+        int top = Math.min(cropTop, height - 2);
+        int cropW = cropWidth == 0 ? width - left : Math.min(cropWidth, (width - left) & ~1);
+        int cropH = cropHeight == 0 ? height - top : Math.min(cropHeight, (height - top) & ~1);
+        mapAxis(left, cropW, lumaXa, lumaXb);
+        mapAxis(top, cropH, lumaYa, lumaYb);
+        mapAxis(left / 2, Math.max(cropW / 2, 1), chromaXa, chromaXb);
+        mapAxis(top / 2, Math.max(cropH / 2, 1), chromaYa, chromaYb);
+        tableSourceWidth = width;
+        tableSourceHeight = height;
+        tablesValid = true;
+    }
+
+    /**
+     * Maps {@code a.length} output samples onto {@code length} source samples from {@code start}.
+     */
+    private void mapAxis(int start, int length, int[] a, int[] b) {
+        int count = a.length;
+        for (int i = 0; i < count; i++) {
+            if (filter == Filter.BOX) {
+                int from = (int) ((long) i * length / count);
+                int to = (int) ((long) (i + 1) * length / count);
+                a[i] = start + from;
+                b[i] = start + Math.max(to, from + 1);
+            } else {
+                // Sample centers line up: source position of output i is (i + 0.5) * scale - 0.5.
+                long position = (long) (2 * i + 1) * length * 128 / count - 128;
+                int index = position < 0 ? 0 : (int) (position >> 8);
+                int weight = position < 0 ? 0 : (int) (position & 255);
+                if (index >= length - 1) {
+                    index = length - 1;
+                    weight = 0;
+                }
+                a[i] = start + index;
+                b[i] = weight;
+            }
+        }
+    }
+
+    private byte[] obtain() {
+        synchronized (pool) {
+            byte[] buffer = pool.poll();
+            if (buffer != null) {
+                return buffer;
+            }
+        }
+        return new byte[outputWidth * outputHeight * 3 / 2];
+    }
+
+    /**
+     * Returns an output frame to the pool. Can be called from any thread.
+     */
+    public void release(byte[] frame) {
+        if (frame == null || frame.length != outputWidth * outputHeight * 3 / 2) {
+            return;
+        }
+        synchronized (pool) {
+            if (pool.size() < POOL_SIZE) {
+                pool.add(frame);
+            }
+        }
+    }
+}
@@ -0,0 +1,148 @@
+package yo.mobile.cameraview;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class AnalysisPipelineTest {
+
+    private static final int WIDTH = 64;
+    private static final int HEIGHT = 48;
+    private static final long START_NANOS = 1000000000L;
+
+    private static final FrameAnalyzer IDLE = new FrameAnalyzer() {
+        @Override
+        public void analyze(byte[] nv21, int width, int height, long timestampNanos) {
+        }
+    };
+
+    @Test
+    public void rateThatDividesTheCameraRate() {
+        AnalysisPipeline.Slot slot = new AnalysisPipeline.Slot(IDLE, WIDTH, HEIGHT, 15);
+        assertEquals(150, acceptedOf(slot, 300, 30));
+        assertEquals(150, slot.stats.getThrottledFrames());
+    }
+
+    @Test
+    public void ratesThatDontDivideTheCameraRateKeepTheirAverage() {
+        // Over 10 seconds of 30 fps frames.
+        float[] rates = {25, 20, 12, 7};
+        for (float rate : rates) {
+            AnalysisPipeline.Slot slot = new AnalysisPipeline.Slot(IDLE, WIDTH, HEIGHT, rate);
+            int accepted = acceptedOf(slot, 300, 30);
+            assertEquals("at " + rate + " fps", rate * 10, accepted, 1);
+            assertEquals(300 - accepted, slot.stats.getThrottledFrames());
+        }
+    }
+
+    @Test
+    public void rateAboveTheCameraRateAcceptsEveryFrame() {
+        AnalysisPipeline.Slot slot = new AnalysisPipeline.Slot(IDLE, WIDTH, HEIGHT, 60);
+        assertEquals(300, acceptedOf(slot, 300, 30));
+
+        AnalysisPipeline.Slot unlimited = new AnalysisPipeline.Slot(IDLE, WIDTH, HEIGHT, 0);
+        assertEquals(300, acceptedOf(unlimited, 300, 30));
+    }
+
+    @Test
+    public void scheduleRestartsWhenTimestampsGoBack() {
+        AnalysisPipeline.Slot slot = new AnalysisPipeline.Slot(IDLE, WIDTH, HEIGHT, 10);
+        assertTrue(slot.accept(START_NANOS, WIDTH, HEIGHT, 0));
+        assertFalse(slot.accept(START_NANOS + 50000000L, WIDTH, HEIGHT, 0));
+        // E.g. after a camera switch, the new camera's clock is behind.
+        assertTrue(slot.accept(START_NANOS - 500000000L, WIDTH, HEIGHT, 0));
+        assertFalse(slot.accept(START_NANOS - 450000000L, WIDTH, HEIGHT, 0));
+    }
+
+    @Test
+    public void scheduleRestartsAfterAGap() {
+        AnalysisPipeline.Slot slot = new AnalysisPipeline.Slot(IDLE, WIDTH, HEIGHT, 10);
+        assertTrue(slot.accept(START_NANOS, WIDTH, HEIGHT, 0));
+        // A second without frames doesn't allow a burst to catch up.
+        long resumed = START_NANOS + 1000000000L;
+        assertTrue(slot.accept(resumed, WIDTH, HEIGHT, 0));
+        assertFalse(slot.accept(resumed + 33333333L, WIDTH, HEIGHT, 0));
+        assertFalse(slot.accept(resumed + 66666666L, WIDTH, HEIGHT, 0));
+        assertTrue(slot.accept(resumed + 100000000L, WIDTH, HEIGHT, 0));
+    }
+
+    @Test
+    public void removedSlotAcceptsNothing() {
+        AnalysisPipeline.Slot slot = new AnalysisPipeline.Slot(IDLE, WIDTH, HEIGHT, 0);
+        slot.removed = true;
+        assertFalse(slot.accept(START_NANOS, WIDTH, HEIGHT, 0));
+        assertEquals(0, slot.stats.getThrottledFrames());
+    }
+
+    @Test
+    public void newerFramesReplaceThePendingOne() throws Exception {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch proceed = new CountDownLatch(1);
+        final List<Long> analyzed = new ArrayList<>();
+        FrameAnalyzer blocking = new FrameAnalyzer() {
+            @Override
+            public void analyze(byte[] nv21, int width, int height, long timestampNanos) {
+                synchronized (analyzed) {
+                    analyzed.add(timestampNanos);
+                }
+                entered.countDown();
+                try {
+                    proceed.await(5, TimeUnit.SECONDS);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        };
+        AnalysisPipeline.Slot slot = new AnalysisPipeline.Slot(blocking, WIDTH, HEIGHT, 0);
+        byte[] nv21 = new byte[WIDTH * HEIGHT * 3 / 2];
+
+        offer(slot, nv21, 1);
+        assertTrue(entered.await(5, TimeUnit.SECONDS));
+        // The analyzer is busy with frame 1, 2 waits and is replaced by 3, then 3 by 4.
+        offer(slot, nv21, 2);
+        offer(slot, nv21, 3);
+        offer(slot, nv21, 4);
+        assertEquals(2, slot.stats.getSkippedFrames());
+        proceed.countDown();
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (slot.stats.getAnalyzedFrames() < 2 && System.nanoTime() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(2, slot.stats.getAnalyzedFrames());
+        assertEquals(2, slot.stats.getSkippedFrames());
+        synchronized (analyzed) {
+            assertEquals(2, analyzed.size());
+            assertEquals(1L, (long) analyzed.get(0));
+            assertEquals(4L, (long) analyzed.get(1));
+        }
+    }
+
+    private static void offer(AnalysisPipeline.Slot slot, byte[] nv21, long timestampNanos) {
+        assertTrue(slot.accept(timestampNanos, WIDTH, HEIGHT, 0));
+        slot.offer(slot.scaler.scaleNv21(nv21, WIDTH, HEIGHT), timestampNanos, System.nanoTime());
+    }
+
+    /**
+     * Feeds {@code count} timestamps at {@code cameraFps}, with the rounding of a real clock.
+     *
+     * @return How many were accepted
+     */
+    private static int acceptedOf(AnalysisPipeline.Slot slot, int count, int cameraFps) {
+        int accepted = 0;
+        for (int i = 0; i < count; i++) {
+            long timestamp = START_NANOS + i * 1000000000L / cameraFps;
+            if (slot.accept(timestamp, WIDTH, HEIGHT, 0)) {
+                accepted++;
+            }
+        }
+        return accepted;
+    }
+}
@@ -0,0 +1,130 @@
+package yo.mobile.cameraview;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class Camera1DirectFramePoolTest {
+
+    private final List<DirectFrame> received = new ArrayList<>();
+    private final CameraView.OnDirectFrameListener holdingListener = new CameraView.OnDirectFrameListener() {
+        @Override
+        public void onDirectFrame(DirectFrame frame) {
+            received.add(frame);
+        }
+    };
+
+    @Test
+    public void rowsStartAtAlignedOffsets() {
+        int width = 100;
+        int height = 6;
+        Camera1DirectFramePool pool = new Camera1DirectFramePool(width, height, 1, holdingListener);
+        byte[] nv21 = nv21(width, height);
+
+        pool.onPreviewFrame(nv21, 1000, 90);
+
+        DirectFrame frame = received.get(0);
+        assertEquals(1000, frame.getTimestampNanos());
+        assertEquals(90, frame.getRotation());
+        assertEquals(width, frame.getWidth());
+        assertEquals(height, frame.getHeight());
+        int rowStride = frame.getRowStride(0);
+        assertEquals(128, rowStride);
+        assertEquals(rowStride, frame.getRowStride(1));
+        assertEquals(rowStride, frame.getRowStride(2));
+        assertEquals(2, frame.getPixelStride(1));
+        assertEquals(2, frame.getPixelStride(2));
+        assertTrue(frame.getPlane(0).isDirect());
+        assertPlanesMatch(frame, nv21, width, height);
+    }
+
+    @Test
+    public void alignedWidthIsCopiedAsIs() {
+        int width = Camera1DirectFramePool.ROW_ALIGNMENT * 2;
+        int height = 4;
+        Camera1DirectFramePool pool = new Camera1DirectFramePool(width, height, 1, holdingListener);
+        byte[] nv21 = nv21(width, height);
+
+        pool.onPreviewFrame(nv21, 0, 0);
+
+        DirectFrame frame = received.get(0);
+        assertEquals(width, frame.getRowStride(0));
+        assertPlanesMatch(frame, nv21, width, height);
+    }
+
+    @Test
+    public void framesAreDroppedWhileEveryFrameIsHeld() {
+        int width = 64;
+        int height = 4;
+        Camera1DirectFramePool pool = new Camera1DirectFramePool(width, height, 3, holdingListener);
+        byte[] nv21 = nv21(width, height);
+
+        for (int i = 0; i < 5; i++) {
+            pool.onPreviewFrame(nv21, i, 0);
+        }
+        assertEquals(3, received.size());
+        assertEquals(2, pool.getDroppedFrames());
+
+        // Released frames go back to the pool and are handed out again.
+        DirectFrame first = received.get(0);
+        first.release();
+        pool.onPreviewFrame(nv21, 5, 0);
+        assertEquals(4, received.size());
+        assertSame(first, received.get(3));
+        assertEquals(5, first.getTimestampNanos());
+        assertEquals(2, pool.getDroppedFrames());
+    }
+
+    @Test
+    public void retainedFrameReturnsWithTheLastReference() {
+        int width = 64;
+        int height = 4;
+        Camera1DirectFramePool pool = new Camera1DirectFramePool(width, height, 1, holdingListener);
+        byte[] nv21 = nv21(width, height);
+
+        pool.onPreviewFrame(nv21, 0, 0);
+        DirectFrame frame = received.get(0);
+        assertSame(frame, frame.retain());
+        frame.release();
+        pool.onPreviewFrame(nv21, 1, 0);
+        assertEquals(1, pool.getDroppedFrames());
+
+        frame.release();
+        pool.onPreviewFrame(nv21, 2, 0);
+        assertEquals(2, received.size());
+        assertEquals(1, pool.getDroppedFrames());
+    }
+
+    private static void assertPlanesMatch(Frame frame, byte[] nv21, int width, int height) {
+        int rowStride = frame.getRowStride(0);
+        ByteBuffer y = frame.getPlane(0);
+        ByteBuffer u = frame.getPlane(1);
+        ByteBuffer v = frame.getPlane(2);
+        for (int row = 0; row < height; row++) {
+            for (int x = 0; x < width; x++) {
+                assertEquals(nv21[row * width + x], y.get(row * rowStride + x));
+            }
+        }
+        for (int row = 0; row < height / 2; row++) {
+            for (int x = 0; x < width / 2; x++) {
+                int offset = width * height + row * width + 2 * x;
+                assertEquals(nv21[offset], v.get(row * rowStride + 2 * x));
+                assertEquals(nv21[offset + 1], u.get(row * rowStride + 2 * x));
+            }
+        }
+    }
+
+    private static byte[] nv21(int width, int height) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        for (int i = 0; i < nv21.length; i++) {
+            nv21[i] = (byte) (i * 7 + i / width);
+        }
+        return nv21;
+    }
+}
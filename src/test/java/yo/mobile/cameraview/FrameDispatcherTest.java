@@ -0,0 +1,91 @@
+package yo.mobile.cameraview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class FrameDispatcherTest {
+
+    private int recycled;
+    private Frame frame;
+    private FrameDispatcher dispatcher;
+    private final List<Frame> held = new ArrayList<>();
+
+    @Before
+    public void setUp() {
+        frame = new Frame(new Frame.Owner() {
+            @Override
+            public void recycle(Frame frame) {
+                recycled++;
+            }
+        });
+        dispatcher = new FrameDispatcher(null);
+    }
+
+    @Test
+    public void everyListenerGetsItsOwnReference() {
+        dispatcher.add(holding());
+        dispatcher.add(holding());
+        frame.open(0, 0);
+
+        dispatcher.dispatch(frame);
+        frame.release();
+        assertEquals(2, held.size());
+        assertEquals(0, recycled);
+
+        held.get(0).release();
+        assertEquals(0, recycled);
+        held.get(1).release();
+        assertEquals(1, recycled);
+    }
+
+    @Test
+    public void throwingListenerDoesntLeakItsReference() {
+        dispatcher.add(new CameraView.OnFrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                throw new IllegalStateException("listener bug");
+            }
+        });
+        dispatcher.add(holding());
+        frame.open(0, 0);
+
+        dispatcher.dispatch(frame);
+        frame.release();
+
+        // The listener after the failing one still got the frame.
+        assertEquals(1, held.size());
+        held.get(0).release();
+        assertEquals(1, recycled);
+    }
+
+    @Test
+    public void addingTwiceAndRemoving() {
+        CameraView.OnFrameListener listener = holding();
+        assertTrue(dispatcher.isEmpty());
+        dispatcher.add(listener);
+        dispatcher.add(listener);
+        frame.open(0, 0);
+        dispatcher.dispatch(frame);
+        assertEquals(1, held.size());
+
+        assertTrue(dispatcher.remove(listener));
+        assertFalse(dispatcher.remove(listener));
+        assertTrue(dispatcher.isEmpty());
+    }
+
+    private CameraView.OnFrameListener holding() {
+        return new CameraView.OnFrameListener() {
+            @Override
+            public void onFrame(Frame frame) {
+                held.add(frame);
+            }
+        };
+    }
+}
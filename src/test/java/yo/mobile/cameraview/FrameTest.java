@@ -0,0 +1,67 @@
+package yo.mobile.cameraview;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class FrameTest {
+
+    private int recycled;
+    private Frame frame;
+
+    @Before
+    public void setUp() {
+        frame = new Frame(new Frame.Owner() {
+            @Override
+            public void recycle(Frame frame) {
+                recycled++;
+            }
+        });
+    }
+
+    @Test
+    public void lastReferenceRecyclesOnce() {
+        frame.open(0, 0);
+        assertSame(frame, frame.acquire());
+        frame.acquire();
+
+        frame.release();
+        frame.release();
+        assertEquals(0, recycled);
+        frame.release();
+        assertEquals(1, recycled);
+    }
+
+    @Test
+    public void releasedFrameCantBeUsed() {
+        frame.open(0, 0);
+        frame.release();
+        try {
+            frame.release();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        try {
+            frame.acquire();
+            fail();
+        } catch (IllegalStateException expected) {
+        }
+        assertEquals(1, recycled);
+    }
+
+    @Test
+    public void recycledFrameIsReopened() {
+        frame.open(1000, 90);
+        frame.release();
+        frame.open(2000, 270);
+
+        assertEquals(2000, frame.getTimestampNanos());
+        assertEquals(270, frame.getRotation());
+        frame.acquire().release();
+        frame.release();
+        assertEquals(2, recycled);
+    }
+}
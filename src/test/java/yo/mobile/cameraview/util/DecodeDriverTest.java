@@ -0,0 +1,266 @@
+package yo.mobile.cameraview.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class DecodeDriverTest {
+
+    private static final long FRAME_US = 33333;
+    private static final long START_NANOS = 1000000000L;
+    private static final long LATE_THRESHOLD_NS = DecodeDriver.DEFAULT_LATE_THRESHOLD_NS;
+
+    private FakeClock clock;
+    private FakeDecoder decoder;
+
+    @Before
+    public void setUp() {
+        clock = new FakeClock();
+        decoder = new FakeDecoder(clock);
+    }
+
+    @Test
+    public void renderTimestampsFollowThePresentationTime() throws Exception {
+        // The stream doesn't start at 0, only differences count.
+        for (int i = 0; i < 10; i++) {
+            decoder.frame(500000 + i * FRAME_US);
+        }
+        decoder.endOfStream();
+
+        DecodeDriver driver = runToEnd();
+
+        assertEquals(10, driver.getRenderedFrames());
+        assertEquals(0, driver.getDroppedFrames());
+        long base = START_NANOS + DecodeDriver.START_LATENCY_NS;
+        for (int i = 0; i < 10; i++) {
+            assertEquals(base + i * FRAME_US * 1000, (long) decoder.rendered.get(i));
+        }
+    }
+
+    @Test
+    public void framesAreReleasedBeforeTheyAreDue() throws Exception {
+        for (int i = 0; i < 10; i++) {
+            decoder.frame(i * FRAME_US);
+        }
+        decoder.endOfStream();
+
+        runToEnd();
+
+        for (int i = 0; i < decoder.rendered.size(); i++) {
+            long releasedAt = decoder.releaseTimes.get(i);
+            long due = decoder.rendered.get(i);
+            assertTrue(due - releasedAt <= DecodeDriver.EARLY_RELEASE_NS);
+            assertTrue(due >= releasedAt);
+        }
+    }
+
+    @Test
+    public void lateFramesAreDroppedAndCounted() throws Exception {
+        decoder.frame(0);
+        // The decoder stalls for 100 ms, frame 1 is due at 43 ms and frame 2 at 76 ms.
+        decoder.frame(FRAME_US).delayNs = 100000000L;
+        decoder.frame(2 * FRAME_US);
+        decoder.frame(3 * FRAME_US);
+        decoder.endOfStream();
+
+        DecodeDriver driver = runToEnd();
+
+        assertEquals(1, driver.getDroppedFrames());
+        assertEquals(3, driver.getRenderedFrames());
+        // And the empty end of stream buffer.
+        assertEquals(2, decoder.dropped);
+        long base = START_NANOS + DecodeDriver.START_LATENCY_NS;
+        // Within the late threshold it is still rendered, at its own time.
+        assertEquals(base + 2 * FRAME_US * 1000, (long) decoder.rendered.get(1));
+        assertTrue(clock.now - decoder.rendered.get(1) < LATE_THRESHOLD_NS);
+    }
+
+    @Test
+    public void endOfStreamBufferWithDataIsRendered() throws Exception {
+        decoder.frame(0);
+        decoder.frame(FRAME_US).endOfStream = true;
+
+        DecodeDriver driver = runToEnd();
+
+        assertEquals(2, driver.getRenderedFrames());
+        assertEquals(0, driver.getDroppedFrames());
+        assertEquals(START_NANOS + DecodeDriver.START_LATENCY_NS + FRAME_US * 1000,
+                (long) decoder.rendered.get(1));
+    }
+
+    @Test
+    public void emptyEndOfStreamBufferIsNotCountedAsDropped() throws Exception {
+        decoder.frame(0);
+        decoder.endOfStream();
+
+        DecodeDriver driver = runToEnd();
+
+        assertEquals(1, driver.getRenderedFrames());
+        assertEquals(0, driver.getDroppedFrames());
+        assertEquals(1, decoder.dropped);
+    }
+
+    @Test
+    public void sleepsAtMostOncePerFrame() throws Exception {
+        int frames = 300;
+        for (int i = 0; i < frames; i++) {
+            decoder.frame(i * FRAME_US);
+        }
+        decoder.endOfStream();
+        // No output for a while after each frame, as when the decoder is slow.
+        decoder.emptyPolls = 3;
+
+        DecodeDriver driver = runToEnd();
+
+        assertEquals(frames, driver.getRenderedFrames());
+        assertTrue("sleeps: " + clock.sleeps, clock.sleeps <= frames);
+        // Waiting for output always blocks for a while, it never polls.
+        assertEquals(0, decoder.zeroTimeoutWaits);
+    }
+
+    private DecodeDriver runToEnd() throws InterruptedException {
+        DecodeDriver driver = new DecodeDriver(decoder, clock, LATE_THRESHOLD_NS);
+        final CountDownLatch ended = new CountDownLatch(1);
+        driver.setListener(new DecodeDriver.Listener() {
+            @Override
+            public void onEndOfStream(DecodeDriver driver) {
+                ended.countDown();
+            }
+        });
+        driver.start();
+        assertTrue(ended.await(10, TimeUnit.SECONDS));
+        driver.stop();
+        return driver;
+    }
+
+    /**
+     * Time only moves when the driver sleeps or the decoder is slow.
+     */
+    private static final class FakeClock implements DecodeDriver.Clock {
+        volatile long now = START_NANOS;
+        volatile int sleeps;
+
+        @Override
+        public long nanoTime() {
+            return now;
+        }
+
+        @Override
+        public void sleepNanos(long nanos) {
+            assertTrue(nanos > 0);
+            sleeps++;
+            now += nanos;
+        }
+    }
+
+    private static final class Output {
+        final long presentationTimeUs;
+        int size = 1000;
+        boolean endOfStream;
+        // Time the decoder takes to produce this output.
+        long delayNs;
+
+        Output(long presentationTimeUs) {
+            this.presentationTimeUs = presentationTimeUs;
+        }
+    }
+
+    /**
+     * Produces the scripted outputs, one per queued input sample.
+     */
+    private static final class FakeDecoder implements DecodeDriver.Decoder {
+        private final FakeClock clock;
+        private final List<Output> outputs = new ArrayList<>();
+        private int queued;
+        private int next;
+        private int polls;
+        int emptyPolls;
+        int zeroTimeoutWaits;
+        int dropped;
+        final List<Long> rendered = new ArrayList<>();
+        final List<Long> releaseTimes = new ArrayList<>();
+
+        FakeDecoder(FakeClock clock) {
+            this.clock = clock;
+        }
+
+        Output frame(long presentationTimeUs) {
+            Output output = new Output(presentationTimeUs);
+            outputs.add(output);
+            return output;
+        }
+
+        void endOfStream() {
+            Output output = new Output(0);
+            output.size = 0;
+            output.endOfStream = true;
+            outputs.add(output);
+        }
+
+        @Override
+        public int feedInput(long timeoutMs) {
+            // Room for four samples ahead of the output.
+            if (queued == outputs.size()) {
+                return FEED_END_OF_STREAM;
+            }
+            if (queued - next >= 4) {
+                return FEED_NONE;
+            }
+            queued++;
+            return FEED_SAMPLE;
+        }
+
+        @Override
+        public boolean awaitOutput(long timeoutMs) {
+            if (timeoutMs <= 0) {
+                zeroTimeoutWaits++;
+            }
+            if (next >= queued) {
+                return false;
+            }
+            if (polls < emptyPolls) {
+                polls++;
+                return false;
+            }
+            clock.now += outputs.get(next).delayNs;
+            return true;
+        }
+
+        @Override
+        public long getOutputPresentationTimeUs() {
+            return outputs.get(next).presentationTimeUs;
+        }
+
+        @Override
+        public int getOutputSize() {
+            return outputs.get(next).size;
+        }
+
+        @Override
+        public boolean isOutputEndOfStream() {
+            return outputs.get(next).endOfStream;
+        }
+
+        @Override
+        public void renderOutput(long renderTimestampNs) {
+            rendered.add(renderTimestampNs);
+            releaseTimes.add(clock.now);
+            next++;
+            polls = 0;
+        }
+
+        @Override
+        public void dropOutput() {
+            dropped++;
+            next++;
+            polls = 0;
+        }
+    }
+}
@@ -0,0 +1,120 @@
+package yo.mobile.cameraview.util;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FrameTimingTrackerTest {
+
+    private static final long FRAME_NANOS = 33333333L;
+    private static final long START_NANOS = 1000000000L;
+
+    private FrameTimingTracker tracker;
+    private long timestamp;
+
+    @Before
+    public void setUp() {
+        tracker = new FrameTimingTracker();
+        tracker.setFrameDurationNanos(FRAME_NANOS);
+        timestamp = START_NANOS;
+        tracker.onFrame(timestamp);
+    }
+
+    @Test
+    public void steadyFramesDropNothing() {
+        frames(100, FRAME_NANOS);
+
+        assertEquals(101, tracker.getFrameCount());
+        assertEquals(0, tracker.getDroppedFrames());
+        assertEquals(30.0, tracker.getFps(), 0.01);
+        assertEquals(0.0, tracker.getJitterNanos(), 1.0);
+        assertEquals(FRAME_NANOS, tracker.getMaxIntervalNanos());
+        assertWithin(FRAME_NANOS, tracker.getIntervalPercentileNanos(50));
+        assertWithin(FRAME_NANOS, tracker.getIntervalPercentileNanos(99));
+    }
+
+    @Test
+    public void gapsCountTheMissingFrames() {
+        // Up to 1.5 frame durations is late, not dropped.
+        frames(1, FRAME_NANOS * 3 / 2);
+        assertEquals(0, tracker.getDroppedFrames());
+        frames(1, FRAME_NANOS * 8 / 5);
+        assertEquals(1, tracker.getDroppedFrames());
+        frames(1, FRAME_NANOS * 3);
+        assertEquals(3, tracker.getDroppedFrames());
+        frames(1, FRAME_NANOS * 10);
+        assertEquals(12, tracker.getDroppedFrames());
+        assertEquals(FRAME_NANOS * 10, tracker.getMaxIntervalNanos());
+        assertEquals(FRAME_NANOS * 10, tracker.getLastIntervalNanos());
+    }
+
+    @Test
+    public void percentilesShowTheJank() {
+        for (int i = 0; i < 10; i++) {
+            frames(9, FRAME_NANOS);
+            frames(1, 100000000L);
+        }
+
+        // Each 100 ms interval misses two frames.
+        assertEquals(20, tracker.getDroppedFrames());
+        assertWithin(FRAME_NANOS, tracker.getIntervalPercentileNanos(50));
+        assertWithin(FRAME_NANOS, tracker.getIntervalPercentileNanos(90));
+        assertWithin(100000000L, tracker.getIntervalPercentileNanos(95));
+        assertWithin(100000000L, tracker.getIntervalPercentileNanos(99));
+        assertTrue(tracker.getJitterNanos() > 0);
+    }
+
+    @Test
+    public void fpsFollowsTheLast64Intervals() {
+        frames(100, FRAME_NANOS);
+        frames(64, FRAME_NANOS / 2);
+
+        assertEquals(60.0, tracker.getFps(), 0.01);
+        assertEquals(0.0, tracker.getJitterNanos(), 1.0);
+    }
+
+    @Test
+    public void timestampsThatDontIncreaseOnlyCountTheFrame() {
+        frames(1, FRAME_NANOS);
+        tracker.onFrame(timestamp);
+        tracker.onFrame(0);
+        tracker.onFrame(timestamp - FRAME_NANOS);
+        frames(1, FRAME_NANOS);
+
+        assertEquals(6, tracker.getFrameCount());
+        assertEquals(0, tracker.getDroppedFrames());
+        assertEquals(FRAME_NANOS, tracker.getMaxIntervalNanos());
+    }
+
+    @Test
+    public void resetClearsEverything() {
+        frames(10, FRAME_NANOS * 3);
+        tracker.reset();
+
+        assertEquals(0, tracker.getFrameCount());
+        assertEquals(0, tracker.getDroppedFrames());
+        assertEquals(0, tracker.getMaxIntervalNanos());
+        assertEquals(0, tracker.getIntervalPercentileNanos(50));
+
+        // The first frame after a reset starts a new interval instead of closing the old one.
+        timestamp += FRAME_NANOS * 100;
+        tracker.onFrame(timestamp);
+        frames(1, FRAME_NANOS);
+        assertEquals(0, tracker.getDroppedFrames());
+        assertEquals(FRAME_NANOS, tracker.getMaxIntervalNanos());
+    }
+
+    private void frames(int count, long intervalNanos) {
+        for (int i = 0; i < count; i++) {
+            timestamp += intervalNanos;
+            tracker.onFrame(timestamp);
+        }
+    }
+
+    private static void assertWithin(long expectedNanos, long actualNanos) {
+        // LatencyHistogram buckets are about 6% wide.
+        assertEquals(expectedNanos, actualNanos, expectedNanos * 0.07);
+    }
+}
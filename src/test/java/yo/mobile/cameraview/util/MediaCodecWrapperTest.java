@@ -0,0 +1,212 @@
+package yo.mobile.cameraview.util;
+
+import android.media.MediaCodec;
+import android.media.MediaFormat;
+
+import org.junit.Assume;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class MediaCodecWrapperTest {
+
+    private static final int BUFFER_COUNT = 4;
+    private static final int BUFFER_SIZE = 1024;
+
+    private FakeCodec codec;
+    private MediaCodecWrapper wrapper;
+    private final MediaCodec.BufferInfo info = new MediaCodec.BufferInfo();
+    private final ByteBuffer sample = ByteBuffer.allocate(100);
+
+    @Before
+    public void setUp() {
+        codec = new FakeCodec();
+        wrapper = new MediaCodecWrapper(codec, false, null);
+    }
+
+    @Test
+    public void samplesDequeuedTogetherKeepTheirOwnInfo() throws Exception {
+        assertTrue(write(1000));
+        assertTrue(write(2000));
+        assertTrue(write(3000));
+
+        // All three outputs are dequeued by the first peek, into separate slots.
+        assertTrue(wrapper.peekSample(info));
+        assertEquals(1000, info.presentationTimeUs);
+        assertEquals(sample.capacity(), info.size);
+        wrapper.popSample(false);
+        assertTrue(wrapper.peekSample(info));
+        assertEquals(2000, info.presentationTimeUs);
+        wrapper.popSample(false);
+        assertTrue(wrapper.peekSample(info));
+        assertEquals(3000, info.presentationTimeUs);
+        wrapper.popSample(false);
+        assertFalse(wrapper.peekSample(info));
+        assertEquals(3, codec.releasedOutputs);
+    }
+
+    @Test
+    public void writePeekPopDoesNotAllocate() throws Exception {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        Assume.assumeTrue(bean instanceof com.sun.management.ThreadMXBean);
+        com.sun.management.ThreadMXBean threads = (com.sun.management.ThreadMXBean) bean;
+        Assume.assumeTrue(threads.isThreadAllocatedMemorySupported());
+        threads.setThreadAllocatedMemoryEnabled(true);
+        long threadId = Thread.currentThread().getId();
+
+        // Warm up so the measured loop runs compiled code.
+        cycle(20000);
+        long before = threads.getThreadAllocatedBytes(threadId);
+        int iterations = 10000;
+        cycle(iterations);
+        long allocated = threads.getThreadAllocatedBytes(threadId) - before;
+
+        // A single BufferInfo or boxed index per call would be hundreds of kilobytes.
+        assertTrue("Allocated " + allocated + " bytes in " + iterations + " iterations",
+                allocated < iterations);
+    }
+
+    private void cycle(int iterations) throws Exception {
+        for (int i = 0; i < iterations; i++) {
+            if (!write(i) || !wrapper.peekSample(info) || info.presentationTimeUs != i) {
+                throw new AssertionError("Sample " + i + " was not passed through");
+            }
+            wrapper.popSample(false);
+        }
+    }
+
+    private boolean write(long presentationTimeUs) throws Exception {
+        sample.clear();
+        return wrapper.writeSample(sample, null, presentationTimeUs, 0);
+    }
+
+    /**
+     * Codec that outputs every queued input buffer as is, through the buffer with the same index.
+     */
+    private static final class FakeCodec implements MediaCodecWrapper.Codec {
+
+        private final ByteBuffer[] inputBuffers = new ByteBuffer[BUFFER_COUNT];
+        private final ByteBuffer[] outputBuffers = new ByteBuffer[BUFFER_COUNT];
+        private final boolean[] inputFree = new boolean[BUFFER_COUNT];
+        private final boolean[] outputFree = new boolean[BUFFER_COUNT];
+        // Queued inputs waiting to be output, in order.
+        private final int[] pending = new int[BUFFER_COUNT];
+        private final long[] pendingTimeUs = new long[BUFFER_COUNT];
+        private final int[] pendingSize = new int[BUFFER_COUNT];
+        private int pendingHead;
+        private int pendingCount;
+        int releasedOutputs;
+
+        FakeCodec() {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                inputBuffers[i] = ByteBuffer.allocate(BUFFER_SIZE);
+                outputBuffers[i] = ByteBuffer.allocate(BUFFER_SIZE);
+                inputFree[i] = true;
+                outputFree[i] = true;
+            }
+        }
+
+        @Override
+        public void start() {
+        }
+
+        @Override
+        public void stop() {
+        }
+
+        @Override
+        public void release() {
+        }
+
+        @Override
+        public ByteBuffer[] getInputBuffers() {
+            return inputBuffers;
+        }
+
+        @Override
+        public ByteBuffer[] getOutputBuffers() {
+            return outputBuffers;
+        }
+
+        @Override
+        public ByteBuffer getInputBuffer(int index) {
+            return inputBuffers[index];
+        }
+
+        @Override
+        public ByteBuffer getOutputBuffer(int index) {
+            return outputBuffers[index];
+        }
+
+        @Override
+        public int dequeueInputBuffer(long timeoutUs) {
+            for (int i = 0; i < BUFFER_COUNT; i++) {
+                // An input buffer comes back once the output using the same index is released.
+                if (inputFree[i] && outputFree[i]) {
+                    inputFree[i] = false;
+                    return i;
+                }
+            }
+            return MediaCodec.INFO_TRY_AGAIN_LATER;
+        }
+
+        @Override
+        public int dequeueOutputBuffer(MediaCodec.BufferInfo info, long timeoutUs) {
+            if (pendingCount == 0) {
+                return MediaCodec.INFO_TRY_AGAIN_LATER;
+            }
+            int index = pending[pendingHead];
+            info.offset = 0;
+            info.size = pendingSize[pendingHead];
+            info.presentationTimeUs = pendingTimeUs[pendingHead];
+            info.flags = 0;
+            pendingHead = (pendingHead + 1) % BUFFER_COUNT;
+            pendingCount--;
+            return index;
+        }
+
+        @Override
+        public void queueInputBuffer(int index, int offset, int size, long presentationTimeUs,
+                                     int flags) {
+            int tail = (pendingHead + pendingCount) % BUFFER_COUNT;
+            pending[tail] = index;
+            pendingTimeUs[tail] = presentationTimeUs;
+            pendingSize[tail] = size;
+            pendingCount++;
+            inputFree[index] = true;
+            outputFree[index] = false;
+        }
+
+        @Override
+        public void queueSecureInputBuffer(int index, int offset, MediaCodec.CryptoInfo info,
+                                           long presentationTimeUs, int flags) {
+            throw new UnsupportedOperationException();
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, boolean render) {
+            outputFree[index] = true;
+            releasedOutputs++;
+        }
+
+        @Override
+        public void releaseOutputBuffer(int index, long renderTimestampNs) {
+            releaseOutputBuffer(index, true);
+        }
+
+        @Override
+        public MediaFormat getOutputFormat() {
+            return null;
+        }
+
+        @Override
+        public void signalEndOfInputStream() {
+        }
+    }
+}
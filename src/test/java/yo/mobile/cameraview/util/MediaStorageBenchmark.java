@@ -0,0 +1,71 @@
+package yo.mobile.cameraview.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.text.SimpleDateFormat;
+import java.util.Date;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to name a new media file in a temp directory, against the {@link SimpleDateFormat} and
+ * {@code mkdirs} per file that {@link MediaStorage} replaced. No file is created. Run
+ * {@link #main(String[])} from the unit test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MediaStorageBenchmark {
+
+    private File directory;
+    private MediaStorage storage;
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("MediaStorageBenchmark").toFile();
+        storage = new MediaStorage(directory);
+    }
+
+    @TearDown
+    public void tearDown() {
+        directory.delete();
+    }
+
+    @Benchmark
+    public File newFile() {
+        return storage.newFile("IMG_", ".jpg");
+    }
+
+    @Benchmark
+    public File simpleDateFormat() {
+        if (!directory.exists() && !directory.mkdirs()) {
+            return null;
+        }
+        String timeStamp = new SimpleDateFormat("yyyyMMdd_HHmmss").format(new Date());
+        return new File(directory, "IMG_" + timeStamp + ".jpg");
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MediaStorageBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
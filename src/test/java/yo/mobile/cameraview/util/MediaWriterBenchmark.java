@@ -0,0 +1,101 @@
+package yo.mobile.cameraview.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time to name and write a burst of JPEG sized files into a temp directory, for each
+ * {@link MediaWriter.FsyncPolicy}, with and without preallocation. The files are deleted after
+ * every burst. Run {@link #main(String[])} from the unit test classpath, on the storage to
+ * measure: the temp directory can be moved with {@code -Djava.io.tmpdir}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class MediaWriterBenchmark {
+
+    private static final int BURST = 8;
+    private static final int FILE_SIZE = 1024 * 1024;
+
+    @Param({"PER_FILE", "PER_BATCH", "NEVER"})
+    public MediaWriter.FsyncPolicy fsyncPolicy;
+
+    @Param({"false", "true"})
+    public boolean preallocate;
+
+    private File directory;
+    private MediaStorage storage;
+    private MediaWriter writer;
+    private ByteBuffer jpeg;
+    private final File[] files = new File[BURST];
+
+    @Setup
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("MediaWriterBenchmark").toFile();
+        storage = new MediaStorage(directory);
+        writer = new MediaWriter(fsyncPolicy, MediaWriter.DEFAULT_BATCH_SIZE);
+        writer.setPreallocate(preallocate);
+        // Random bytes, as incompressible as a JPEG.
+        byte[] bytes = new byte[FILE_SIZE];
+        new Random(42).nextBytes(bytes);
+        jpeg = ByteBuffer.allocateDirect(FILE_SIZE);
+        jpeg.put(bytes);
+        jpeg.clear();
+    }
+
+    @TearDown(Level.Invocation)
+    public void deleteBurst() {
+        for (int i = 0; i < BURST; i++) {
+            if (files[i] != null) {
+                files[i].delete();
+                files[i] = null;
+            }
+        }
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        writer.close();
+        deleteBurst();
+        directory.delete();
+    }
+
+    @Benchmark
+    public void writeBurst() throws IOException {
+        for (int i = 0; i < BURST; i++) {
+            files[i] = storage.newFile("IMG_", ".jpg");
+            writer.write(files[i], jpeg.duplicate());
+        }
+        writer.flush();
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(MediaWriterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
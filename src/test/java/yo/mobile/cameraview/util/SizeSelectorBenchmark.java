@@ -0,0 +1,316 @@
+package yo.mobile.cameraview.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time of each size search over the sizes of a typical phone camera, and over a long synthetic
+ * list, against the memoized lookups a reopen of the camera does and against the searches over
+ * size objects that {@link SizeSelector} replaced, {@code Camera1Helper.getOptimalVideoSize},
+ * {@code getOptimalPreviewSize} and {@code Camera2Helper.chooseOptimalSize}. Run
+ * {@link #main(String[])} from the unit test classpath.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SizeSelectorBenchmark {
+
+    // Preview sizes reported by a mid-range phone, largest first as the camera lists them.
+    private static final int[][] PHONE_SIZES = {
+            {4032, 3024}, {4000, 3000}, {3840, 2160}, {3264, 2448}, {3264, 1836}, {2592, 1944},
+            {2592, 1458}, {2560, 1440}, {2048, 1536}, {2048, 1152}, {1920, 1440}, {1920, 1080},
+            {1600, 1200}, {1600, 900}, {1440, 1080}, {1280, 960}, {1280, 720}, {1024, 768},
+            {960, 720}, {960, 540}, {864, 480}, {800, 600}, {800, 480}, {768, 432}, {720, 480},
+            {640, 480}, {640, 360}, {480, 320}, {352, 288}, {320, 240}, {176, 144}};
+
+    @Param({"phone", "long"})
+    public String sizes;
+
+    private SizeList previewSizes;
+    private SizeList videoSizes;
+    private SizeSelector selector;
+    private List<LegacySize> legacyPreviewSizes;
+    private List<LegacySize> legacyVideoSizes;
+    private LegacySize[] legacyChoices;
+
+    @Setup
+    public void setUp() {
+        int[][] list = "phone".equals(sizes) ? PHONE_SIZES : longList();
+        int[] widths = new int[list.length];
+        int[] heights = new int[list.length];
+        for (int i = 0; i < list.length; i++) {
+            widths[i] = list[i][0];
+            heights[i] = list[i][1];
+        }
+        previewSizes = new SizeList(widths, heights);
+        // Video sizes are mostly the 16:9 subset of the preview sizes.
+        videoSizes = new SizeList(every16by9(widths, heights, true), every16by9(widths, heights, false));
+
+        selector = SizeSelector.forCamera("benchmark:" + sizes);
+        selector.setSizes(SizeSelector.SIZES_PREVIEW, previewSizes);
+        selector.setSizes(SizeSelector.SIZES_VIDEO, videoSizes);
+
+        legacyPreviewSizes = toLegacy(previewSizes);
+        legacyVideoSizes = toLegacy(videoSizes);
+        legacyChoices = legacyPreviewSizes.toArray(new LegacySize[legacyPreviewSizes.size()]);
+    }
+
+    private static List<LegacySize> toLegacy(SizeList sizes) {
+        List<LegacySize> list = new ArrayList<>(sizes.size());
+        for (int i = 0; i < sizes.size(); i++) {
+            list.add(new LegacySize(sizes.getWidth(i), sizes.getHeight(i)));
+        }
+        return list;
+    }
+
+    private static int[][] longList() {
+        int[][] list = new int[240][];
+        for (int i = 0; i < list.length; i++) {
+            int height = 4000 - i * 16;
+            // 4:3, 16:9 and 1:1 in turn.
+            int width = i % 3 == 0 ? height * 4 / 3 : (i % 3 == 1 ? height * 16 / 9 : height);
+            list[i] = new int[]{width, height};
+        }
+        return list;
+    }
+
+    private static int[] every16by9(int[] widths, int[] heights, boolean takeWidths) {
+        int count = 0;
+        int[] result = new int[widths.length];
+        for (int i = 0; i < widths.length; i++) {
+            if (heights[i] == widths[i] * 9 / 16) {
+                result[count++] = takeWidths ? widths[i] : heights[i];
+            }
+        }
+        return Arrays.copyOf(result, count);
+    }
+
+    @Benchmark
+    public int selectVideoSize() {
+        return SizeSelector.selectVideoSize(videoSizes, previewSizes, 1920, 1080);
+    }
+
+    @Benchmark
+    public int selectPreviewSize() {
+        return SizeSelector.selectPreviewSize(previewSizes, 1080);
+    }
+
+    @Benchmark
+    public int selectOptimalSize() {
+        return SizeSelector.selectOptimalSize(previewSizes, 1080, 1920, 1920, 1080, 16, 9);
+    }
+
+    @Benchmark
+    public int selectLargest() {
+        return SizeSelector.selectLargest(previewSizes);
+    }
+
+    @Benchmark
+    public int memoizedSelectVideoSize() {
+        return selector.selectVideoSize(1920, 1080);
+    }
+
+    @Benchmark
+    public int memoizedSelectOptimalSize() {
+        return selector.selectOptimalSize(1080, 1920, 1920, 1080, 16, 9);
+    }
+
+    @Benchmark
+    public LegacySize legacyGetOptimalVideoSize() {
+        return getOptimalVideoSize(legacyVideoSizes, legacyPreviewSizes, 1920, 1080);
+    }
+
+    @Benchmark
+    public LegacySize legacyGetOptimalPreviewSize() {
+        return getOptimalPreviewSize(legacyPreviewSizes, 1080);
+    }
+
+    @Benchmark
+    public LegacySize legacyChooseOptimalSize() {
+        return chooseOptimalSize(legacyChoices, 1080, 1920, 1920, 1080, new LegacySize(16, 9));
+    }
+
+    /**
+     * Stands in for {@code Camera.Size} and {@code android.util.Size}, which compare by value.
+     */
+    public static final class LegacySize {
+        final int width;
+        final int height;
+
+        LegacySize(int width, int height) {
+            this.width = width;
+            this.height = height;
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (!(obj instanceof LegacySize)) {
+                return false;
+            }
+            LegacySize other = (LegacySize) obj;
+            return width == other.width && height == other.height;
+        }
+
+        @Override
+        public int hashCode() {
+            return width * 32713 + height;
+        }
+    }
+
+    // The old searches below are kept as they were, only the size type is replaced.
+
+    private static LegacySize getOptimalVideoSize(List<LegacySize> supportedVideoSizes,
+                                                  List<LegacySize> previewSizes, int w, int h) {
+        // Use a very small tolerance because we want an exact match.
+        final double ASPECT_TOLERANCE = 0.1;
+        double targetRatio = (double) w / h;
+
+        // Supported video sizes list might be null, it means that we are allowed to use the preview
+        // sizes
+        List<LegacySize> videoSizes;
+        if (supportedVideoSizes != null) {
+            videoSizes = supportedVideoSizes;
+        } else {
+            videoSizes = previewSizes;
+        }
+        LegacySize optimalSize = null;
+
+        // Start with max value and refine as we iterate over available video sizes. This is the
+        // minimum difference between view and camera height.
+        double minDiff = Double.MAX_VALUE;
+
+        // Target view height
+        int targetHeight = h;
+
+        // Try to find a video size that matches aspect ratio and the target view size.
+        // Iterate over all available sizes and pick the largest size that can fit in the view and
+        // still maintain the aspect ratio.
+        for (LegacySize size : videoSizes) {
+            double ratio = (double) size.width / size.height;
+            if (Math.abs(ratio - targetRatio) > ASPECT_TOLERANCE)
+                continue;
+            if (Math.abs(size.height - targetHeight) < minDiff && previewSizes.contains(size)) {
+                optimalSize = size;
+                minDiff = Math.abs(size.height - targetHeight);
+            }
+        }
+
+        // Cannot find video size that matches the aspect ratio, ignore the requirement
+        if (optimalSize == null) {
+            minDiff = Double.MAX_VALUE;
+            for (LegacySize size : videoSizes) {
+                if (Math.abs(size.height - targetHeight) < minDiff && previewSizes.contains(size)) {
+                    optimalSize = size;
+                    minDiff = Math.abs(size.height - targetHeight);
+                }
+            }
+        }
+        return optimalSize;
+    }
+
+    private static LegacySize getOptimalPreviewSize(List<LegacySize> sizes, int targetHeight) {
+        final double MIN_ASPECT_RATIO = 1.0;
+        final double MAX_ASPECT_RATIO = 1.5;
+        LegacySize optimalSize = null;
+        double minDiff = Double.MAX_VALUE;
+        for (LegacySize size : sizes) {
+            double ratio = (double) size.width / size.height;
+            if (ratio <= MIN_ASPECT_RATIO || ratio > MAX_ASPECT_RATIO)
+                continue;
+            if (Math.abs(size.height - targetHeight) < minDiff) {
+                optimalSize = size;
+                minDiff = Math.abs(size.height - targetHeight);
+            }
+        }
+        if (optimalSize == null) {
+            minDiff = Double.MAX_VALUE;
+            for (LegacySize size : sizes) {
+                if (Math.abs(size.height - targetHeight) < minDiff) {
+                    optimalSize = size;
+                    minDiff = Math.abs(size.height - targetHeight);
+                }
+            }
+        }
+        return optimalSize;
+    }
+
+    private static class CompareSizesByArea implements Comparator<LegacySize> {
+
+        @Override
+        public int compare(LegacySize lhs, LegacySize rhs) {
+            // We cast here to ensure the multiplications won't overflow
+            return Long.signum((long) lhs.getWidth() * lhs.getHeight() -
+                    (long) rhs.getWidth() * rhs.getHeight());
+        }
+
+    }
+
+    private static LegacySize chooseOptimalSize(LegacySize[] choices, int textureViewWidth,
+                                                int textureViewHeight, int maxWidth, int maxHeight,
+                                                LegacySize aspectRatio) {
+
+        // Collect the supported resolutions that are at least as big as the preview Surface
+        List<LegacySize> bigEnough = new ArrayList<>();
+        // Collect the supported resolutions that are smaller than the preview Surface
+        List<LegacySize> notBigEnough = new ArrayList<>();
+        int w = aspectRatio.getWidth();
+        int h = aspectRatio.getHeight();
+        for (LegacySize option : choices) {
+            if (option.getWidth() <= maxWidth && option.getHeight() <= maxHeight &&
+                    option.getHeight() == option.getWidth() * h / w) {
+                if (option.getWidth() >= textureViewWidth &&
+                        option.getHeight() >= textureViewHeight) {
+                    bigEnough.add(option);
+                } else {
+                    notBigEnough.add(option);
+                }
+            }
+        }
+
+        // Pick the smallest of those big enough. If there is no one big enough, pick the
+        // largest of those not big enough. The original logged when it fell back to choices[0].
+        if (bigEnough.size() > 0) {
+            return Collections.min(bigEnough, new CompareSizesByArea());
+        } else if (notBigEnough.size() > 0) {
+            return Collections.max(notBigEnough, new CompareSizesByArea());
+        } else {
+            return choices[0];
+        }
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(SizeSelectorBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
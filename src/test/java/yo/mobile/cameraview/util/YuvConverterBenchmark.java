@@ -0,0 +1,120 @@
+package yo.mobile.cameraview.util;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time per frame of each {@link YuvConverter} path, on one thread and on all cores. Run
+ * {@link #main(String[])} from the unit test classpath. Desktop JVM numbers only compare the
+ * paths with each other, not with a device.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class YuvConverterBenchmark {
+
+    @Param({"1280x720", "1920x1080", "3840x2160"})
+    public String size;
+
+    @Param({"false", "true"})
+    public boolean parallel;
+
+    private int width;
+    private int height;
+    private YuvConverter converter;
+    private byte[] nv21;
+    private ByteBuffer yPlane;
+    private ByteBuffer uPlane;
+    private ByteBuffer vPlane;
+    private int yRowStride;
+    private int uvRowStride;
+    private int[] outArray;
+    private IntBuffer outBuffer;
+
+    @Setup
+    public void setUp() {
+        String[] dimensions = size.split("x");
+        width = Integer.parseInt(dimensions[0]);
+        height = Integer.parseInt(dimensions[1]);
+        converter = parallel ? new YuvConverter() : new YuvConverter(null, 1);
+
+        Random random = new Random(42);
+        nv21 = new byte[width * height * 3 / 2];
+        random.nextBytes(nv21);
+
+        // Padded rows and interleaved chroma, as in a typical YUV_420_888 image.
+        yRowStride = width + 64;
+        uvRowStride = yRowStride;
+        yPlane = randomDirect(random, yRowStride * height);
+        ByteBuffer uv = randomDirect(random, uvRowStride * height / 2);
+        uPlane = uv.duplicate();
+        uv.position(1);
+        vPlane = uv.slice();
+
+        outArray = new int[width * height];
+        outBuffer = ByteBuffer.allocateDirect(width * height * 4).order(ByteOrder.nativeOrder())
+                .asIntBuffer();
+    }
+
+    private static ByteBuffer randomDirect(Random random, int size) {
+        byte[] bytes = new byte[size];
+        random.nextBytes(bytes);
+        ByteBuffer buffer = ByteBuffer.allocateDirect(size);
+        buffer.put(bytes);
+        buffer.clear();
+        return buffer;
+    }
+
+    @Benchmark
+    public int[] nv21ToIntArray() {
+        converter.nv21ToArgb(nv21, width, height, outArray);
+        return outArray;
+    }
+
+    @Benchmark
+    public IntBuffer nv21ToIntBuffer() {
+        converter.nv21ToArgb(nv21, width, height, outBuffer);
+        return outBuffer;
+    }
+
+    @Benchmark
+    public int[] stridedPlanesToIntArray() {
+        converter.yuv420ToArgb(yPlane, yRowStride, uPlane, vPlane, uvRowStride, 2, width, height,
+                outArray);
+        return outArray;
+    }
+
+    @Benchmark
+    public IntBuffer stridedPlanesToIntBuffer() {
+        converter.yuv420ToArgb(yPlane, yRowStride, uPlane, vPlane, uvRowStride, 2, width, height,
+                outBuffer);
+        return outBuffer;
+    }
+
+    public static void main(String[] args) throws RunnerException {
+        new Runner(new OptionsBuilder()
+                .include(YuvConverterBenchmark.class.getSimpleName())
+                .build()).run();
+    }
+}
@@ -0,0 +1,213 @@
+package yo.mobile.cameraview.util;
+
+import org.junit.AfterClass;
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+/**
+ * Compares every conversion path with a floating point BT.601 reference, on sizes with odd
+ * dimensions and on several strips.
+ */
+public class YuvConverterTest {
+
+    // The converter works in 10 bit fixed point and truncates.
+    private static final int TOLERANCE = 2;
+
+    private static final ExecutorService executor = Executors.newFixedThreadPool(3);
+
+    private static final int[][] SIZES = {{2, 2}, {37, 23}, {64, 48}, {320, 240}};
+
+    @AfterClass
+    public static void shutDown() {
+        executor.shutdown();
+    }
+
+    @Test
+    public void nv21ToIntArray() {
+        for (int[] size : SIZES) {
+            for (YuvConverter converter : converters()) {
+                Frame frame = new Frame(size[0], size[1]);
+                int[] out = new int[frame.width * frame.height];
+                converter.nv21ToArgb(frame.toNv21(), frame.width, frame.height, out);
+                frame.assertMatches(IntBuffer.wrap(out));
+            }
+        }
+    }
+
+    @Test
+    public void nv21ToIntBuffer() {
+        for (int[] size : SIZES) {
+            for (YuvConverter converter : converters()) {
+                Frame frame = new Frame(size[0], size[1]);
+                IntBuffer out = directIntBuffer(frame.width * frame.height);
+                converter.nv21ToArgb(frame.toNv21(), frame.width, frame.height, out);
+                frame.assertMatches(out);
+            }
+        }
+    }
+
+    @Test
+    public void semiPlanarToIntArray() {
+        for (int[] size : SIZES) {
+            for (YuvConverter converter : converters()) {
+                Frame frame = new Frame(size[0], size[1]);
+                // Row padding and interleaved chroma, as in most YUV_420_888 images.
+                int yRowStride = frame.width + 16;
+                int uvRowStride = (frame.width + 1) / 2 * 2 + 32;
+                ByteBuffer y = frame.toLumaPlane(yRowStride);
+                ByteBuffer uv = frame.toInterleavedChroma(uvRowStride);
+                ByteBuffer v = ((ByteBuffer) uv.duplicate().position(1)).slice();
+                int[] out = new int[frame.width * frame.height];
+                converter.yuv420ToArgb(y, yRowStride, uv, v, uvRowStride, 2,
+                        frame.width, frame.height, out);
+                frame.assertMatches(IntBuffer.wrap(out));
+            }
+        }
+    }
+
+    @Test
+    public void planarToIntBuffer() {
+        for (int[] size : SIZES) {
+            for (YuvConverter converter : converters()) {
+                Frame frame = new Frame(size[0], size[1]);
+                int yRowStride = frame.width + 8;
+                int uvRowStride = (frame.width + 1) / 2 + 8;
+                ByteBuffer y = frame.toLumaPlane(yRowStride);
+                ByteBuffer u = frame.toChromaPlane(frame.u, uvRowStride);
+                ByteBuffer v = frame.toChromaPlane(frame.v, uvRowStride);
+                IntBuffer out = directIntBuffer(frame.width * frame.height);
+                converter.yuv420ToArgb(y, yRowStride, u, v, uvRowStride, 1,
+                        frame.width, frame.height, out);
+                frame.assertMatches(out);
+            }
+        }
+    }
+
+    private static YuvConverter[] converters() {
+        return new YuvConverter[]{new YuvConverter(null, 1), new YuvConverter(executor, 4)};
+    }
+
+    private static IntBuffer directIntBuffer(int size) {
+        return ByteBuffer.allocateDirect(size * 4).order(ByteOrder.nativeOrder()).asIntBuffer();
+    }
+
+    /**
+     * Random samples, with the chroma planes in their own arrays at quarter resolution.
+     */
+    private static final class Frame {
+        final int width;
+        final int height;
+        final int chromaWidth;
+        final int chromaHeight;
+        final byte[] y;
+        final byte[] u;
+        final byte[] v;
+
+        Frame(int width, int height) {
+            this.width = width;
+            this.height = height;
+            chromaWidth = (width + 1) / 2;
+            chromaHeight = (height + 1) / 2;
+            Random random = new Random(width * 31 + height);
+            y = new byte[width * height];
+            u = new byte[chromaWidth * chromaHeight];
+            v = new byte[chromaWidth * chromaHeight];
+            random.nextBytes(y);
+            random.nextBytes(u);
+            random.nextBytes(v);
+        }
+
+        byte[] toNv21() {
+            byte[] nv21 = new byte[width * height + chromaWidth * chromaHeight * 2];
+            System.arraycopy(y, 0, nv21, 0, y.length);
+            int index = y.length;
+            for (int i = 0; i < u.length; i++) {
+                nv21[index++] = v[i];
+                nv21[index++] = u[i];
+            }
+            return nv21;
+        }
+
+        ByteBuffer toLumaPlane(int rowStride) {
+            ByteBuffer plane = ByteBuffer.allocateDirect((height - 1) * rowStride + width);
+            for (int row = 0; row < height; row++) {
+                plane.position(row * rowStride);
+                plane.put(y, row * width, width);
+            }
+            plane.clear();
+            return plane;
+        }
+
+        ByteBuffer toChromaPlane(byte[] samples, int rowStride) {
+            ByteBuffer plane = ByteBuffer.allocateDirect((chromaHeight - 1) * rowStride + chromaWidth);
+            for (int row = 0; row < chromaHeight; row++) {
+                plane.position(row * rowStride);
+                plane.put(samples, row * chromaWidth, chromaWidth);
+            }
+            plane.clear();
+            return plane;
+        }
+
+        /**
+         * U first, as the U plane of an image that shares its buffer with the V plane.
+         */
+        ByteBuffer toInterleavedChroma(int rowStride) {
+            ByteBuffer plane = ByteBuffer.allocateDirect((chromaHeight - 1) * rowStride + chromaWidth * 2);
+            for (int row = 0; row < chromaHeight; row++) {
+                plane.position(row * rowStride);
+                for (int col = 0; col < chromaWidth; col++) {
+                    plane.put(u[row * chromaWidth + col]);
+                    plane.put(v[row * chromaWidth + col]);
+                }
+            }
+            plane.clear();
+            return plane;
+        }
+
+        void assertMatches(IntBuffer pixels) {
+            for (int row = 0; row < height; row++) {
+                for (int col = 0; col < width; col++) {
+                    int chroma = (row / 2) * chromaWidth + col / 2;
+                    int expected = reference(y[row * width + col] & 0xff, u[chroma] & 0xff,
+                            v[chroma] & 0xff);
+                    int actual = pixels.get(row * width + col);
+                    if (!matches(expected, actual)) {
+                        fail(String.format("%dx%d pixel (%d, %d): expected %08x, was %08x",
+                                width, height, col, row, expected, actual));
+                    }
+                }
+            }
+        }
+    }
+
+    private static int reference(int y, int u, int v) {
+        double luma = 1.164 * Math.max(y - 16, 0);
+        int r = clamp(luma + 1.596 * (v - 128));
+        int g = clamp(luma - 0.813 * (v - 128) - 0.391 * (u - 128));
+        int b = clamp(luma + 2.018 * (u - 128));
+        return 0xff000000 | (r << 16) | (g << 8) | b;
+    }
+
+    private static int clamp(double value) {
+        return (int) Math.max(0, Math.min(255, Math.round(value)));
+    }
+
+    private static boolean matches(int expected, int actual) {
+        assertTrue((actual >>> 24) == 0xff);
+        for (int shift = 0; shift < 24; shift += 8) {
+            if (Math.abs(((expected >> shift) & 0xff) - ((actual >> shift) & 0xff)) > TOLERANCE) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
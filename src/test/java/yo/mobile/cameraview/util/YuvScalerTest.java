@@ -0,0 +1,244 @@
+package yo.mobile.cameraview.util;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+
+/**
+ * Checks the scaler against frames whose expected output is easy to compute by hand: identity
+ * sizes, exact 2x reductions and plain rotations.
+ */
+public class YuvScalerTest {
+
+    private static final int WIDTH = 8;
+    private static final int HEIGHT = 6;
+
+    @Test
+    public void sameSizeIsIdentity() {
+        byte[] nv21 = nv21(WIDTH, HEIGHT);
+        for (YuvScaler.Filter filter : YuvScaler.Filter.values()) {
+            YuvScaler scaler = new YuvScaler(WIDTH, HEIGHT, filter);
+            assertArrayEquals(filter.name(), nv21, scaler.scaleNv21(nv21, WIDTH, HEIGHT));
+        }
+    }
+
+    @Test
+    public void rotationsTurnTheFrameClockwise() {
+        byte[] nv21 = nv21(WIDTH, HEIGHT);
+        for (int degrees = 0; degrees < 360; degrees += 90) {
+            YuvScaler scaler = new YuvScaler(WIDTH, HEIGHT, YuvScaler.Filter.BOX);
+            scaler.setRotation(degrees);
+            int outWidth = degrees % 180 == 0 ? WIDTH : HEIGHT;
+            int outHeight = degrees % 180 == 0 ? HEIGHT : WIDTH;
+            assertEquals(outWidth, scaler.getOutputWidth());
+            assertEquals(outHeight, scaler.getOutputHeight());
+            assertArrayEquals("rotation " + degrees, rotate(nv21, WIDTH, HEIGHT, degrees),
+                    scaler.scaleNv21(nv21, WIDTH, HEIGHT));
+        }
+    }
+
+    @Test
+    public void boxHalvesACropByAveraging() {
+        int width = 12;
+        int height = 10;
+        byte[] nv21 = nv21(width, height);
+        YuvScaler scaler = new YuvScaler(4, 4, YuvScaler.Filter.BOX);
+        // Odd coordinates are aligned down to (2, 2).
+        scaler.setCrop(3, 3, 8, 8);
+
+        byte[] out = scaler.scaleNv21(nv21, width, height);
+
+        for (int y = 0; y < 4; y++) {
+            for (int x = 0; x < 4; x++) {
+                int sx = 2 + 2 * x;
+                int sy = 2 + 2 * y;
+                int sum = luma(nv21, width, sx, sy) + luma(nv21, width, sx + 1, sy)
+                        + luma(nv21, width, sx, sy + 1) + luma(nv21, width, sx + 1, sy + 1);
+                assertEquals(sum / 4, out[y * 4 + x] & 0xff);
+            }
+        }
+        for (int y = 0; y < 2; y++) {
+            for (int x = 0; x < 2; x++) {
+                int cx = 1 + 2 * x;
+                int cy = 1 + 2 * y;
+                for (int i = 0; i < 2; i++) {
+                    int sum = chroma(nv21, width, height, cx, cy, i)
+                            + chroma(nv21, width, height, cx + 1, cy, i)
+                            + chroma(nv21, width, height, cx, cy + 1, i)
+                            + chroma(nv21, width, height, cx + 1, cy + 1, i);
+                    assertEquals(sum / 4, out[16 + y * 4 + x * 2 + i] & 0xff);
+                }
+            }
+        }
+    }
+
+    @Test
+    public void stridedPlanesMatchNv21() {
+        byte[] nv21 = nv21(WIDTH, HEIGHT);
+        for (YuvScaler.Filter filter : YuvScaler.Filter.values()) {
+            for (int pixelStride = 1; pixelStride <= 2; pixelStride++) {
+                YuvScaler nv21Scaler = new YuvScaler(4, 4, filter);
+                YuvScaler planeScaler = new YuvScaler(4, 4, filter);
+                nv21Scaler.setRotation(90);
+                planeScaler.setRotation(90);
+                byte[] expected = nv21Scaler.scaleNv21(nv21, WIDTH, HEIGHT);
+
+                // Rows padded, as camera planes often are.
+                int yRowStride = WIDTH + 8;
+                int uvRowStride = WIDTH / 2 * pixelStride + 6;
+                ByteBuffer y = ByteBuffer.allocateDirect(yRowStride * HEIGHT);
+                ByteBuffer u = ByteBuffer.allocateDirect(uvRowStride * HEIGHT / 2);
+                ByteBuffer v = ByteBuffer.allocateDirect(uvRowStride * HEIGHT / 2);
+                for (int row = 0; row < HEIGHT; row++) {
+                    for (int col = 0; col < WIDTH; col++) {
+                        y.put(row * yRowStride + col, (byte) luma(nv21, WIDTH, col, row));
+                    }
+                }
+                for (int row = 0; row < HEIGHT / 2; row++) {
+                    for (int col = 0; col < WIDTH / 2; col++) {
+                        int index = row * uvRowStride + col * pixelStride;
+                        v.put(index, (byte) chroma(nv21, WIDTH, HEIGHT, col, row, 0));
+                        u.put(index, (byte) chroma(nv21, WIDTH, HEIGHT, col, row, 1));
+                    }
+                }
+
+                assertArrayEquals(filter + " pixel stride " + pixelStride, expected,
+                        planeScaler.scale(y, yRowStride, u, v, uvRowStride, pixelStride, WIDTH, HEIGHT));
+            }
+        }
+    }
+
+    @Test
+    public void cropIsClippedToTheFrame() {
+        byte[] nv21 = nv21(WIDTH, HEIGHT);
+        for (YuvScaler.Filter filter : YuvScaler.Filter.values()) {
+            YuvScaler clipped = new YuvScaler(2, 2, filter);
+            YuvScaler exact = new YuvScaler(2, 2, filter);
+            exact.setCrop(4, 2, 4, 4);
+            byte[] expected = exact.scaleNv21(nv21, WIDTH, HEIGHT);
+
+            // Too wide and too tall.
+            clipped.setCrop(4, 2, 100, 100);
+            assertArrayEquals(filter.name(), expected, clipped.scaleNv21(nv21, WIDTH, HEIGHT));
+
+            // Starting outside of the frame, the last 2x2 block is left.
+            exact.setCrop(WIDTH - 2, HEIGHT - 2, 2, 2);
+            clipped.setCrop(WIDTH + 10, HEIGHT + 10, 4, 4);
+            assertArrayEquals(filter.name(), exact.scaleNv21(nv21, WIDTH, HEIGHT),
+                    clipped.scaleNv21(nv21, WIDTH, HEIGHT));
+        }
+    }
+
+    @Test
+    public void bilinearWeightsAtTheEdges() {
+        // A horizontal ramp: luma is 16 * x, chroma 32 * x.
+        int width = 4;
+        int height = 4;
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * width + x] = (byte) (16 * x);
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                nv21[width * height + y * width + 2 * x] = (byte) (32 * x);
+                nv21[width * height + y * width + 2 * x + 1] = (byte) (32 * x);
+            }
+        }
+
+        // Reduced 2x, sample centers fall halfway between two source pixels.
+        byte[] half = new YuvScaler(2, 2, YuvScaler.Filter.BILINEAR).scaleNv21(nv21, width, height);
+        assertEquals(8, half[0] & 0xff);
+        assertEquals(40, half[1] & 0xff);
+
+        // Enlarged 2x, the outer samples are clamped to the edge pixels instead of reading past
+        // them, and the inner ones are interpolated by quarters.
+        byte[] twice = new YuvScaler(8, 8, YuvScaler.Filter.BILINEAR).scaleNv21(nv21, width, height);
+        int[] expected = {0, 4, 12, 20, 28, 36, 44, 48};
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                assertEquals(expected[x], twice[y * 8 + x] & 0xff);
+            }
+        }
+        // Chroma at 4x4 from 2x2, V and U alike.
+        int[] expectedChroma = {0, 8, 24, 32};
+        for (int x = 0; x < 4; x++) {
+            assertEquals(expectedChroma[x], twice[64 + 2 * x] & 0xff);
+            assertEquals(expectedChroma[x], twice[64 + 2 * x + 1] & 0xff);
+        }
+    }
+
+    /**
+     * A frame where every sample differs from its neighbours, with V and U apart.
+     */
+    private static byte[] nv21(int width, int height) {
+        byte[] nv21 = new byte[width * height * 3 / 2];
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                nv21[y * width + x] = (byte) (x * 7 + y * 31);
+            }
+        }
+        for (int y = 0; y < height / 2; y++) {
+            for (int x = 0; x < width / 2; x++) {
+                nv21[width * height + y * width + 2 * x] = (byte) (100 + x * 11 + y * 23);
+                nv21[width * height + y * width + 2 * x + 1] = (byte) (200 - x * 13 - y * 5);
+            }
+        }
+        return nv21;
+    }
+
+    private static int luma(byte[] nv21, int width, int x, int y) {
+        return nv21[y * width + x] & 0xff;
+    }
+
+    /**
+     * @param component 0 for V, 1 for U
+     */
+    private static int chroma(byte[] nv21, int width, int height, int x, int y, int component) {
+        return nv21[width * height + y * width + 2 * x + component] & 0xff;
+    }
+
+    private static byte[] rotate(byte[] nv21, int width, int height, int degrees) {
+        byte[] out = new byte[nv21.length];
+        rotatePlane(nv21, 0, width, height, 1, out, degrees);
+        rotatePlane(nv21, width * height, width / 2, height / 2, 2, out, degrees);
+        return out;
+    }
+
+    private static void rotatePlane(byte[] src, int offset, int width, int height, int pixelSize,
+                                    byte[] out, int degrees) {
+        int outWidth = degrees % 180 == 0 ? width : height;
+        for (int y = 0; y < height; y++) {
+            for (int x = 0; x < width; x++) {
+                int ox;
+                int oy;
+                switch (degrees) {
+                    case 90:
+                        ox = height - 1 - y;
+                        oy = x;
+                        break;
+                    case 180:
+                        ox = width - 1 - x;
+                        oy = height - 1 - y;
+                        break;
+                    case 270:
+                        ox = y;
+                        oy = width - 1 - x;
+                        break;
+                    default:
+                        ox = x;
+                        oy = y;
+                        break;
+                }
+                for (int i = 0; i < pixelSize; i++) {
+                    out[offset + (oy * outWidth + ox) * pixelSize + i]
+                            = src[offset + (y * width + x) * pixelSize + i];
+                }
+            }
+        }
+    }
+}